@@ -0,0 +1,213 @@
+/**
+ * The default GL backend, forwarding every call to Android's GLES20 and
+ * GLUtils classes.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.nio.Buffer;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+public class AndroidGLBackend implements GLBackend {
+	public void glActiveTexture(int pTexture) {
+		GLES20.glActiveTexture(pTexture);
+	}
+
+	public void glAttachShader(int pProgram, int pShader) {
+		GLES20.glAttachShader(pProgram, pShader);
+	}
+
+	public void glBindBuffer(int pTarget, int pBuffer) {
+		GLES20.glBindBuffer(pTarget, pBuffer);
+	}
+
+	public void glBindTexture(int pTarget, int pTexture) {
+		GLES20.glBindTexture(pTarget, pTexture);
+	}
+
+	public void glBufferData(int pTarget, int pSize, Buffer pData, int pUsage) {
+		GLES20.glBufferData(pTarget, pSize, pData, pUsage);
+	}
+
+	public void glClear(int pMask) {
+		GLES20.glClear(pMask);
+	}
+
+	public void glClearColor(float pRed, float pGreen, float pBlue, float pAlpha) {
+		GLES20.glClearColor(pRed, pGreen, pBlue, pAlpha);
+	}
+
+	public void glClearDepthf(float pDepth) {
+		GLES20.glClearDepthf(pDepth);
+	}
+
+	public void glColorMask(boolean pRed, boolean pGreen, boolean pBlue, boolean pAlpha) {
+		GLES20.glColorMask(pRed, pGreen, pBlue, pAlpha);
+	}
+
+	public void glCompileShader(int pShader) {
+		GLES20.glCompileShader(pShader);
+	}
+
+	public int glCreateProgram() {
+		return GLES20.glCreateProgram();
+	}
+
+	public int glCreateShader(int pType) {
+		return GLES20.glCreateShader(pType);
+	}
+
+	public void glDeleteBuffers(int pCount, int[] pBuffers, int pOffset) {
+		GLES20.glDeleteBuffers(pCount, pBuffers, pOffset);
+	}
+
+	public void glDeleteProgram(int pProgram) {
+		GLES20.glDeleteProgram(pProgram);
+	}
+
+	public void glDeleteShader(int pShader) {
+		GLES20.glDeleteShader(pShader);
+	}
+
+	public void glDeleteTextures(int pCount, int[] pTextures, int pOffset) {
+		GLES20.glDeleteTextures(pCount, pTextures, pOffset);
+	}
+
+	public void glCullFace(int pMode) {
+		GLES20.glCullFace(pMode);
+	}
+
+	public void glDepthFunc(int pFunction) {
+		GLES20.glDepthFunc(pFunction);
+	}
+
+	public void glDepthMask(boolean pFlag) {
+		GLES20.glDepthMask(pFlag);
+	}
+
+	public void glDisable(int pCapability) {
+		GLES20.glDisable(pCapability);
+	}
+
+	public void glDisableVertexAttribArray(int pIndex) {
+		GLES20.glDisableVertexAttribArray(pIndex);
+	}
+
+	public void glDrawElements(int pMode, int pCount, int pType, int pOffset) {
+		GLES20.glDrawElements(pMode, pCount, pType, pOffset);
+	}
+
+	public void glEnable(int pCapability) {
+		GLES20.glEnable(pCapability);
+	}
+
+	public void glEnableVertexAttribArray(int pIndex) {
+		GLES20.glEnableVertexAttribArray(pIndex);
+	}
+
+	public void glFrontFace(int pMode) {
+		GLES20.glFrontFace(pMode);
+	}
+
+	public void glGenBuffers(int pCount, int[] pBuffers, int pOffset) {
+		GLES20.glGenBuffers(pCount, pBuffers, pOffset);
+	}
+
+	public void glGenTextures(int pCount, int[] pTextures, int pOffset) {
+		GLES20.glGenTextures(pCount, pTextures, pOffset);
+	}
+
+	public void glGenerateMipmap(int pTarget) {
+		GLES20.glGenerateMipmap(pTarget);
+	}
+
+	public int glGetAttribLocation(int pProgram, String pName) {
+		return GLES20.glGetAttribLocation(pProgram, pName);
+	}
+
+	public int glGetError() {
+		return GLES20.glGetError();
+	}
+
+	public void glGetProgramiv(int pProgram, int pName, int[] pParams, int pOffset) {
+		GLES20.glGetProgramiv(pProgram, pName, pParams, pOffset);
+	}
+
+	public String glGetShaderInfoLog(int pShader) {
+		return GLES20.glGetShaderInfoLog(pShader);
+	}
+
+	public void glGetShaderiv(int pShader, int pName, int[] pParams, int pOffset) {
+		GLES20.glGetShaderiv(pShader, pName, pParams, pOffset);
+	}
+
+	public int glGetUniformLocation(int pProgram, String pName) {
+		return GLES20.glGetUniformLocation(pProgram, pName);
+	}
+
+	public void glLinkProgram(int pProgram) {
+		GLES20.glLinkProgram(pProgram);
+	}
+
+	public void glPolygonOffset(float pFactor, float pUnits) {
+		GLES20.glPolygonOffset(pFactor, pUnits);
+	}
+
+	public void glShaderSource(int pShader, String pSource) {
+		GLES20.glShaderSource(pShader, pSource);
+	}
+
+	public void glTexParameterf(int pTarget, int pName, float pValue) {
+		GLES20.glTexParameterf(pTarget, pName, pValue);
+	}
+
+	public void glUniform1fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		GLES20.glUniform1fv(pLocation, pCount, pValues, pOffset);
+	}
+
+	public void glUniform2fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		GLES20.glUniform2fv(pLocation, pCount, pValues, pOffset);
+	}
+
+	public void glUniform3fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		GLES20.glUniform3fv(pLocation, pCount, pValues, pOffset);
+	}
+
+	public void glUniform4fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		GLES20.glUniform4fv(pLocation, pCount, pValues, pOffset);
+	}
+
+	public void glUniform1i(int pLocation, int pValue) {
+		GLES20.glUniform1i(pLocation, pValue);
+	}
+
+	public void glUniformMatrix4fv(int pLocation, int pCount, boolean pTranspose, float[] pValues, int pOffset) {
+		GLES20.glUniformMatrix4fv(pLocation, pCount, pTranspose, pValues, pOffset);
+	}
+
+	public void glUseProgram(int pProgram) {
+		GLES20.glUseProgram(pProgram);
+	}
+
+	public void glVertexAttrib1f(int pIndex, float pValue) {
+		GLES20.glVertexAttrib1f(pIndex, pValue);
+	}
+
+	public void glVertexAttribPointer(int pIndex, int pSize, int pType, boolean pNormalized, int pStride, int pOffset) {
+		GLES20.glVertexAttribPointer(pIndex, pSize, pType, pNormalized, pStride, pOffset);
+	}
+
+	public void glViewport(int pX, int pY, int pWidth, int pHeight) {
+		GLES20.glViewport(pX, pY, pWidth, pHeight);
+	}
+
+	public void texImage2D(int pTarget, int pLevel, Bitmap pBitmap, int pBorder) {
+		GLUtils.texImage2D(pTarget, pLevel, pBitmap, pBorder);
+	}
+}
@@ -10,6 +10,11 @@ package com.stupidcoder.gles2;
 import android.opengl.Matrix;
 
 public class Camera {
+	/**
+	 * The eyes that getView can return the view matrix of.
+	 */
+	public static final int EYE_CENTER = 0, EYE_LEFT = 1, EYE_RIGHT = 2;
+
 	private float mFOV, mAspect;
 	private Vec3 mFront, mRight, mUp;
 	private float mNear, mFar;
@@ -18,7 +23,14 @@ public class Camera {
 	private float[] mProjection;
 	private boolean mRebuildProjection;
 	private float[] mView;
+	private float[] mViewProjection;
+	private Frustum mFrustum;
+	private float[] mLeftView, mRightView;
+	private float[] mStereoProjection, mStereoView;
+	private int mEye;
 	private float mYaw, mPitch, mDistance;
+	// The change tracker of the scene using the camera
+	volatile ChangeTracker mTracker;
 
 	/**
 	 * Creates a new camera with an identity view matrix.
@@ -36,10 +48,56 @@ public class Camera {
 		mYaw = mPitch = 0.0f;
 		mDistance = 10.0f;
 		mView = new float[16];
+		mViewProjection = new float[16];
+		mFrustum = new Frustum();
+		mLeftView = new float[16];
+		mRightView = new float[16];
+		mStereoProjection = new float[16];
+		mStereoView = new float[16];
+		mEye = EYE_CENTER;
+		mTracker = null;
 		positionFromTargetOrbit();
 		directionsFromTargetOrbit();
 	}
 
+	/**
+	 * Copies the position, orientation and projection parameters of another
+	 * camera, without allocating. The aspect ratio is kept, since it belongs
+	 * to the surface. The matrices get calculated by the next call to
+	 * updateCamera.
+	 *
+	 * @param pCamera
+	 *            The camera to copy.
+	 */
+	public void set(Camera pCamera) {
+		if (mFOV != pCamera.mFOV || mNear != pCamera.mNear || mFar != pCamera.mFar) {
+			mFOV = pCamera.mFOV;
+			mNear = pCamera.mNear;
+			mFar = pCamera.mFar;
+			mRebuildProjection = true;
+		}
+		copy(pCamera.mPosition, mPosition);
+		copy(pCamera.mTarget, mTarget);
+		copy(pCamera.mFront, mFront);
+		copy(pCamera.mRight, mRight);
+		copy(pCamera.mUp, mUp);
+		mYaw = pCamera.mYaw;
+		mPitch = pCamera.mPitch;
+		mDistance = pCamera.mDistance;
+	}
+
+	private void markChanged() {
+		ChangeTracker tracker = mTracker;
+		if (tracker != null)
+			tracker.markChanged();
+	}
+
+	static private void copy(Vec3 pFrom, Vec3 pTo) {
+		pTo.x = pFrom.x;
+		pTo.y = pFrom.y;
+		pTo.z = pFrom.z;
+	}
+
 	private void directionsFromTargetOrbit() {
 		mFront = mTarget.sub(mPosition);
 		mFront.normalize();
@@ -68,17 +126,93 @@ public class Camera {
 	}
 
 	/**
-	 * Gets the view matrix.
+	 * Gets the view matrix of the currently selected eye.
 	 * 
 	 * @return The view matrix as an array of 16 float values.
 	 */
 	public float[] getView() {
-		return mView;
+		switch (mEye) {
+		case EYE_LEFT:
+			return mLeftView;
+		case EYE_RIGHT:
+			return mRightView;
+		default:
+			return mView;
+		}
+	}
+
+	/**
+	 * Selects the eye whose view matrix getView returns. The eye views are
+	 * set up by updateStereo.
+	 * 
+	 * @param pEye
+	 *            EYE_CENTER, EYE_LEFT or EYE_RIGHT.
+	 */
+	public void setEye(int pEye) {
+		mEye = pEye;
+	}
+
+	public int getEye() {
+		return mEye;
 	}
 	
+	/**
+	 * Gets the view frustum as of the last call to updateCamera.
+	 * 
+	 * @return The frustum of the current projection and view matrix.
+	 */
+	public Frustum getFrustum() {
+		return mFrustum;
+	}
+
+	/**
+	 * Gets the projection matrix multiplied by the view matrix, as of the
+	 * last call to updateCamera or updateStereo. After updateStereo it
+	 * belongs to the widened frustum containing both eyes.
+	 * 
+	 * @return The combined matrix as an array of 16 float values.
+	 */
+	public float[] getViewProjection() {
+		return mViewProjection;
+	}
+
 	public void updateCamera() {
 		Matrix.setLookAtM(mView, 0, mPosition.x, mPosition.y, mPosition.z,
 				mTarget.x, mTarget.y, mTarget.z, 0.0f, 1.0f, 0.0f);
+		Matrix.multiplyMM(mViewProjection, 0, getProjection(), 0, mView, 0);
+		mFrustum.set(mViewProjection);
+		mEye = EYE_CENTER;
+	}
+
+	/**
+	 * Sets up the view matrices of two eyes, shifted sideways from the
+	 * camera position with parallel view directions, and widens the frustum
+	 * so that it contains everything either eye can see. Must be called
+	 * after updateCamera.
+	 * 
+	 * @param pEyeSeparation
+	 *            The distance between the eyes.
+	 */
+	public void updateStereo(float pEyeSeparation) {
+		float offset = pEyeSeparation / 2.0f;
+
+		// Moving an eye along the camera's right vector only shifts the view
+		// space X axis, so the eye views differ in one matrix element
+		System.arraycopy(mView, 0, mLeftView, 0, 16);
+		System.arraycopy(mView, 0, mRightView, 0, 16);
+		mLeftView[12] += offset;
+		mRightView[12] -= offset;
+
+		// A frustum whose apex lies behind the eyes, far enough for its side
+		// planes to pass both of them, contains both eye frustums
+		float height = (float) Math.tan(mFOV / 360.0f * (float) Math.PI);
+		float back = offset / (height * mAspect);
+		Matrix.frustumM(mStereoProjection, 0, -height * mAspect * mNear, height * mAspect * mNear, height * mNear, -height * mNear,
+				mNear, mFar + back);
+		System.arraycopy(mView, 0, mStereoView, 0, 16);
+		mStereoView[14] -= back;
+		Matrix.multiplyMM(mViewProjection, 0, mStereoProjection, 0, mStereoView, 0);
+		mFrustum.set(mViewProjection);
 	}
 
 	/**
@@ -107,6 +241,7 @@ public class Camera {
 		mDistance = Math.max(1.0f, mDistance + pDistance);
 		positionFromTargetOrbit();
 		directionsFromTargetOrbit();
+		markChanged();
 	}
 
 	public void rotate(float pYaw, float pPitch) {
@@ -115,6 +250,7 @@ public class Camera {
 		mTarget = mTarget.add(mPosition);
 		orbitFromPositionTarget();
 		directionsFromTargetOrbit();
+		markChanged();
 	}
 	
 	private void orbitFromPositionTarget() {
@@ -136,11 +272,13 @@ public class Camera {
 		mTarget.z += mRight.z * pX + mUp.z * pY + mFront.z * pZ;
 		positionFromTargetOrbit();
 		directionsFromTargetOrbit();
+		markChanged();
 	}
 	
 	public void setTargetY(float pY) {
 		mTarget.y = pY;
 		positionFromTargetOrbit();
+		markChanged();
 	}
 	
 	public Vec3 getPosition() {
@@ -152,6 +290,7 @@ public class Camera {
 		mTarget.y += pY;
 		mTarget.z += pZ;
 		positionFromTargetOrbit();
+		markChanged();
 	}
 
 	private void positionFromTargetOrbit() {
@@ -171,10 +310,16 @@ public class Camera {
 	 *            The new aspect ratio (width/height.
 	 */
 	public void setAspect(float pAspect) {
+		if (pAspect == mAspect)
+			return;
 		mAspect = pAspect;
 		mRebuildProjection = true;
 	}
 
+	public float getFarClipDistance() {
+		return mFar;
+	}
+
 	/**
 	 * Sets near and far clip distances
 	 * 
@@ -189,6 +334,7 @@ public class Camera {
 		mNear = pNear;
 		mFar = pFar;
 		mRebuildProjection = true;
+		markChanged();
 	}
 
 	/**
@@ -200,6 +346,7 @@ public class Camera {
 	public void setFieldOfView(float pFOV) {
 		mFOV = Math.min(170.0f, Math.max(10.0f, pFOV));
 		mRebuildProjection = true;
+		markChanged();
 	}
 
 	/**
@@ -229,5 +376,6 @@ public class Camera {
 		mTarget.z = pCenterZ;
 		orbitFromPositionTarget();
 		directionsFromTargetOrbit();
+		markChanged();
 	}
 }
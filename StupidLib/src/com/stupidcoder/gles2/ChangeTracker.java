@@ -0,0 +1,92 @@
+/**
+ * Keeps track of changes to anything that affects the rendered image of a
+ * scene, like its camera, scene graph nodes, shader parameters and
+ * geometry, so that its view only needs to redraw when something has
+ * actually changed. Every scene has its own: nodes, the camera and the
+ * shaders created by the scene mark the tracker of the scene they belong
+ * to, geometry and other shaders the one of the scene that drew them
+ * last.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChangeTracker {
+	/**
+	 * Gets told when something has changed since the last frame started.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the thread making the change, at most once between two
+		 * frames.
+		 */
+		public void onChanged();
+	}
+
+	private final AtomicInteger mVersion;
+	private final AtomicBoolean mPending;
+	private final CopyOnWriteArrayList<Listener> mListeners;
+
+	// Every scene creates its own
+	ChangeTracker() {
+		mVersion = new AtomicInteger();
+		mPending = new AtomicBoolean();
+		mListeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	/**
+	 * Records a change. The listeners get notified if this is the first
+	 * change since the last frame started, so calling it often is cheap.
+	 */
+	public void markChanged() {
+		mVersion.incrementAndGet();
+		requestFrame();
+	}
+
+	/**
+	 * Requests a frame for changes that have already been recorded, e.g.
+	 * once they have been published to the render thread, without counting
+	 * as a new change.
+	 */
+	void requestFrame() {
+		if (!mPending.get() && mPending.compareAndSet(false, true))
+			for (Listener listener : mListeners)
+				listener.onChanged();
+	}
+
+	/**
+	 * Gets a number that changes with every recorded change.
+	 */
+	public int getVersion() {
+		return mVersion.get();
+	}
+
+	/**
+	 * Checks if anything has changed since the last frame started.
+	 */
+	public boolean isPending() {
+		return mPending.get();
+	}
+
+	/**
+	 * Called when a frame starts. Changes made after this, including those
+	 * made while drawing the frame, request the next one.
+	 */
+	void beginFrame() {
+		mPending.set(false);
+	}
+
+	public void addListener(Listener pListener) {
+		mListeners.addIfAbsent(pListener);
+	}
+
+	public void removeListener(Listener pListener) {
+		mListeners.remove(pListener);
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * A monotonic clock for measuring frame times. Unlike the wall clock it
+ * never jumps when the system time gets changed, and it has nanosecond
+ * resolution.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+public class Clock {
+	private long mStart, mLast;
+	private long mElapsed;
+	private long mMaxElapsed;
+
+	/**
+	 * Gets the current time of the monotonic clock. Only differences
+	 * between two values are meaningful.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public static long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Creates a new clock that starts now.
+	 */
+	public Clock() {
+		mMaxElapsed = Long.MAX_VALUE;
+		reset();
+	}
+
+	/**
+	 * Gets the current time. Can be overridden to run scenes on a simulated
+	 * clock, e.g. for replays and tests.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	protected long now() {
+		return nanoTime();
+	}
+
+	/**
+	 * Restarts the clock, so the next tick measures the time from now.
+	 */
+	public void reset() {
+		mStart = mLast = now();
+		mElapsed = 0;
+	}
+
+	/**
+	 * Measures the time since the last tick, e.g. once per frame.
+	 *
+	 * @return The elapsed time in nanoseconds, limited to the maximum
+	 *         elapsed time.
+	 */
+	public long tick() {
+		long now = now();
+		long elapsed = now - mLast;
+		mLast = now;
+		mElapsed = Math.max(0, Math.min(elapsed, mMaxElapsed));
+		return mElapsed;
+	}
+
+	/**
+	 * Gets the time measured by the last tick.
+	 *
+	 * @return The elapsed time in nanoseconds.
+	 */
+	public long getElapsedTime() {
+		return mElapsed;
+	}
+
+	/**
+	 * Gets the time of the last tick since the clock has been reset.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public long getTime() {
+		return mLast - mStart;
+	}
+
+	public long getMaxElapsedTime() {
+		return mMaxElapsed;
+	}
+
+	/**
+	 * Limits the time a single tick can measure, so that e.g. a long pause
+	 * in a debugger doesn't make the next frame skip far ahead. Unlimited by
+	 * default.
+	 *
+	 * @param pMaxElapsed
+	 *            The maximum elapsed time in nanoseconds.
+	 */
+	public void setMaxElapsedTime(long pMaxElapsed) {
+		if (pMaxElapsed < 0)
+			throw new IllegalArgumentException("Maximum elapsed time must not be negative");
+		mMaxElapsed = pMaxElapsed;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Runs updates at a fixed rate independent of the frame rate. The time of
+ * each frame goes into an accumulator, and as many fixed steps run as fit
+ * into it. What is left over is the interpolation alpha: how far the frame
+ * lies between the last step and the next one, for rendering positions
+ * between the last two steps without stutter.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+public class FixedTimestep {
+	/**
+	 * A fixed update step.
+	 */
+	public interface Step {
+		/**
+		 * Called once per step, before the prerender event of the frame.
+		 *
+		 * @param pScene
+		 *            The scene being updated.
+		 * @param pStepTime
+		 *            The duration of a step in nanoseconds, the same for
+		 *            every call.
+		 */
+		public void step(Scene pScene, long pStepTime);
+	}
+
+	private long mStepTime;
+	private Step mStep;
+	private long mAccumulator;
+	private int mMaxSteps;
+	private float mAlpha;
+	private long mNumberOfSteps;
+
+	/**
+	 * Creates a new scheduler. To run 60 steps per second, use a step time
+	 * of 1000000000L / 60.
+	 *
+	 * @param pStepTime
+	 *            The duration of a step in nanoseconds.
+	 * @param pStep
+	 *            The update to run each step.
+	 */
+	public FixedTimestep(long pStepTime, Step pStep) {
+		if (pStepTime <= 0)
+			throw new IllegalArgumentException("Step time must be positive");
+		mStepTime = pStepTime;
+		mStep = pStep;
+		mMaxSteps = 5;
+		reset();
+	}
+
+	/**
+	 * Adds the time of a frame and runs the steps that fit into the
+	 * accumulated time. If more than the maximum number of steps would be
+	 * due, the rest of the time is dropped, so that a frame that took too
+	 * long doesn't make the next frames slower still.
+	 *
+	 * @param pScene
+	 *            The scene to pass to the steps.
+	 * @param pElapsed
+	 *            The time since the last call in nanoseconds.
+	 * @return The number of steps that ran.
+	 */
+	public int advance(Scene pScene, long pElapsed) {
+		mAccumulator += Math.max(0, pElapsed);
+		int steps = 0;
+		while (mAccumulator >= mStepTime && steps < mMaxSteps) {
+			mStep.step(pScene, mStepTime);
+			mAccumulator -= mStepTime;
+			steps++;
+		}
+		if (mAccumulator >= mStepTime)
+			mAccumulator %= mStepTime;
+		mNumberOfSteps += steps;
+		mAlpha = (float)mAccumulator / mStepTime;
+		return steps;
+	}
+
+	/**
+	 * Gets how far the current frame lies between the last step and the
+	 * next one.
+	 *
+	 * @return A value from 0, right at the last step, up to but excluding 1.
+	 */
+	public float getAlpha() {
+		return mAlpha;
+	}
+
+	/**
+	 * Empties the accumulator, e.g. after the simulation has been paused.
+	 */
+	public void reset() {
+		mAccumulator = 0;
+		mAlpha = 0.0f;
+	}
+
+	public long getStepTime() {
+		return mStepTime;
+	}
+
+	public int getMaxSteps() {
+		return mMaxSteps;
+	}
+
+	/**
+	 * Sets the maximum number of steps per frame. Defaults to 5.
+	 */
+	public void setMaxSteps(int pMaxSteps) {
+		if (pMaxSteps <= 0)
+			throw new IllegalArgumentException("Maximum number of steps must be positive");
+		mMaxSteps = pMaxSteps;
+	}
+
+	/**
+	 * Gets the number of steps that have run in total.
+	 */
+	public long getNumberOfSteps() {
+		return mNumberOfSteps;
+	}
+}
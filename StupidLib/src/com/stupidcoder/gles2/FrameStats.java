@@ -0,0 +1,228 @@
+/**
+ * Collects per-frame render statistics: where the CPU time of a frame went,
+ * how much work was submitted to OpenGL, and percentiles of the frame
+ * times over the last frames. A scene only collects statistics while one
+ * has been set with Scene.setFrameStats.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.widget.TextView;
+
+public class FrameStats {
+	/**
+	 * The timed phases of a frame. PHASE_PRERENDER is the prerender event and
+	 * queued scene changes, PHASE_TRAVERSAL updating, culling and sorting the
+	 * scene graph, PHASE_UNIFORMS setting shader uniforms and PHASE_DRAW the
+	 * rest of submitting the draw calls. PHASE_FRAME is the whole frame.
+	 */
+	public static final int PHASE_PRERENDER = 0, PHASE_TRAVERSAL = 1, PHASE_UNIFORMS = 2, PHASE_DRAW = 3, PHASE_FRAME = 4;
+	public static final int NUMBER_OF_PHASES = 5;
+
+	/**
+	 * The counters of a frame.
+	 */
+	public static final int COUNTER_DRAW_CALLS = 0, COUNTER_TRIANGLES = 1, COUNTER_PROGRAM_SWITCHES = 2,
+			COUNTER_TEXTURE_BINDS = 3, COUNTER_UPLOAD_BYTES = 4, COUNTER_SHADER_COMPILES = 5;
+	public static final int NUMBER_OF_COUNTERS = 6;
+
+	private static final String[] PHASE_NAMES = { "prerender", "traversal", "uniforms", "draw", "frame" };
+	private static final String[] COUNTER_NAMES = { "draw calls", "triangles", "programs", "textures", "uploaded", "compiles" };
+
+	// Nanoseconds between two overlay updates
+	private static final long OVERLAY_INTERVAL = 500000000L;
+
+	private long mFrameStart;
+	private long[] mStarts, mTimes;
+	private long[] mCounters;
+	private float[] mLastTimes;
+	private long[] mLastCounters;
+
+	// The phase times of the last frames in milliseconds, one row per phase
+	private float[][] mHistory;
+	private int mNext, mNumberOfFrames;
+	private float[] mSorted;
+
+	private TextView mOverlay;
+	private long mLastOverlayUpdate;
+	private volatile String mOverlayText;
+	private Runnable mOverlayUpdate;
+
+	/**
+	 * Creates new statistics that keep the times of the last 120 frames.
+	 */
+	public FrameStats() {
+		this(120);
+	}
+
+	/**
+	 * Creates new statistics.
+	 *
+	 * @param pHistorySize
+	 *            The number of frames the percentiles get calculated over.
+	 */
+	public FrameStats(int pHistorySize) {
+		if (pHistorySize <= 0)
+			throw new IllegalArgumentException("History size must be positive");
+		mStarts = new long[NUMBER_OF_PHASES];
+		mTimes = new long[NUMBER_OF_PHASES];
+		mCounters = new long[NUMBER_OF_COUNTERS];
+		mLastTimes = new float[NUMBER_OF_PHASES];
+		mLastCounters = new long[NUMBER_OF_COUNTERS];
+		mHistory = new float[NUMBER_OF_PHASES][pHistorySize];
+		mSorted = new float[pHistorySize];
+		mOverlayUpdate = new Runnable() {
+			public void run() {
+				TextView overlay = mOverlay;
+				String text = mOverlayText;
+				if (overlay != null && text != null)
+					overlay.setText(text);
+			}
+		};
+	}
+
+	void beginFrame() {
+		Arrays.fill(mTimes, 0);
+		Arrays.fill(mCounters, 0);
+		mFrameStart = Clock.nanoTime();
+	}
+
+	void begin(int pPhase) {
+		mStarts[pPhase] = Clock.nanoTime();
+	}
+
+	void end(int pPhase) {
+		mTimes[pPhase] += Clock.nanoTime() - mStarts[pPhase];
+	}
+
+	// Adds time measured elsewhere, like the prerender time of the logic
+	// thread in pipelined mode
+	void add(int pPhase, long pNanoseconds) {
+		mTimes[pPhase] += pNanoseconds;
+	}
+
+	void count(int pCounter, long pAmount) {
+		mCounters[pCounter] += pAmount;
+	}
+
+	void endFrame() {
+		mTimes[PHASE_FRAME] = Clock.nanoTime() - mFrameStart;
+		// Uniforms get set while drawing, so they are timed inside PHASE_DRAW
+		mTimes[PHASE_DRAW] = Math.max(0, mTimes[PHASE_DRAW] - mTimes[PHASE_UNIFORMS]);
+
+		for (int i = 0 ; i < NUMBER_OF_PHASES ; i++) {
+			mLastTimes[i] = mTimes[i] / 1000000.0f;
+			mHistory[i][mNext] = mLastTimes[i];
+		}
+		System.arraycopy(mCounters, 0, mLastCounters, 0, NUMBER_OF_COUNTERS);
+		mNext = (mNext + 1) % mSorted.length;
+		if (mNumberOfFrames < mSorted.length)
+			mNumberOfFrames++;
+
+		TextView overlay = mOverlay;
+		long now = Clock.nanoTime();
+		if (overlay != null && (mLastOverlayUpdate == 0 || now - mLastOverlayUpdate >= OVERLAY_INTERVAL)) {
+			mLastOverlayUpdate = now;
+			mOverlayText = toString();
+			overlay.post(mOverlayUpdate);
+		}
+	}
+
+	/**
+	 * Gets the time a phase took in the last frame.
+	 *
+	 * @param pPhase
+	 *            One of the PHASE_ constants.
+	 * @return The time in milliseconds.
+	 */
+	public float getTime(int pPhase) {
+		return mLastTimes[pPhase];
+	}
+
+	/**
+	 * Gets the value of a counter in the last frame.
+	 *
+	 * @param pCounter
+	 *            One of the COUNTER_ constants.
+	 */
+	public long getCounter(int pCounter) {
+		return mLastCounters[pCounter];
+	}
+
+	/**
+	 * Gets a percentile of the time a phase took over the last frames, e.g.
+	 * getPercentile(PHASE_FRAME, 99) for the time 99% of the frames stayed
+	 * within. Should be called on the render thread, e.g. from the prerender
+	 * event, as it reads the history while frames get added.
+	 *
+	 * @param pPhase
+	 *            One of the PHASE_ constants.
+	 * @param pPercentile
+	 *            The percentile between 0 and 100.
+	 * @return The time in milliseconds, or 0 if no frame has been recorded.
+	 */
+	public float getPercentile(int pPhase, float pPercentile) {
+		int count = mNumberOfFrames;
+		if (count == 0)
+			return 0.0f;
+		System.arraycopy(mHistory[pPhase], 0, mSorted, 0, count);
+		Arrays.sort(mSorted, 0, count);
+		// Nearest rank
+		int rank = (int)Math.ceil(pPercentile / 100.0f * count);
+		return mSorted[Math.max(0, Math.min(count - 1, rank - 1))];
+	}
+
+	/**
+	 * Gets the number of frames the percentiles are calculated over, which
+	 * is less than the history size until enough frames have been drawn.
+	 */
+	public int getNumberOfFrames() {
+		return mNumberOfFrames;
+	}
+
+	/**
+	 * Forgets all recorded frames.
+	 */
+	public void reset() {
+		mNext = mNumberOfFrames = 0;
+		Arrays.fill(mLastTimes, 0.0f);
+		Arrays.fill(mLastCounters, 0);
+	}
+
+	/**
+	 * Shows the statistics in a text view, updated twice per second. The
+	 * view gets updated on its own thread.
+	 *
+	 * @param pOverlay
+	 *            The view to show the statistics in, or null to stop
+	 *            updating it.
+	 */
+	public void setOverlay(TextView pOverlay) {
+		mOverlay = pOverlay;
+		mLastOverlayUpdate = 0;
+	}
+
+	public TextView getOverlay() {
+		return mOverlay;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0 ; i < NUMBER_OF_PHASES ; i++)
+			text.append(String.format(Locale.US, "%-9s %6.2f ms  p50 %6.2f  p95 %6.2f  p99 %6.2f\n", PHASE_NAMES[i],
+					getTime(i), getPercentile(i, 50), getPercentile(i, 95), getPercentile(i, 99)));
+		for (int i = 0 ; i < NUMBER_OF_COUNTERS ; i++) {
+			if (i > 0)
+				text.append(i % 3 == 0 ? "\n" : ", ");
+			text.append(COUNTER_NAMES[i]).append(' ').append(getCounter(i));
+		}
+		return text.toString();
+	}
+}
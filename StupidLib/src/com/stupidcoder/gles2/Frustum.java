@@ -0,0 +1,114 @@
+/**
+ * The six clip planes of a view frustum, used to skip scene graph nodes
+ * whose bounding boxes are not in view.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+public class Frustum {
+	// Left, right, bottom, top, near and far plane, four values each
+	private float[] mPlanes;
+	private int mNumberOfVisible, mNumberOfCulled;
+
+	/**
+	 * Creates a new frustum that contains everything.
+	 */
+	public Frustum() {
+		mPlanes = new float[6 * 4];
+		for (int i = 0; i < 6; i++)
+			mPlanes[i * 4 + 3] = 1.0f;
+	}
+
+	/**
+	 * Extracts the clip planes from a combined projection and view matrix.
+	 *
+	 * @param pMatrix
+	 *            The projection matrix multiplied by the view matrix.
+	 */
+	public void set(float[] pMatrix) {
+		for (int i = 0; i < 6; i++) {
+			int row = i / 2;
+			float sign = (i % 2 == 0) ? 1.0f : -1.0f;
+			float a = pMatrix[3] + sign * pMatrix[row];
+			float b = pMatrix[7] + sign * pMatrix[4 + row];
+			float c = pMatrix[11] + sign * pMatrix[8 + row];
+			float d = pMatrix[15] + sign * pMatrix[12 + row];
+			float length = (float) Math.sqrt(a * a + b * b + c * c);
+			if (length > 0.0f) {
+				a /= length;
+				b /= length;
+				c /= length;
+				d /= length;
+			}
+			mPlanes[i * 4 + 0] = a;
+			mPlanes[i * 4 + 1] = b;
+			mPlanes[i * 4 + 2] = c;
+			mPlanes[i * 4 + 3] = d;
+		}
+	}
+
+	/**
+	 * Tests if an axis aligned box is at least partially inside the frustum.
+	 * The test is conservative, so a few boxes near the frustum corners are
+	 * reported as visible although they are not.
+	 *
+	 * @param pBounds
+	 *            The minimum X, Y, Z and maximum X, Y, Z of the box.
+	 * @return False if the box is completely outside.
+	 */
+	public boolean intersectsBox(float[] pBounds) {
+		for (int i = 0; i < 24; i += 4) {
+			float a = mPlanes[i], b = mPlanes[i + 1], c = mPlanes[i + 2];
+			// The box corner farthest along the plane normal
+			float x = a >= 0.0f ? pBounds[3] : pBounds[0];
+			float y = b >= 0.0f ? pBounds[4] : pBounds[1];
+			float z = c >= 0.0f ? pBounds[5] : pBounds[2];
+			if (a * x + b * y + c * z + mPlanes[i + 3] < 0.0f)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tests if a sphere is at least partially inside the frustum.
+	 *
+	 * @return False if the sphere is completely outside.
+	 */
+	public boolean intersectsSphere(float pX, float pY, float pZ, float pRadius) {
+		for (int i = 0; i < 24; i += 4)
+			if (mPlanes[i] * pX + mPlanes[i + 1] * pY + mPlanes[i + 2] * pZ + mPlanes[i + 3] < -pRadius)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Gets the number of scene graph nodes drawn since the last reset.
+	 *
+	 * @return The number of nodes with geometry that passed the test.
+	 */
+	public int getNumberOfVisible() {
+		return mNumberOfVisible;
+	}
+
+	/**
+	 * Gets the number of scene graph nodes skipped since the last reset,
+	 * including all nodes of culled subtrees.
+	 *
+	 * @return The number of nodes with geometry that were not drawn.
+	 */
+	public int getNumberOfCulled() {
+		return mNumberOfCulled;
+	}
+
+	public void resetCounters() {
+		mNumberOfVisible = mNumberOfCulled = 0;
+	}
+
+	void count(int pVisible, int pCulled) {
+		mNumberOfVisible += pVisible;
+		mNumberOfCulled += pCulled;
+	}
+}
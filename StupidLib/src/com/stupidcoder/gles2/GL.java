@@ -0,0 +1,36 @@
+/**
+ * Holds the GL backend that all rendering goes through. GL calls always go
+ * to the context current on the calling thread, so there is one backend for
+ * the whole process rather than one per scene.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+public final class GL {
+	private static volatile GLBackend sBackend = new AndroidGLBackend();
+
+	private GL() {
+	}
+
+	/**
+	 * Gets the current GL backend.
+	 */
+	public static GLBackend get() {
+		return sBackend;
+	}
+
+	/**
+	 * Replaces the GL backend, e.g. with a RecordingGLBackend to run scenes
+	 * without a GL context. Should be called before anything gets drawn, as
+	 * the names created by the old backend mean nothing to the new one.
+	 *
+	 * @param pBackend
+	 *            The new backend, or null to go back to Android's GLES20.
+	 */
+	public static void setBackend(GLBackend pBackend) {
+		sBackend = pBackend != null ? pBackend : new AndroidGLBackend();
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * The OpenGL ES 2.0 calls the library makes. All rendering goes through the
+ * backend set with GL.setBackend, which normally forwards to Android's
+ * GLES20 class. The methods have the same names and parameters as there.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.nio.Buffer;
+
+import android.graphics.Bitmap;
+
+public interface GLBackend {
+	public void glActiveTexture(int pTexture);
+
+	public void glAttachShader(int pProgram, int pShader);
+
+	public void glBindBuffer(int pTarget, int pBuffer);
+
+	public void glBindTexture(int pTarget, int pTexture);
+
+	public void glBufferData(int pTarget, int pSize, Buffer pData, int pUsage);
+
+	public void glClear(int pMask);
+
+	public void glClearColor(float pRed, float pGreen, float pBlue, float pAlpha);
+
+	public void glClearDepthf(float pDepth);
+
+	public void glColorMask(boolean pRed, boolean pGreen, boolean pBlue, boolean pAlpha);
+
+	public void glCompileShader(int pShader);
+
+	public int glCreateProgram();
+
+	public int glCreateShader(int pType);
+
+	public void glDeleteBuffers(int pCount, int[] pBuffers, int pOffset);
+
+	public void glDeleteProgram(int pProgram);
+
+	public void glDeleteShader(int pShader);
+
+	public void glDeleteTextures(int pCount, int[] pTextures, int pOffset);
+
+	public void glCullFace(int pMode);
+
+	public void glDepthFunc(int pFunction);
+
+	public void glDepthMask(boolean pFlag);
+
+	public void glDisable(int pCapability);
+
+	public void glDisableVertexAttribArray(int pIndex);
+
+	public void glDrawElements(int pMode, int pCount, int pType, int pOffset);
+
+	public void glEnable(int pCapability);
+
+	public void glEnableVertexAttribArray(int pIndex);
+
+	public void glFrontFace(int pMode);
+
+	public void glGenBuffers(int pCount, int[] pBuffers, int pOffset);
+
+	public void glGenTextures(int pCount, int[] pTextures, int pOffset);
+
+	public void glGenerateMipmap(int pTarget);
+
+	public int glGetAttribLocation(int pProgram, String pName);
+
+	public int glGetError();
+
+	public void glGetProgramiv(int pProgram, int pName, int[] pParams, int pOffset);
+
+	public String glGetShaderInfoLog(int pShader);
+
+	public void glGetShaderiv(int pShader, int pName, int[] pParams, int pOffset);
+
+	public int glGetUniformLocation(int pProgram, String pName);
+
+	public void glLinkProgram(int pProgram);
+
+	public void glPolygonOffset(float pFactor, float pUnits);
+
+	public void glShaderSource(int pShader, String pSource);
+
+	public void glTexParameterf(int pTarget, int pName, float pValue);
+
+	public void glUniform1fv(int pLocation, int pCount, float[] pValues, int pOffset);
+
+	public void glUniform2fv(int pLocation, int pCount, float[] pValues, int pOffset);
+
+	public void glUniform3fv(int pLocation, int pCount, float[] pValues, int pOffset);
+
+	public void glUniform4fv(int pLocation, int pCount, float[] pValues, int pOffset);
+
+	public void glUniform1i(int pLocation, int pValue);
+
+	public void glUniformMatrix4fv(int pLocation, int pCount, boolean pTranspose, float[] pValues, int pOffset);
+
+	public void glUseProgram(int pProgram);
+
+	public void glVertexAttrib1f(int pIndex, float pValue);
+
+	public void glVertexAttribPointer(int pIndex, int pSize, int pType, boolean pNormalized, int pStride, int pOffset);
+
+	public void glViewport(int pX, int pY, int pWidth, int pHeight);
+
+	/**
+	 * Uploads a bitmap to the bound texture, like GLUtils.texImage2D.
+	 */
+	public void texImage2D(int pTarget, int pLevel, Bitmap pBitmap, int pBorder);
+}
@@ -16,7 +16,7 @@ import android.content.Context;
 import android.graphics.PixelFormat;
 import android.opengl.GLSurfaceView;
 
-public class GLES2View extends GLSurfaceView {
+public class GLES2View extends GLSurfaceView implements ChangeTracker.Listener {
 	private static class ConfigChooser implements
 			GLSurfaceView.EGLConfigChooser {
 		private static int EGL_OPENGL_ES2_BIT = 4;
@@ -118,6 +118,8 @@ public class GLES2View extends GLSurfaceView {
 		}
 	}
 
+	private ChangeTracker mTracker;
+
 	private static void checkEglError(EGL10 egl) throws RuntimeException {
 		int error;
 		while ((error = egl.eglGetError()) != EGL10.EGL_SUCCESS)
@@ -172,5 +174,33 @@ public class GLES2View extends GLSurfaceView {
 				stencil, samples) : new ConfigChooser(5, 6, 5, 0, depth,
 				stencil, samples));
 		setRenderer(renderer);
+		// Only redraw when something in the scene has changed. Other
+		// renderers can't tell, so they get drawn continuously. Use
+		// Scene.setRenderContinuously for animations the scene's change
+		// tracking doesn't see.
+		if (renderer instanceof Scene) {
+			mTracker = ((Scene) renderer).getChangeTracker();
+			setRenderMode(RENDERMODE_WHEN_DIRTY);
+		}
+	}
+
+	public void onChanged() {
+		requestRender();
+	}
+
+	// The scene may outlive the view, so the view only listens while it is
+	// attached; otherwise it would keep the view and its activity alive
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (mTracker != null)
+			mTracker.addListener(this);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		if (mTracker != null)
+			mTracker.removeListener(this);
+		super.onDetachedFromWindow();
 	}
 }
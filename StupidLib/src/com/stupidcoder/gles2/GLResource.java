@@ -0,0 +1,66 @@
+/**
+ * Something that owns OpenGL objects, like the buffers of a geometry or a
+ * texture. The objects get created lazily when the resource is drawn, and
+ * the resource manager of the scene drawing it keeps track of their size,
+ * frees them and evicts them when the GPU memory budget is exceeded.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+public abstract class GLResource {
+	// The registration with the resource manager of the scene that created
+	// the objects
+	volatile ResourceManager.Entry mEntry;
+	// The change tracker of the scene that drew the resource last
+	volatile ChangeTracker mTracker;
+
+	// Requests a frame from the scene drawing the resource, if any
+	void markChanged() {
+		ChangeTracker tracker = mTracker;
+		if (tracker != null)
+			tracker.markChanged();
+	}
+
+	/**
+	 * Deletes the GL objects of the resource, which get created again the
+	 * next time it is drawn. Only objects created on the given surface may
+	 * be deleted, as the names of older surfaces are gone with their
+	 * context.
+	 */
+	abstract void deleteObjects(GLState pState, int pSurfaceGeneration);
+
+	/**
+	 * Moves the names of the GL objects into the orphan without deleting
+	 * them, when another scene takes the resource over. The objects get
+	 * created again the next time it is drawn, and the orphaned ones get
+	 * deleted by the scene that created them.
+	 */
+	abstract void orphanObjects(ResourceManager.Orphan pOrphan);
+
+	/**
+	 * Gets the size of the GL objects of this resource as registered with
+	 * the resource manager.
+	 *
+	 * @return The size in bytes, or 0 if the resource isn't managed.
+	 */
+	public long getSize() {
+		ResourceManager.Entry entry = mEntry;
+		return entry != null ? entry.mSize : 0;
+	}
+
+	/**
+	 * Frees the GL objects of this resource at the start of the next frame
+	 * of the scene that drew it, so this can be called from any thread. The
+	 * objects get created again if the resource is drawn afterwards.
+	 * Resources that have only been drawn without a scene aren't managed and
+	 * keep their objects.
+	 */
+	public void release() {
+		ResourceManager.Entry entry = mEntry;
+		if (entry != null)
+			entry.mManager.release(entry);
+	}
+}
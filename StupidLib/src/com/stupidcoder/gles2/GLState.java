@@ -0,0 +1,372 @@
+/**
+ * Remembers the OpenGL state set through it and skips calls that wouldn't
+ * change anything, like binding the program or buffer that is already bound.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import android.opengl.GLES20;
+
+public class GLState {
+	private static final int MAX_TEXTURE_UNITS = 16;
+	private static final int UNKNOWN = -1;
+
+	// The capabilities whose enable bits are tracked, by bit number
+	private static final int[] CAPABILITIES = { GLES20.GL_CULL_FACE, GLES20.GL_POLYGON_OFFSET_FILL,
+			GLES20.GL_DEPTH_TEST, GLES20.GL_BLEND, GLES20.GL_SCISSOR_TEST, GLES20.GL_STENCIL_TEST, GLES20.GL_DITHER };
+
+	/**
+	 * A state that doesn't track anything and issues every call, for drawing
+	 * without a scene.
+	 */
+	static final GLState UNTRACKED = new GLState(false);
+
+	private boolean mTracking;
+	private int mProgram;
+	private int mArrayBuffer, mElementBuffer;
+	private int mActiveTexture;
+	private int[] mTextures;
+	private int mEnabledKnown, mEnabled;
+	private int mCullFace, mFrontFace, mDepthFunc;
+	private int mDepthMask, mColorMask;
+	private int[] mViewport;
+	private boolean mPolygonOffsetKnown;
+	private float mPolygonOffsetFactor, mPolygonOffsetUnits;
+	private int mIssued, mSkipped;
+	private FrameStats mStats;
+	private ResourceManager mResources;
+	private ChangeTracker mTracker;
+	private int[] mNames;
+
+	/**
+	 * Creates a new state tracker that doesn't know anything about the
+	 * current state yet.
+	 */
+	public GLState() {
+		this(true);
+	}
+
+	private GLState(boolean pTracking) {
+		mTracking = pTracking;
+		mTextures = new int[MAX_TEXTURE_UNITS];
+		mViewport = new int[4];
+		mNames = new int[1];
+		reset();
+	}
+
+	/**
+	 * Forgets all remembered state, so that the next call of each kind gets
+	 * issued. Must be called when the GL context has been recreated, or after
+	 * other code has changed the state directly.
+	 */
+	public void reset() {
+		mProgram = UNKNOWN;
+		mArrayBuffer = mElementBuffer = UNKNOWN;
+		mActiveTexture = UNKNOWN;
+		for (int i = 0; i < MAX_TEXTURE_UNITS; i++)
+			mTextures[i] = UNKNOWN;
+		mEnabledKnown = mEnabled = 0;
+		mCullFace = mFrontFace = mDepthFunc = UNKNOWN;
+		mDepthMask = mColorMask = UNKNOWN;
+		mPolygonOffsetKnown = false;
+		mViewport[2] = UNKNOWN;
+	}
+
+	// Counts the call and returns true if it has to be issued
+	boolean changes(boolean pChanges) {
+		if (pChanges || !mTracking) {
+			mIssued++;
+			return true;
+		}
+		mSkipped++;
+		return false;
+	}
+
+	public void useProgram(int pProgram) {
+		if (changes(pProgram != mProgram)) {
+			GL.get().glUseProgram(pProgram);
+			mProgram = pProgram;
+			count(FrameStats.COUNTER_PROGRAM_SWITCHES, 1);
+		}
+	}
+
+	/**
+	 * Binds a buffer to GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+	 */
+	public void bindBuffer(int pTarget, int pBuffer) {
+		if (pTarget == GLES20.GL_ARRAY_BUFFER) {
+			if (changes(pBuffer != mArrayBuffer)) {
+				GL.get().glBindBuffer(pTarget, pBuffer);
+				mArrayBuffer = pBuffer;
+			}
+		}
+		else if (pTarget == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+			if (changes(pBuffer != mElementBuffer)) {
+				GL.get().glBindBuffer(pTarget, pBuffer);
+				mElementBuffer = pBuffer;
+			}
+		}
+		else if (changes(true))
+			GL.get().glBindBuffer(pTarget, pBuffer);
+	}
+
+	/**
+	 * Selects the texture unit that following texture calls refer to.
+	 *
+	 * @param pUnit
+	 *            The number of the texture unit, starting at 0.
+	 */
+	public void activeTexture(int pUnit) {
+		if (changes(pUnit != mActiveTexture)) {
+			GL.get().glActiveTexture(GLES20.GL_TEXTURE0 + pUnit);
+			mActiveTexture = pUnit;
+		}
+	}
+
+	public int getActiveTexture() {
+		return mActiveTexture == UNKNOWN ? 0 : mActiveTexture;
+	}
+
+	/**
+	 * Binds a 2D texture to a texture unit, selecting the unit only if the
+	 * binding changes.
+	 *
+	 * @param pUnit
+	 *            The number of the texture unit, starting at 0.
+	 * @param pTexture
+	 *            The texture name.
+	 */
+	public void bindTexture(int pUnit, int pTexture) {
+		boolean known = pUnit < MAX_TEXTURE_UNITS;
+		if (known && mTextures[pUnit] == pTexture && mTracking) {
+			mSkipped++;
+			return;
+		}
+		activeTexture(pUnit);
+		changes(true);
+		GL.get().glBindTexture(GLES20.GL_TEXTURE_2D, pTexture);
+		count(FrameStats.COUNTER_TEXTURE_BINDS, 1);
+		if (known)
+			mTextures[pUnit] = pTexture;
+	}
+
+	/**
+	 * Deletes a buffer and forgets it if it is bound, as GL unbinds deleted
+	 * objects and may hand out the same name again.
+	 */
+	public void deleteBuffer(int pBuffer) {
+		mNames[0] = pBuffer;
+		GL.get().glDeleteBuffers(1, mNames, 0);
+		if (mArrayBuffer == pBuffer)
+			mArrayBuffer = UNKNOWN;
+		if (mElementBuffer == pBuffer)
+			mElementBuffer = UNKNOWN;
+	}
+
+	/**
+	 * Deletes a 2D texture and forgets it on every unit it is bound to.
+	 */
+	public void deleteTexture(int pTexture) {
+		mNames[0] = pTexture;
+		GL.get().glDeleteTextures(1, mNames, 0);
+		for (int i = 0; i < MAX_TEXTURE_UNITS; i++)
+			if (mTextures[i] == pTexture)
+				mTextures[i] = UNKNOWN;
+	}
+
+	/**
+	 * Deletes a program and forgets it if it is in use.
+	 */
+	public void deleteProgram(int pProgram) {
+		GL.get().glDeleteProgram(pProgram);
+		if (mProgram == pProgram)
+			mProgram = UNKNOWN;
+	}
+
+	public void enable(int pCapability) {
+		setEnabled(pCapability, true);
+	}
+
+	public void disable(int pCapability) {
+		setEnabled(pCapability, false);
+	}
+
+	public void setEnabled(int pCapability, boolean pEnabled) {
+		int bit = 0;
+		while (bit < CAPABILITIES.length && CAPABILITIES[bit] != pCapability)
+			bit++;
+		int mask = bit < CAPABILITIES.length ? 1 << bit : 0;
+		boolean known = (mEnabledKnown & mask) != 0;
+		if (!changes(mask == 0 || !known || ((mEnabled & mask) != 0) != pEnabled))
+			return;
+
+		if (pEnabled) {
+			GL.get().glEnable(pCapability);
+			mEnabled |= mask;
+		}
+		else {
+			GL.get().glDisable(pCapability);
+			mEnabled &= ~mask;
+		}
+		mEnabledKnown |= mask;
+	}
+
+	public void cullFace(int pMode) {
+		if (changes(pMode != mCullFace)) {
+			GL.get().glCullFace(pMode);
+			mCullFace = pMode;
+		}
+	}
+
+	public void frontFace(int pMode) {
+		if (changes(pMode != mFrontFace)) {
+			GL.get().glFrontFace(pMode);
+			mFrontFace = pMode;
+		}
+	}
+
+	public void depthFunc(int pFunction) {
+		if (changes(pFunction != mDepthFunc)) {
+			GL.get().glDepthFunc(pFunction);
+			mDepthFunc = pFunction;
+		}
+	}
+
+	public void depthMask(boolean pWrite) {
+		int mask = pWrite ? 1 : 0;
+		if (changes(mask != mDepthMask)) {
+			GL.get().glDepthMask(pWrite);
+			mDepthMask = mask;
+		}
+	}
+
+	public void colorMask(boolean pRed, boolean pGreen, boolean pBlue, boolean pAlpha) {
+		int mask = (pRed ? 1 : 0) | (pGreen ? 2 : 0) | (pBlue ? 4 : 0) | (pAlpha ? 8 : 0);
+		if (changes(mask != mColorMask)) {
+			GL.get().glColorMask(pRed, pGreen, pBlue, pAlpha);
+			mColorMask = mask;
+		}
+	}
+
+	public void polygonOffset(float pFactor, float pUnits) {
+		if (changes(!mPolygonOffsetKnown || pFactor != mPolygonOffsetFactor || pUnits != mPolygonOffsetUnits)) {
+			GL.get().glPolygonOffset(pFactor, pUnits);
+			mPolygonOffsetFactor = pFactor;
+			mPolygonOffsetUnits = pUnits;
+			mPolygonOffsetKnown = true;
+		}
+	}
+
+	public void viewport(int pX, int pY, int pWidth, int pHeight) {
+		if (changes(pX != mViewport[0] || pY != mViewport[1] || pWidth != mViewport[2] || pHeight != mViewport[3])) {
+			GL.get().glViewport(pX, pY, pWidth, pHeight);
+			mViewport[0] = pX;
+			mViewport[1] = pY;
+			mViewport[2] = pWidth;
+			mViewport[3] = pHeight;
+		}
+	}
+
+	/**
+	 * Gets the number of GL calls issued since the last reset of the
+	 * counters.
+	 */
+	public int getNumberOfIssuedCalls() {
+		return mIssued;
+	}
+
+	/**
+	 * Gets the number of GL calls skipped because they wouldn't have changed
+	 * anything, since the last reset of the counters.
+	 */
+	public int getNumberOfSkippedCalls() {
+		return mSkipped;
+	}
+
+	public void resetCounters() {
+		mIssued = mSkipped = 0;
+	}
+
+	/**
+	 * Sets the statistics that the calls made through this state get
+	 * counted in, or null to count nothing.
+	 */
+	void setFrameStats(FrameStats pStats) {
+		mStats = pStats;
+	}
+
+	FrameStats getFrameStats() {
+		return mStats;
+	}
+
+	/**
+	 * Sets the manager that the resources drawn through this state get
+	 * registered with, or null to not manage them.
+	 */
+	void setResourceManager(ResourceManager pResources) {
+		mResources = pResources;
+	}
+
+	ResourceManager getResourceManager() {
+		return mResources;
+	}
+
+	/**
+	 * Sets the change tracker that changes to the resources drawn through
+	 * this state get marked with, or null to not track them.
+	 */
+	void setChangeTracker(ChangeTracker pTracker) {
+		mTracker = pTracker;
+	}
+
+	// Called by resources whenever they get drawn, so that their changes
+	// request a frame from the scene drawing them
+	void track(GLResource pResource) {
+		if (mTracker != null && pResource.mTracker != mTracker)
+			pResource.mTracker = mTracker;
+	}
+
+	// Called by resources before creating their GL objects, so that the
+	// objects created for another scene get handed back to it
+	void claim(GLResource pResource) {
+		if (mResources != null)
+			mResources.claim(pResource);
+	}
+
+	// Called by resources after creating or re-uploading their GL objects
+	void uploaded(GLResource pResource, long pSize) {
+		if (mResources != null)
+			mResources.uploaded(pResource, pSize);
+	}
+
+	// Called by resources whenever they get drawn
+	void used(GLResource pResource) {
+		if (mResources != null)
+			mResources.used(pResource);
+	}
+
+	void count(int pCounter, long pAmount) {
+		if (mStats != null)
+			mStats.count(pCounter, pAmount);
+	}
+
+	void countDraw(int pTriangles) {
+		if (mStats != null) {
+			mStats.count(FrameStats.COUNTER_DRAW_CALLS, 1);
+			mStats.count(FrameStats.COUNTER_TRIANGLES, pTriangles);
+		}
+	}
+
+	void beginPhase(int pPhase) {
+		if (mStats != null)
+			mStats.begin(pPhase);
+	}
+
+	void endPhase(int pPhase) {
+		if (mStats != null)
+			mStats.end(pPhase);
+	}
+}
@@ -14,13 +14,16 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.ArrayList;
 
 import android.content.res.Resources;
 import android.opengl.GLES20;
+import android.util.Log;
 
-public class Geometry {
+public class Geometry extends GLResource {
 	static private class BoundingBox {
 		public float[] mMax;
 		public float[] mMin;
@@ -54,8 +57,8 @@ public class Geometry {
 				VertexAttribute attribute = mAttributes.get(i);
 				int location = pShader.getAttributeLocation(attribute.mName);
 				if (location != -1) {
-					GLES20.glEnableVertexAttribArray(location);
-					GLES20.glVertexAttribPointer(location, attribute.mSize,
+					GL.get().glEnableVertexAttribArray(location);
+					GL.get().glVertexAttribPointer(location, attribute.mSize,
 							GLES20.GL_FLOAT, false, mSize * 4,
 							attribute.mOffset * 4);
 				}
@@ -116,6 +119,20 @@ public class Geometry {
 		protected boolean mWireframe;
 		protected float mOffset;
 		protected boolean mTwoSided;
+		protected int[] mRanges;
+		protected int mNumberOfRanges;
+		protected int mStripFirstIndex, mStripIndexCount;
+		protected int mInstanceFirstIndex;
+		protected int mLayer;
+		private int mTextureKey;
+		private boolean mTextureKeyValid;
+		// The parameters and textures resolved to uniform handles of the
+		// shader, so drawing doesn't look them up by name
+		private int[] mParameterHandles, mTextureHandles;
+		private Shader.ShaderParameter[] mParameterValues;
+		private Texture[] mTextureValues;
+		private int mNumberOfParameters, mNumberOfTextures;
+		private boolean mHandlesValid;
 		
 		public Pass()
 		{
@@ -126,15 +143,63 @@ public class Geometry {
 			mWireframe = false;
 			mOffset = 0.0f;
 			mTwoSided = false;
+			mRanges = null;
+			mNumberOfRanges = 0;
+			mStripFirstIndex = mStripIndexCount = 0;
+			mInstanceFirstIndex = 0;
+			mLayer = 0;
+			mTextureKeyValid = false;
+			mHandlesValid = false;
+		}
+
+		/**
+		 * Checks if this pass renders exactly like the given pass, so that the
+		 * triangles of both can be drawn with the same draw call.
+		 * 
+		 * @param pPass
+		 *            The pass to compare with.
+		 * @return True if shader, textures, parameters and render states match.
+		 */
+		public boolean isBatchCompatible(Pass pPass) {
+			if (mShader != pPass.mShader || mLayer != pPass.mLayer || mWireframe != pPass.mWireframe || mOffset != pPass.mOffset
+					|| mTwoSided != pPass.mTwoSided || !mTextures.equals(pPass.mTextures)
+					|| mShaderParameters.size() != pPass.mShaderParameters.size())
+				return false;
+
+			Iterator<String> keys = mShaderParameters.keySet().iterator();
+			while (keys.hasNext()) {
+				String name = keys.next();
+				Shader.ShaderParameter parameter = mShaderParameters.get(name);
+				Shader.ShaderParameter otherParameter = pPass.mShaderParameters.get(name);
+				if (otherParameter == null || parameter.count != otherParameter.count
+						|| !Arrays.equals(parameter.values, otherParameter.values))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Replaces the shader of this pass, keeping its parameters, textures
+		 * and render states.
+		 */
+		public Pass setShader(Shader pShader) {
+			mShader = pShader;
+			mHandlesValid = false;
+			markChanged();
+			return this;
 		}
 
 		public Pass clearShaderParameters() {
 			mShaderParameters.clear();
+			mHandlesValid = false;
+			markChanged();
 			return this;
 		}
 
 		public Pass removeShaderParameter(String pName) {
 			mShaderParameters.remove(pName);
+			mHandlesValid = false;
+			markChanged();
 			return this;
 		}
 
@@ -144,57 +209,181 @@ public class Geometry {
 
 		public Pass setShaderParameter(String pName, float[] pValues) {
 			mShaderParameters.put(pName, new Shader.ShaderParameter(1, pValues));
+			mHandlesValid = false;
+			markChanged();
 			return this;
 		}
 
 		public Pass setShaderParameter(String pName, int pCount, float[] pValues) {
 			mShaderParameters.put(pName, new Shader.ShaderParameter(pCount, pValues));
+			mHandlesValid = false;
+			markChanged();
 			return this;
 		}
 		
+		/**
+		 * Sets a parameter to a shared object, whose values can be modified
+		 * in place as long as every change gets marked with its markChanged
+		 * method.
+		 */
+		public Pass setShaderParameter(String pName, Shader.ShaderParameter pParameter) {
+			pParameter.mShared = true;
+			pParameter.mOwner = Geometry.this;
+			mShaderParameters.put(pName, pParameter);
+			mHandlesValid = false;
+			markChanged();
+			return this;
+		}
+
 		public Pass setTexture(String pName, Texture pTexture) {
 			mTextures.put(pName, pTexture);
+			mTextureKeyValid = false;
+			mHandlesValid = false;
+			markChanged();
+			return this;
+		}
+
+		/**
+		 * Gets a number identifying the set of textures used by this pass.
+		 * 
+		 * @return 0 if the pass uses no textures. Passes with the same
+		 *         textures get the same number.
+		 */
+		int getTextureKey() {
+			if (!mTextureKeyValid) {
+				mTextureKey = 0;
+				Iterator<Texture> textures = mTextures.values().iterator();
+				while (textures.hasNext())
+					mTextureKey += textures.next().getId() * 0x9E3779B1;
+				mTextureKeyValid = true;
+			}
+			return mTextureKey;
+		}
+
+		// Looks up the handles of the parameters and textures once after
+		// they have changed
+		void resolveHandles() {
+			if (mHandlesValid)
+				return;
+			mNumberOfParameters = mShaderParameters.size();
+			if (mParameterHandles == null || mParameterHandles.length < mNumberOfParameters) {
+				mParameterHandles = new int[mNumberOfParameters];
+				mParameterValues = new Shader.ShaderParameter[mNumberOfParameters];
+			}
+			int next = 0;
+			Iterator<String> keys = mShaderParameters.keySet().iterator();
+			while (keys.hasNext()) {
+				String name = keys.next();
+				mParameterHandles[next] = mShader.uniform(name);
+				mParameterValues[next++] = mShaderParameters.get(name);
+			}
+
+			mNumberOfTextures = mTextures.size();
+			if (mTextureHandles == null || mTextureHandles.length < mNumberOfTextures) {
+				mTextureHandles = new int[mNumberOfTextures];
+				mTextureValues = new Texture[mNumberOfTextures];
+			}
+			next = 0;
+			keys = mTextures.keySet().iterator();
+			while (keys.hasNext()) {
+				String name = keys.next();
+				mTextureHandles[next] = mShader.uniform(name);
+				mTextureValues[next++] = mTextures.get(name);
+			}
+			mHandlesValid = true;
+		}
+
+		public int getLayer() {
+			return mLayer;
+		}
+
+		/**
+		 * Sets the layer of this pass. A scene draws all passes of a lower
+		 * layer before any pass of a higher layer, including instanced and
+		 * statically batched ones, e.g. to draw overlays after the rest of
+		 * the scene. Within a layer the passes are sorted by state and
+		 * roughly front to back, so the layers can't order blended passes
+		 * by depth.
+		 * 
+		 * @param pLayer
+		 *            The layer, from 0 to RenderQueue.MAX_LAYER.
+		 */
+		public Pass setLayer(int pLayer) {
+			mLayer = Math.max(0, Math.min(RenderQueue.MAX_LAYER, pLayer));
+			markChanged();
 			return this;
 		}
 
 		public Pass setWireframe(boolean pWireframe) {
 			mWireframe = pWireframe;
+			mInstanceBufferedGeneration = 0;
+			markChanged();
 			return this;
 		}
 
 		public Pass setOffset(float pOffset) {
 			mOffset = pOffset;
+			markChanged();
 			return this;
 		}
 
 		public Pass setTwoSided(boolean pTwoSided) {
 			mTwoSided = pTwoSided;
+			markChanged();
 			return this;
 		}
+
+		/**
+		 * Checks if this pass gets drawn as a triangle strip.
+		 * 
+		 * @return True if stripify has created a strip for this pass.
+		 */
+		public boolean isStripified() {
+			return mStripIndexCount > 0;
+		}
 	}
 	
 	private BoundingBox mExtents;
+	private boolean mExtentsValid;
+	private int mBoundsVersion;
 	private int mIndexBuffer;
 	private int[] mIndices;
-	private long mLastBuffered;
+	private int[] mStripIndices;
+	private int mBufferedGeneration;
 	private String mName;
 	private int mVertexBuffer;
 	private float[] mVertexData;
 	private VertexFormat mVertexFormat;
 	private Pass[] mPasses;
+	private int mInstanceVertexBuffer, mInstanceIndexBuffer;
+	private int mInstanceBufferedGeneration;
+	// The surfaces the buffer names were created on, and the uploaded sizes
+	private int mBufferGeneration, mInstanceBufferGeneration;
+	private long mBufferSize, mInstanceBufferSize;
+	private VertexFormat mInstanceFormat;
+	private float[] mInstanceMatrix;
+	private int mId;
 	
 	/**
 	 * Creates a new empty geometry.
 	 */
 	public Geometry() {
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
 		mVertexData = new float[0];
 		mIndices = new int[0];
+		mStripIndices = new int[0];
 		mVertexFormat = new VertexFormat();
 		mExtents = new BoundingBox();
+		mExtentsValid = false;
+		mBoundsVersion = 0;
 		mVertexBuffer = -1;
 		mIndexBuffer = -1;
 		mPasses = new Pass[0];
+		mInstanceVertexBuffer = -1;
+		mInstanceIndexBuffer = -1;
+		mInstanceFormat = new VertexFormat();
+		mInstanceMatrix = new float[16];
+		mId = RenderQueue.nextId();
 	}
 	
 	public Pass addPass(Shader pShader)
@@ -203,6 +392,7 @@ public class Geometry {
 		pass.mShader = pShader;
 		pass.mIndexCount = mIndices.length;
 		addPass(pass);
+		markChanged();
 		return pass;
 	}
 
@@ -213,6 +403,7 @@ public class Geometry {
 		pass.mFirstIndex = pFirstTriangle * 3;
 		pass.mIndexCount = pNumberOfTriangles * 3;
 		addPass(pass);
+		markChanged();
 		return pass;
 	}
 	
@@ -232,6 +423,37 @@ public class Geometry {
 	{
 		return mIndices.length / 3;
 	}
+
+	public int getNumberOfVertices()
+	{
+		int vertexSize = mVertexFormat.getSize();
+		return vertexSize > 0 ? mVertexData.length / vertexSize : 0;
+	}
+
+	public int getVertexSize()
+	{
+		return mVertexFormat.getSize();
+	}
+
+	public int getVertexAttributeOffset(String pAttribute)
+	{
+		return mVertexFormat.getAttributeOffset(pAttribute);
+	}
+
+	int getId()
+	{
+		return mId;
+	}
+
+	float[] getVertexData()
+	{
+		return mVertexData;
+	}
+
+	int[] getIndexData()
+	{
+		return mIndices;
+	}
 	
 	private void addPass(Pass pPass)
 	{
@@ -240,31 +462,160 @@ public class Geometry {
 			newPasses[i] = mPasses[i];
 		newPasses[mPasses.length] = pPass;
 		mPasses = newPasses;
+		mInstanceBufferedGeneration = 0;
 	}
 
-	private void bufferIfNeeded(long pSurfaceCreationTime) {
-		if (mLastBuffered >= pSurfaceCreationTime)
+	private void bufferIfNeeded(int pSurfaceGeneration, GLState pState) {
+		pState.track(this);
+		if (mBufferedGeneration >= pSurfaceGeneration) {
+			pState.used(this);
 			return;
+		}
 
 		if (mVertexFormat.getSize() <= 0 || mVertexData.length < mVertexFormat.mSize || mIndices.length < 3)
 			return;
+		pState.claim(this);
 
-		int[] buffers = new int[2];
-		GLES20.glGenBuffers(2, buffers, 0);
-		mVertexBuffer = buffers[0];
-		mIndexBuffer = buffers[1];
+		// Uploading again on the same surface replaces the data of the
+		// existing buffers
+		if (mBufferGeneration != pSurfaceGeneration) {
+			int[] buffers = new int[2];
+			GL.get().glGenBuffers(2, buffers, 0);
+			mVertexBuffer = buffers[0];
+			mIndexBuffer = buffers[1];
+			mBufferGeneration = pSurfaceGeneration;
+		}
 
 		FloatBuffer vertexData = ByteBuffer.allocateDirect(mVertexData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
 		vertexData.put(mVertexData);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
-		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexData.length * 4, vertexData.position(0), GLES20.GL_STATIC_DRAW);
+		pState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+		GL.get().glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexData.length * 4, vertexData.position(0), GLES20.GL_STATIC_DRAW);
+		pState.count(FrameStats.COUNTER_UPLOAD_BYTES, mVertexData.length * 4);
 
-		IntBuffer indices = ByteBuffer.allocateDirect(mIndices.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int numberOfIndices = mIndices.length + mStripIndices.length;
+		IntBuffer indices = ByteBuffer.allocateDirect(numberOfIndices * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
 		indices.put(mIndices);
-		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
-		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndices.length * 4, indices.position(0), GLES20.GL_STATIC_DRAW);
+		indices.put(mStripIndices);
+		pState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
+		GL.get().glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, numberOfIndices * 4, indices.position(0), GLES20.GL_STATIC_DRAW);
+		pState.count(FrameStats.COUNTER_UPLOAD_BYTES, numberOfIndices * 4);
 
-		mLastBuffered = Tools.currentTime();
+		mBufferedGeneration = pSurfaceGeneration;
+		mBufferSize = (mVertexData.length + numberOfIndices) * 4L;
+		pState.uploaded(this, mBufferSize + mInstanceBufferSize);
+	}
+
+	// Builds copies of the vertices, each tagged with its copy number in the
+	// a_instance attribute, and the indices of all instancing passes repeated
+	// once per copy, so one draw call can render several instances
+	private void bufferInstancesIfNeeded(int pSurfaceGeneration, GLState pState) {
+		if (mInstanceBufferedGeneration >= pSurfaceGeneration)
+			return;
+		pState.claim(this);
+
+		int copies = 0;
+		int numberOfIndices = 0;
+		for (int i = 0 ; i < mPasses.length ; i++) {
+			if (canInstance(mPasses[i])) {
+				copies = Math.max(copies, mPasses[i].mShader.getMaxInstances());
+				numberOfIndices += mPasses[i].mIndexCount;
+			}
+		}
+
+		int vertexSize = mVertexFormat.getSize();
+		int numberOfVertices = getNumberOfVertices();
+		float[] vertexData = new float[copies * numberOfVertices * (vertexSize + 1)];
+		int next = 0;
+		for (int copy = 0 ; copy < copies ; copy++) {
+			for (int i = 0 ; i < numberOfVertices ; i++) {
+				System.arraycopy(mVertexData, i * vertexSize, vertexData, next, vertexSize);
+				next += vertexSize;
+				vertexData[next++] = copy;
+			}
+		}
+
+		int[] indices = new int[copies * numberOfIndices];
+		next = 0;
+		for (int i = 0 ; i < mPasses.length ; i++) {
+			Pass pass = mPasses[i];
+			if (!canInstance(pass))
+				continue;
+			pass.mInstanceFirstIndex = next;
+			for (int copy = 0 ; copy < copies ; copy++)
+				for (int j = 0 ; j < pass.mIndexCount ; j++)
+					indices[next++] = mIndices[pass.mFirstIndex + j] + copy * numberOfVertices;
+		}
+
+		if (mInstanceBufferGeneration != pSurfaceGeneration) {
+			int[] buffers = new int[2];
+			GL.get().glGenBuffers(2, buffers, 0);
+			mInstanceVertexBuffer = buffers[0];
+			mInstanceIndexBuffer = buffers[1];
+			mInstanceBufferGeneration = pSurfaceGeneration;
+		}
+
+		FloatBuffer vertexBuffer = ByteBuffer.allocateDirect(vertexData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		vertexBuffer.put(vertexData);
+		pState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceVertexBuffer);
+		GL.get().glBufferData(GLES20.GL_ARRAY_BUFFER, vertexData.length * 4, vertexBuffer.position(0), GLES20.GL_STATIC_DRAW);
+		pState.count(FrameStats.COUNTER_UPLOAD_BYTES, vertexData.length * 4);
+
+		IntBuffer indexBuffer = ByteBuffer.allocateDirect(indices.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		indexBuffer.put(indices);
+		pState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mInstanceIndexBuffer);
+		GL.get().glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.length * 4, indexBuffer.position(0), GLES20.GL_STATIC_DRAW);
+		pState.count(FrameStats.COUNTER_UPLOAD_BYTES, indices.length * 4);
+
+		mInstanceFormat.setFormat(mVertexFormat.getFormat() + ",a_instance:1");
+		mInstanceBufferedGeneration = pSurfaceGeneration;
+		mInstanceBufferSize = (vertexData.length + indices.length) * 4L;
+		pState.uploaded(this, mBufferSize + mInstanceBufferSize);
+	}
+
+	@Override
+	void deleteObjects(GLState pState, int pSurfaceGeneration) {
+		if (mBufferGeneration == pSurfaceGeneration) {
+			pState.deleteBuffer(mVertexBuffer);
+			pState.deleteBuffer(mIndexBuffer);
+		}
+		if (mInstanceBufferGeneration == pSurfaceGeneration) {
+			pState.deleteBuffer(mInstanceVertexBuffer);
+			pState.deleteBuffer(mInstanceIndexBuffer);
+		}
+		forgetObjects();
+	}
+
+	@Override
+	void orphanObjects(ResourceManager.Orphan pOrphan) {
+		pOrphan.addBuffer(mVertexBuffer, mBufferGeneration);
+		pOrphan.addBuffer(mIndexBuffer, mBufferGeneration);
+		pOrphan.addBuffer(mInstanceVertexBuffer, mInstanceBufferGeneration);
+		pOrphan.addBuffer(mInstanceIndexBuffer, mInstanceBufferGeneration);
+		forgetObjects();
+	}
+
+	private void forgetObjects() {
+		mVertexBuffer = mIndexBuffer = mInstanceVertexBuffer = mInstanceIndexBuffer = -1;
+		mBufferGeneration = mInstanceBufferGeneration = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		mBufferSize = mInstanceBufferSize = 0;
+	}
+
+	private boolean canInstance(Pass pPass) {
+		return pPass.mShader.getMaxInstances() > 1 && !pPass.mWireframe && pPass.mRanges == null;
+	}
+
+	/**
+	 * Checks if any render pass of this geometry uses a shader that can draw
+	 * several instances with one draw call.
+	 * 
+	 * @return True if drawInstances can save draw calls for this geometry.
+	 */
+	public boolean supportsInstancing() {
+		for (int i = 0 ; i < mPasses.length ; i++)
+			if (canInstance(mPasses[i]))
+				return true;
+		return false;
 	}
 
 	/**
@@ -274,51 +625,255 @@ public class Geometry {
 	 *            The camera to use the matrices from.
 	 * @param pMatrix
 	 * 			  The model matrix to use.
-	 * @param pSurfaceCreationTime
-	 *            The time at which the GL surface has been created. This value
-	 *            is used to determine if the vertex and index buffers have to
-	 *            be recreated after losing and reacquiring the GL surface.
+	 * @param pSurfaceGeneration
+	 *            The generation of the GL surface, counting up every time a
+	 *            surface gets created. This value is used to determine if the
+	 *            vertex and index buffers have to be recreated after losing
+	 *            and reacquiring the GL surface.
 	 */
-	public void draw(Camera pCamera, float[] pMatrix, long pSurfaceCreationTime) {
-		bufferIfNeeded(pSurfaceCreationTime);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
-		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
+	public void draw(Camera pCamera, float[] pMatrix, int pSurfaceGeneration) {
+		draw(pCamera, pMatrix, pSurfaceGeneration, GLState.UNTRACKED);
+	}
+
+	/**
+	 * Draws the geometry using the specified camera, skipping state changes
+	 * that the given state tracker knows to be redundant.
+	 * 
+	 * @param pState
+	 *            The state tracker of the current GL context.
+	 */
+	public void draw(Camera pCamera, float[] pMatrix, int pSurfaceGeneration, GLState pState) {
+		bufferIfNeeded(pSurfaceGeneration, pState);
+		pState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+		pState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
 
 		for (int i = 0 ; i < mPasses.length ; i++)
 		{
 			Pass pass = mPasses[i];
-			
-			pass.mShader.setShaderParameter("u_projection", pCamera.getProjection());
-			pass.mShader.setShaderParameter("u_view", pCamera.getView());
-			pass.mShader.setShaderParameter("u_model", pMatrix);
-			pass.mShader.use(pSurfaceCreationTime);
-			pass.mShader.setUniforms(pass.mShaderParameters);
-			pass.mShader.setTextures(pass.mTextures, pSurfaceCreationTime);
-
+			usePass(pass, pCamera, pMatrix, pSurfaceGeneration, pState);
 			mVertexFormat.bindToShader(pass.mShader);
+			disableInstancing(pass.mShader, pMatrix, 0);
+			drawPass(pass, pState);
+		}
+	}
 
-			if (!pass.mTwoSided) {
-				GLES20.glEnable(GLES20.GL_CULL_FACE);
-				GLES20.glCullFace(GLES20.GL_BACK);
-			}
-			else
-				GLES20.glDisable(GLES20.GL_CULL_FACE);
-			
-			if (pass.mOffset != 0.0f) {
-				GLES20.glEnable(GLES20.GL_POLYGON_OFFSET_FILL);
-				GLES20.glPolygonOffset(pass.mOffset, pass.mOffset);
-			}
-			else
-				GLES20.glDisable(GLES20.GL_POLYGON_OFFSET_FILL);
-			
-			if (pass.mWireframe) {
-				for (int j = 0 ; j < pass.mIndexCount ; j += 3)
-					GLES20.glDrawElements(GLES20.GL_LINE_LOOP, 3, GLES20.GL_UNSIGNED_INT, (pass.mFirstIndex + j) * 4);
+	/**
+	 * Draws a single render pass of the geometry, as queued by a render
+	 * queue.
+	 */
+	void draw(Pass pPass, Camera pCamera, float[] pMatrix, int pSurfaceGeneration, GLState pState) {
+		bufferIfNeeded(pSurfaceGeneration, pState);
+		pState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+		pState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
+		usePass(pPass, pCamera, pMatrix, pSurfaceGeneration, pState);
+		mVertexFormat.bindToShader(pPass.mShader);
+		disableInstancing(pPass.mShader, pMatrix, 0);
+		drawPass(pPass, pState);
+	}
+
+	/**
+	 * Draws several instances of the geometry. Passes with a shader that
+	 * supports instancing draw as many instances per draw call as the shader
+	 * allows, all other passes draw each instance separately.
+	 * 
+	 * @param pCamera
+	 *            The camera to use the matrices from.
+	 * @param pMatrices
+	 *            The model matrices of the instances, 16 values each.
+	 * @param pNumberOfInstances
+	 *            The number of instances to draw.
+	 * @param pSurfaceGeneration
+	 *            The generation of the GL surface.
+	 */
+	public void drawInstances(Camera pCamera, float[] pMatrices, int pNumberOfInstances, int pSurfaceGeneration) {
+		drawInstances(pCamera, pMatrices, pNumberOfInstances, pSurfaceGeneration, GLState.UNTRACKED);
+	}
+
+	/**
+	 * Draws several instances of the geometry like drawInstances above,
+	 * skipping redundant state changes.
+	 * 
+	 * @param pState
+	 *            The state tracker of the current GL context.
+	 */
+	public void drawInstances(Camera pCamera, float[] pMatrices, int pNumberOfInstances, int pSurfaceGeneration, GLState pState) {
+		drawInstances(pCamera, pMatrices, pNumberOfInstances, -1, pSurfaceGeneration, pState);
+	}
+
+	/**
+	 * Draws several instances of the geometry, but only the passes of one
+	 * layer, so that instances can be drawn in layer order with the render
+	 * queue.
+	 * 
+	 * @param pLayer
+	 *            The layer of the passes to draw, or -1 for all passes.
+	 */
+	void drawInstances(Camera pCamera, float[] pMatrices, int pNumberOfInstances, int pLayer, int pSurfaceGeneration, GLState pState) {
+		if (pLayer >= 0 && !hasLayer(pLayer))
+			return;
+		bufferIfNeeded(pSurfaceGeneration, pState);
+		if (pNumberOfInstances > 1 && supportsInstancing())
+			bufferInstancesIfNeeded(pSurfaceGeneration, pState);
+
+		for (int i = 0 ; i < mPasses.length ; i++)
+		{
+			Pass pass = mPasses[i];
+			if (pLayer >= 0 && pass.mLayer != pLayer)
+				continue;
+
+			if (pNumberOfInstances > 1 && canInstance(pass)) {
+				pState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceVertexBuffer);
+				pState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mInstanceIndexBuffer);
+				System.arraycopy(pMatrices, 0, mInstanceMatrix, 0, 16);
+				usePass(pass, pCamera, mInstanceMatrix, pSurfaceGeneration, pState);
+				mInstanceFormat.bindToShader(pass.mShader);
+
+				int maxInstances = pass.mShader.getMaxInstances();
+				for (int first = 0 ; first < pNumberOfInstances ; first += maxInstances) {
+					int count = Math.min(maxInstances, pNumberOfInstances - first);
+					pass.mShader.setInstanceModels(pMatrices, first, count);
+					GL.get().glDrawElements(GLES20.GL_TRIANGLES, count * pass.mIndexCount, GLES20.GL_UNSIGNED_INT, pass.mInstanceFirstIndex * 4);
+					pState.countDraw(count * pass.mIndexCount / 3);
+				}
 			}
 			else {
-				GLES20.glDrawElements(GLES20.GL_TRIANGLES, pass.mIndexCount, GLES20.GL_UNSIGNED_INT, pass.mFirstIndex * 4);
+				pState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+				pState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
+				for (int j = 0 ; j < pNumberOfInstances ; j++) {
+					System.arraycopy(pMatrices, j * 16, mInstanceMatrix, 0, 16);
+					usePass(pass, pCamera, mInstanceMatrix, pSurfaceGeneration, pState);
+					mVertexFormat.bindToShader(pass.mShader);
+					disableInstancing(pass.mShader, mInstanceMatrix, 0);
+					drawPass(pass, pState);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether any pass of the geometry is in the given layer.
+	 */
+	boolean hasLayer(int pLayer) {
+		for (int i = 0 ; i < mPasses.length ; i++)
+			if (mPasses[i].mLayer == pLayer)
+				return true;
+		return false;
+	}
+
+	private void usePass(Pass pPass, Camera pCamera, float[] pMatrix, int pSurfaceGeneration, GLState pState) {
+		Shader shader = pPass.mShader;
+		shader.setUniformValues(Shader.UNIFORM_PROJECTION, pCamera.getProjection());
+		shader.setUniformValues(Shader.UNIFORM_VIEW, pCamera.getView());
+		shader.setUniformValues(Shader.UNIFORM_MODEL, pMatrix);
+		shader.use(pSurfaceGeneration, pState);
+		pPass.resolveHandles();
+		pState.beginPhase(FrameStats.PHASE_UNIFORMS);
+		shader.setUniforms(pPass.mParameterHandles, pPass.mParameterValues, pPass.mNumberOfParameters, pState);
+		pState.endPhase(FrameStats.PHASE_UNIFORMS);
+		shader.setTextures(pPass.mTextureHandles, pPass.mTextureValues, pPass.mNumberOfTextures, pSurfaceGeneration, pState);
+
+		if (!pPass.mTwoSided) {
+			pState.enable(GLES20.GL_CULL_FACE);
+			pState.cullFace(GLES20.GL_BACK);
+		}
+		else
+			pState.disable(GLES20.GL_CULL_FACE);
+		
+		if (pPass.mOffset != 0.0f) {
+			pState.enable(GLES20.GL_POLYGON_OFFSET_FILL);
+			pState.polygonOffset(pPass.mOffset, pPass.mOffset);
+		}
+		else
+			pState.disable(GLES20.GL_POLYGON_OFFSET_FILL);
+	}
+
+	// Lets an instancing shader draw a single instance from the regular buffers
+	private void disableInstancing(Shader pShader, float[] pMatrices, int pInstance) {
+		if (pShader.getMaxInstances() <= 0)
+			return;
+		pShader.setInstanceModels(pMatrices, pInstance, 1);
+		int location = pShader.getInstanceAttribute();
+		if (location != -1) {
+			GL.get().glDisableVertexAttribArray(location);
+			GL.get().glVertexAttrib1f(location, 0.0f);
+		}
+	}
+
+	private void drawPass(Pass pPass, GLState pState) {
+		if (pPass.mStripIndexCount > 0 && !pPass.mWireframe && pPass.mRanges == null) {
+			GL.get().glDrawElements(GLES20.GL_TRIANGLE_STRIP, pPass.mStripIndexCount, GLES20.GL_UNSIGNED_INT, (mIndices.length + pPass.mStripFirstIndex) * 4);
+			// Counts the restart triangles between the strips too
+			pState.countDraw(pPass.mStripIndexCount - 2);
+		}
+		else if (pPass.mRanges == null)
+			drawRange(pPass, pPass.mFirstIndex, pPass.mIndexCount, pState);
+		else {
+			for (int j = 0 ; j < pPass.mNumberOfRanges ; j++)
+				drawRange(pPass, pPass.mRanges[j * 2], pPass.mRanges[j * 2 + 1], pState);
+		}
+	}
+
+	private void drawRange(Pass pPass, int pFirstIndex, int pIndexCount, GLState pState) {
+		if (pPass.mWireframe) {
+			for (int j = 0 ; j < pIndexCount ; j += 3) {
+				GL.get().glDrawElements(GLES20.GL_LINE_LOOP, 3, GLES20.GL_UNSIGNED_INT, (pFirstIndex + j) * 4);
+				pState.countDraw(1);
 			}
 		}
+		else {
+			GL.get().glDrawElements(GLES20.GL_TRIANGLES, pIndexCount, GLES20.GL_UNSIGNED_INT, pFirstIndex * 4);
+			pState.countDraw(pIndexCount / 3);
+		}
+	}
+
+	/**
+	 * Converts the triangles of all render passes into triangle strips.
+	 * 
+	 * @return The total number of indices drawn per frame after the
+	 *         conversion.
+	 */
+	public int stripify() {
+		int numberOfIndices = 0;
+		for (int i = 0 ; i < mPasses.length ; i++)
+			numberOfIndices += stripify(mPasses[i]);
+		return numberOfIndices;
+	}
+
+	/**
+	 * Converts the triangles of a render pass into a triangle strip which is
+	 * then used for drawing instead of the triangle list. The strip indices
+	 * get stored behind the triangle list in the index buffer, the triangle
+	 * list stays available for wireframe drawing. If the strip doesn't need
+	 * fewer indices than the list, the pass keeps drawing the list.
+	 * 
+	 * @param pPass
+	 *            The render pass to convert.
+	 * @return The number of indices the pass draws after the conversion.
+	 */
+	public int stripify(Pass pPass) {
+		if (pPass.mRanges != null || pPass.mIndexCount < 3)
+			return pPass.mIndexCount;
+
+		int[] strip = new Stripifier().stripify(mIndices, pPass.mFirstIndex, pPass.mIndexCount);
+		Log.i("StupidLib", "Stripified " + pPass.mIndexCount + " triangle list indices into " + strip.length + " strip indices");
+		if (strip.length >= pPass.mIndexCount) {
+			pPass.mStripFirstIndex = pPass.mStripIndexCount = 0;
+			return pPass.mIndexCount;
+		}
+
+		// Reuse the space of an earlier strip if it is at the end of the strip indices
+		int end = mStripIndices.length;
+		if (pPass.mStripIndexCount > 0 && pPass.mStripFirstIndex + pPass.mStripIndexCount == end)
+			end = pPass.mStripFirstIndex;
+		int[] indices = new int[end + strip.length];
+		System.arraycopy(mStripIndices, 0, indices, 0, end);
+		System.arraycopy(strip, 0, indices, end, strip.length);
+		mStripIndices = indices;
+		pPass.mStripFirstIndex = end;
+		pPass.mStripIndexCount = strip.length;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		markChanged();
+		return strip.length;
 	}
 
 	/**
@@ -363,6 +918,8 @@ public class Geometry {
 			mExtents.mMin[i] = input.readFloat();
 			mExtents.mMax[i] = input.readFloat();
 		}
+		mExtentsValid = true;
+		mBoundsVersion++;
 
 		int vertexCount = input.readInt();
 		mVertexData = new float[vertexCount];
@@ -373,9 +930,11 @@ public class Geometry {
 		mIndices = new int[indexCount];
 		for (int i = 0; i < indexCount; i++)
 			mIndices[i] = input.readInt(); // TODO: Optimize
+		clearStrips();
 
 		input.close();
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		markChanged();
 	}
 
 	/**
@@ -392,7 +951,7 @@ public class Geometry {
 		file.write(new byte[] { 'S', 'M', 'F', 0 }); // File identifier
 		file.writeByte(1); // File format version
 		file.writeByte('B'); // Big endian
-		file.writeUTF(mName);
+		file.writeUTF(mName != null ? mName : "");
 		file.writeUTF(mVertexFormat.getFormat());
 		for (int i = 0; i < mVertexFormat.mSize; i++) {
 			file.writeFloat(mExtents.mMin[i]);
@@ -415,7 +974,9 @@ public class Geometry {
 	 */
 	public void setIndices(int[] pValues) {
 		mIndices = pValues.clone();
-		mLastBuffered = 0;
+		clearStrips();
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		markChanged();
 	}
 
 	/**
@@ -428,7 +989,15 @@ public class Geometry {
 		mIndices = new int[pValues.size()];
 		for (int i = 0; i < mIndices.length; i++)
 			mIndices[i] = pValues.get(i).intValue();
-		mLastBuffered = 0;
+		clearStrips();
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		markChanged();
+	}
+
+	private void clearStrips() {
+		mStripIndices = new int[0];
+		for (int i = 0 ; i < mPasses.length ; i++)
+			mPasses[i].mStripFirstIndex = mPasses[i].mStripIndexCount = 0;
 	}
 
 	/**
@@ -440,7 +1009,9 @@ public class Geometry {
 	 */
 	public void setVertexData(float[] pValues) {
 		mVertexData = pValues.clone();
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		invalidateExtents();
+		markChanged();
 	}
 
 	/**
@@ -454,7 +1025,9 @@ public class Geometry {
 		mVertexData = new float[pValues.size()];
 		for (int i = 0; i < mVertexData.length; i++)
 			mVertexData[i] = pValues.get(i).floatValue();
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		invalidateExtents();
+		markChanged();
 	}
 
 	/**
@@ -483,7 +1056,9 @@ public class Geometry {
 				mVertexData[(pFirstVertex + i) * vertexSize + attributeOffset
 						+ j] = pValues.get(i * attributeSize + j);
 
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		invalidateExtents();
+		markChanged();
 	}
 	
 	public float[] getVertexAttribute(String pAttribute, int pIndex) {
@@ -509,12 +1084,34 @@ public class Geometry {
 		return values;
 	}
 	
+	/**
+	 * Recalculates the a_normal attribute of all vertices from the a_position
+	 * attribute and the current indices. The vertex data is modified in place,
+	 * so this can be used on geometry that gets deformed at runtime.
+	 *
+	 * @param pGenerator
+	 *            The normal generator to use. Its crease angle is ignored,
+	 *            since splitting would change the number of vertices.
+	 */
+	public void calculateNormals(NormalGenerator pGenerator) {
+		int positionOffset = mVertexFormat.getAttributeOffset("a_position");
+		int normalOffset = mVertexFormat.getAttributeOffset("a_normal");
+		if (positionOffset == -1 || normalOffset == -1)
+			return;
+		int vertexSize = mVertexFormat.getSize();
+		pGenerator.calculate(mVertexData, vertexSize, positionOffset, mIndices, mVertexData, vertexSize, normalOffset);
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		markChanged();
+	}
+
 	/**
 	 * Removes all vertex data from this geometry.
 	 */
 	public void clearVertexData() {
 		mVertexData = new float[0];
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		invalidateExtents();
+		markChanged();
 	}
 
 	/**
@@ -529,6 +1126,8 @@ public class Geometry {
 		for (int i = 0; i < mVertexData.length; i++)
 			newData[i] = mVertexData[i];
 		mVertexData = newData;
+		invalidateExtents();
+		markChanged();
 	}
 
 	/**
@@ -542,11 +1141,55 @@ public class Geometry {
 	 */
 	public void setVertexFormat(String pFormat) {
 		mVertexFormat.setFormat(pFormat);
-		mLastBuffered = 0;
+		mBufferedGeneration = mInstanceBufferedGeneration = 0;
+		invalidateExtents();
+		markChanged();
+	}
+
+	/**
+	 * Gets the axis aligned bounding box of the a_position attribute of all
+	 * vertices in object space.
+	 * 
+	 * @param pBounds
+	 *            Receives the minimum X, Y, Z and maximum X, Y, Z.
+	 * @return False if the geometry has no vertex positions.
+	 */
+	public boolean getBounds(float[] pBounds) {
+		int positionOffset = mVertexFormat.getAttributeOffset("a_position");
+		if (positionOffset == -1 || mVertexFormat.getAttributeSize("a_position") < 3)
+			return false;
+		if (!mExtentsValid)
+			updateExtents();
+		if (mExtents.mMin.length < positionOffset + 3)
+			return false;
+		for (int i = 0; i < 3; i++) {
+			pBounds[i] = mExtents.mMin[positionOffset + i];
+			pBounds[i + 3] = mExtents.mMax[positionOffset + i];
+		}
+		return true;
+	}
+
+	/**
+	 * Gets a number that changes whenever the vertex data changes, so that
+	 * bounding boxes derived from it can be cached.
+	 */
+	int getBoundsVersion() {
+		return mBoundsVersion;
+	}
+
+	private void invalidateExtents() {
+		mExtentsValid = false;
+		mBoundsVersion++;
 	}
 
 	private void updateExtents() {
 		int vertexSize = mVertexFormat.mSize;
+		mExtentsValid = true;
+		if (vertexSize <= 0 || mVertexData.length < vertexSize) {
+			mExtents.mMin = new float[0];
+			mExtents.mMax = new float[0];
+			return;
+		}
 
 		mExtents.mMin = new float[vertexSize];
 		mExtents.mMax = new float[vertexSize];
@@ -91,7 +91,11 @@ public class GeometryBuilder {
 
 	// ------------------------------------------------------------
 	// Data access
-	
+
+	public int getNumberOfVertices() {
+		return mVertices.size();
+	}
+
 	public ArrayList<Float> getPositions() {
 		ArrayList<Float> positions = new ArrayList<Float>();
 		for (int i = 0 ; i < mVertices.size() ; i++) {
@@ -133,6 +137,49 @@ public class GeometryBuilder {
 		}
 		return allIndices;
 	}
+
+	/**
+	 * Creates a new geometry containing the vertices and indices of this
+	 * builder. Only the CPU side data gets filled in, so this can be called
+	 * from any thread; the GL buffers are created when the geometry gets
+	 * drawn for the first time.
+	 *
+	 * @param pVertexFormat
+	 *            The vertex format of the new geometry. The attributes
+	 *            a_position, a_normal and a_texCoord get filled in if present.
+	 * @return The new geometry, without any render passes.
+	 */
+	public Geometry createGeometry(String pVertexFormat) {
+		Geometry geometry = new Geometry();
+		geometry.setVertexFormat(pVertexFormat);
+
+		int vertexSize = geometry.getVertexSize();
+		int positionOffset = geometry.getVertexAttributeOffset("a_position");
+		int normalOffset = geometry.getVertexAttributeOffset("a_normal");
+		int texCoordOffset = geometry.getVertexAttributeOffset("a_texCoord");
+		float[] vertexData = new float[mVertices.size() * vertexSize];
+		for (int i = 0 ; i < mVertices.size() ; i++) {
+			Vertex vertex = mVertices.get(i);
+			int index = i * vertexSize;
+			if (positionOffset != -1) {
+				vertexData[index + positionOffset + 0] = vertex.pos.x;
+				vertexData[index + positionOffset + 1] = vertex.pos.y;
+				vertexData[index + positionOffset + 2] = vertex.pos.z;
+			}
+			if (normalOffset != -1) {
+				vertexData[index + normalOffset + 0] = vertex.norm.x;
+				vertexData[index + normalOffset + 1] = vertex.norm.y;
+				vertexData[index + normalOffset + 2] = vertex.norm.z;
+			}
+			if (texCoordOffset != -1) {
+				vertexData[index + texCoordOffset + 0] = vertex.u;
+				vertexData[index + texCoordOffset + 1] = vertex.v;
+			}
+		}
+		geometry.setVertexData(vertexData);
+		geometry.setIndices(getIndexArray());
+		return geometry;
+	}
 	
 	// ------------------------------------------------------------
 	// Texture mapping
@@ -187,48 +234,79 @@ public class GeometryBuilder {
 	// Normal vectors
 	
 	public void calculateNormals() {
-		for (int i = 0 ; i < mVertices.size() ; i++)
-		{
-			Vertex vertex = mVertices.get(i);
-			vertex.norm.clear();
-		}
-		
-		ArrayList<Integer> indices = getIndices();
-		int numberOfTriangles = indices.size() / 3;
-		int[] index = new int[3];
-
-		for (int i = 0; i < numberOfTriangles; i++) {
-			// Get the three vertices of each triangle and calculate its edge vectors
-			for (int j = 0; j < 3; j++)
-				index[j] = indices.get(i * 3 + j);
-			Vec3 edge01 = mVertices.get(index[1]).pos.sub(mVertices.get(index[0]).pos);
-			Vec3 edge02 = mVertices.get(index[2]).pos.sub(mVertices.get(index[0]).pos);
-			Vec3 edge12 = mVertices.get(index[2]).pos.sub(mVertices.get(index[1]).pos);
-
-			// Calculate each triangles surface area (using Heron's Formula) and normal vector
-			float a = edge01.length();
-			float b = edge02.length();
-			float c = edge12.length();
-			float s = (a + b + c) / 2.0f;
-			float triangleArea = (float) Math.sqrt(s * (s - a) * (s - b) * (s - c));
-			edge01.normalize();
-			edge02.normalize();
-			Vec3 triangleNormal = edge02.cross(edge01);
-			triangleNormal.normalize();
-
-			// Add that normal vector to each of the three vertices normal
-			// vectors (multiplied by the surface area as a weighting factor)
-			for (int j = 0; j < 3; j++) {
-				Vertex vertex = mVertices.get(index[j]);
-				vertex.norm.x += triangleNormal.x * triangleArea;
-				vertex.norm.y += triangleNormal.y * triangleArea;
-				vertex.norm.z += triangleNormal.z * triangleArea;
+		calculateNormals(new NormalGenerator().setNumberOfWorkers(1));
+	}
+
+	/**
+	 * Calculates smooth normal vectors for all vertices using the given
+	 * generator. If the generator has a crease angle set, vertices on hard
+	 * edges get duplicated first.
+	 *
+	 * @param pGenerator
+	 *            The normal generator to use.
+	 */
+	public void calculateNormals(NormalGenerator pGenerator) {
+		float[] positions = getPositionArray();
+		int[] indices = getIndexArray();
+
+		int[] source = pGenerator.splitCreases(positions, 3, 0, indices);
+		if (source.length != mVertices.size()) {
+			for (int i = mVertices.size(); i < source.length; i++) {
+				Vertex vertex = mVertices.get(source[i]);
+				mVertices.add(new Vertex(vertex.pos, vertex.norm, vertex.u, vertex.v));
 			}
+			setIndexArray(indices);
+			positions = getPositionArray();
 		}
 
-		// Normalize each vertices normal vector
+		float[] normals = new float[positions.length];
+		pGenerator.calculate(positions, 3, 0, indices, normals, 3, 0);
 		for (int i = 0 ; i < mVertices.size() ; i++)
-			mVertices.get(i).norm.normalize();
+			mVertices.get(i).norm.set(normals[i * 3 + 0], normals[i * 3 + 1], normals[i * 3 + 2]);
+	}
+
+	private float[] getPositionArray() {
+		float[] positions = new float[mVertices.size() * 3];
+		for (int i = 0 ; i < mVertices.size() ; i++) {
+			Vec3 position = mVertices.get(i).pos;
+			positions[i * 3 + 0] = position.x;
+			positions[i * 3 + 1] = position.y;
+			positions[i * 3 + 2] = position.z;
+		}
+		return positions;
+	}
+
+	/**
+	 * Gets the indices of all passes in the same order as getIndices, but as a
+	 * primitive array.
+	 * 
+	 * @return The vertex indices of all passes.
+	 */
+	public int[] getIndexArray() {
+		int numberOfIndices = 0;
+		Iterator<ArrayList<Integer>> passes = mIndices.values().iterator();
+		while (passes.hasNext())
+			numberOfIndices += passes.next().size();
+
+		int[] allIndices = new int[numberOfIndices];
+		int next = 0;
+		Iterator<String> keys = mIndices.keySet().iterator();
+		while (keys.hasNext()) {
+			ArrayList<Integer> indices = mIndices.get(keys.next());
+			for (int i = 0 ; i < indices.size() ; i++)
+				allIndices[next++] = indices.get(i);
+		}
+		return allIndices;
+	}
+
+	private void setIndexArray(int[] pIndices) {
+		int next = 0;
+		Iterator<String> keys = mIndices.keySet().iterator();
+		while (keys.hasNext()) {
+			ArrayList<Integer> indices = mIndices.get(keys.next());
+			for (int i = 0 ; i < indices.size() ; i++)
+				indices.set(i, pIndices[next++]);
+		}
 	}
 	
 	// ------------------------------------------------------------
@@ -254,6 +332,101 @@ public class GeometryBuilder {
 		}
 	}
 
+	// ------------------------------------------------------------
+	// Vertex welding
+
+	public int weld() {
+		return weld(0.00001f);
+	}
+
+	/**
+	 * Merges all vertices whose positions, normal vectors and texture
+	 * coordinates are equal within the given tolerance and remaps the indices
+	 * of all render passes accordingly. Candidates are found through a spatial
+	 * hash on the vertex positions, so only vertices in neighbouring cells
+	 * have to be compared.
+	 *
+	 * @param pTolerance
+	 *            The maximum difference per component for two vertices to be
+	 *            considered equal.
+	 * @return The number of vertices that have been removed.
+	 */
+	public int weld(float pTolerance) {
+		int vertexCount = mVertices.size();
+		if (vertexCount == 0)
+			return 0;
+
+		float tolerance = Math.max(0.0f, pTolerance);
+		double cellSize = tolerance > 0.0f ? tolerance * 2.0 : 1.0;
+		int range = tolerance > 0.0f ? 1 : 0;
+
+		// Chained hash table of the unique vertices, stored in plain arrays
+		int bucketCount = Integer.highestOneBit(vertexCount) << 2;
+		int[] buckets = new int[bucketCount];
+		for (int i = 0; i < bucketCount; i++)
+			buckets[i] = -1;
+		int[] next = new int[vertexCount];
+		int[] remap = new int[vertexCount];
+		ArrayList<Vertex> uniqueVertices = new ArrayList<Vertex>(vertexCount);
+
+		for (int i = 0; i < vertexCount; i++) {
+			Vertex vertex = mVertices.get(i);
+			long cellX = (long) Math.floor(vertex.pos.x / cellSize);
+			long cellY = (long) Math.floor(vertex.pos.y / cellSize);
+			long cellZ = (long) Math.floor(vertex.pos.z / cellSize);
+
+			int match = -1;
+			for (long x = cellX - range; x <= cellX + range && match == -1; x++)
+				for (long y = cellY - range; y <= cellY + range && match == -1; y++)
+					for (long z = cellZ - range; z <= cellZ + range && match == -1; z++) {
+						int candidate = buckets[hashCell(x, y, z, bucketCount)];
+						while (candidate != -1) {
+							if (verticesEqual(uniqueVertices.get(candidate), vertex, tolerance)) {
+								match = candidate;
+								break;
+							}
+							candidate = next[candidate];
+						}
+					}
+
+			if (match == -1) {
+				match = uniqueVertices.size();
+				uniqueVertices.add(vertex);
+				int bucket = hashCell(cellX, cellY, cellZ, bucketCount);
+				next[match] = buckets[bucket];
+				buckets[bucket] = match;
+			}
+			remap[i] = match;
+		}
+
+		Iterator<String> keys = mIndices.keySet().iterator();
+		while (keys.hasNext()) {
+			ArrayList<Integer> indices = mIndices.get(keys.next());
+			for (int i = 0; i < indices.size(); i++)
+				indices.set(i, remap[indices.get(i)]);
+		}
+		mVertices = uniqueVertices;
+
+		Log.i("StupidLib", "Welded " + vertexCount + " vertices into " + mVertices.size());
+		return vertexCount - mVertices.size();
+	}
+
+	static private int hashCell(long pX, long pY, long pZ, int pBucketCount) {
+		long hash = pX * 73856093L ^ pY * 19349663L ^ pZ * 83492791L;
+		return (int) (hash ^ (hash >>> 32)) & (pBucketCount - 1);
+	}
+
+	static private boolean verticesEqual(Vertex pA, Vertex pB, float pTolerance) {
+		return Math.abs(pA.pos.x - pB.pos.x) <= pTolerance
+				&& Math.abs(pA.pos.y - pB.pos.y) <= pTolerance
+				&& Math.abs(pA.pos.z - pB.pos.z) <= pTolerance
+				&& Math.abs(pA.norm.x - pB.norm.x) <= pTolerance
+				&& Math.abs(pA.norm.y - pB.norm.y) <= pTolerance
+				&& Math.abs(pA.norm.z - pB.norm.z) <= pTolerance
+				&& Math.abs(pA.u - pB.u) <= pTolerance
+				&& Math.abs(pA.v - pB.v) <= pTolerance;
+	}
+
 	// ------------------------------------------------------------
 	// 2D shapes
 
@@ -0,0 +1,262 @@
+/**
+ * Builds geometry on background threads, so that tesselating large objects
+ * doesn't block the UI or render thread. Only the CPU side data gets created
+ * here; the GL buffers are created on the render thread the first time the
+ * geometry gets drawn.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class GeometryLoader {
+	/**
+	 * A piece of work that fills a geometry builder.
+	 */
+	public interface Job {
+		public void build(GeometryBuilder pBuilder);
+	}
+
+	/**
+	 * Prepares a geometry built from a job before it is handed out, e.g. by
+	 * adding its render passes. Runs on the worker thread, before the future
+	 * is done, so nodes never draw the geometry without its passes.
+	 */
+	public interface Setup {
+		public void setup(Geometry pGeometry);
+	}
+
+	/**
+	 * A group of geometry jobs that can be polled or waited for as a whole.
+	 */
+	public static class Batch {
+		private ArrayList<Future<Geometry>> mFutures;
+
+		public Batch() {
+			mFutures = new ArrayList<Future<Geometry>>();
+		}
+
+		public Future<Geometry> add(Future<Geometry> pFuture) {
+			mFutures.add(pFuture);
+			return pFuture;
+		}
+
+		public int size() {
+			return mFutures.size();
+		}
+
+		public Future<Geometry> get(int pIndex) {
+			return mFutures.get(pIndex);
+		}
+
+		/**
+		 * Gets the number of jobs of this batch that have already finished.
+		 *
+		 * @return The number of finished jobs.
+		 */
+		public int getNumberOfDone() {
+			int done = 0;
+			for (int i = 0; i < mFutures.size(); i++)
+				if (mFutures.get(i).isDone())
+					done++;
+			return done;
+		}
+
+		public boolean isDone() {
+			return getNumberOfDone() == mFutures.size();
+		}
+
+		/**
+		 * Blocks until all jobs of this batch have finished.
+		 *
+		 * @throws RuntimeException
+		 *             if any of the jobs failed.
+		 */
+		public void await() throws RuntimeException {
+			for (int i = 0; i < mFutures.size(); i++)
+				GeometryLoader.get(mFutures.get(i));
+		}
+
+		/**
+		 * Blocks until all jobs of this batch have finished or the timeout
+		 * has elapsed.
+		 *
+		 * @param pTimeout
+		 *            The maximum time to wait in milliseconds.
+		 * @return True if all jobs have finished.
+		 * @throws RuntimeException
+		 *             if any of the jobs failed.
+		 */
+		public boolean await(long pTimeout) throws RuntimeException {
+			long end = System.nanoTime() + pTimeout * 1000000L;
+			try {
+				for (int i = 0; i < mFutures.size(); i++)
+					mFutures.get(i).get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Could not build geometry", e.getCause());
+			}
+			return true;
+		}
+	}
+
+	// Nodes waiting for the geometry attach it in the next frame, so one has
+	// to be requested from their scene once it is done
+	static class Task extends FutureTask<Geometry> {
+		private volatile ChangeTracker mTracker;
+
+		public Task(Callable<Geometry> pJob) {
+			super(pJob);
+			mTracker = null;
+		}
+
+		void setChangeTracker(ChangeTracker pTracker) {
+			if (pTracker == null || pTracker == mTracker)
+				return;
+			mTracker = pTracker;
+			// It may have been done before the tracker was known
+			if (isDone())
+				pTracker.markChanged();
+		}
+
+		@Override
+		protected void done() {
+			ChangeTracker tracker = mTracker;
+			if (tracker != null)
+				tracker.markChanged();
+		}
+	}
+
+	private ExecutorService mExecutor;
+
+	/**
+	 * Creates a new loader with one worker thread per available processor,
+	 * leaving one processor for the UI and render threads.
+	 */
+	public GeometryLoader() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	/**
+	 * Creates a new loader with the given number of worker threads.
+	 *
+	 * @param pNumberOfThreads
+	 *            The number of worker threads.
+	 */
+	public GeometryLoader(int pNumberOfThreads) {
+		mExecutor = Executors.newFixedThreadPool(Math.max(1, pNumberOfThreads), new ThreadFactory() {
+			public Thread newThread(Runnable pRunnable) {
+				Thread thread = new Thread(pRunnable, "GeometryLoader");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs a job that creates a geometry on a worker thread.
+	 *
+	 * @param pJob
+	 *            The job creating the geometry.
+	 * @return The future geometry.
+	 */
+	public Future<Geometry> submit(Callable<Geometry> pJob) {
+		Task task = new Task(pJob);
+		mExecutor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Runs a job that fills a new geometry builder on a worker thread and
+	 * exports the result into a geometry with the given vertex format.
+	 *
+	 * @param pJob
+	 *            The job filling the builder.
+	 * @param pVertexFormat
+	 *            The vertex format of the resulting geometry.
+	 * @return The future geometry, without render passes. Use the variant
+	 *         taking a Setup for geometry that gets attached to a node.
+	 */
+	public Future<Geometry> submit(Job pJob, String pVertexFormat) {
+		return submit(pJob, pVertexFormat, null);
+	}
+
+	/**
+	 * Runs a job like submit above and then lets the setup add the render
+	 * passes, both on the worker thread.
+	 *
+	 * @param pSetup
+	 *            The setup of the finished geometry, or null.
+	 * @return The future geometry, complete once it is done.
+	 */
+	public Future<Geometry> submit(final Job pJob, final String pVertexFormat, final Setup pSetup) {
+		return submit(new Callable<Geometry>() {
+			public Geometry call() {
+				GeometryBuilder builder = new GeometryBuilder();
+				pJob.build(builder);
+				Geometry geometry = builder.createGeometry(pVertexFormat);
+				if (pSetup != null)
+					pSetup.setup(geometry);
+				return geometry;
+			}
+		});
+	}
+
+	/**
+	 * Runs a job like submit and adds it to the given batch.
+	 */
+	public Future<Geometry> submit(Batch pBatch, Job pJob, String pVertexFormat) {
+		return pBatch.add(submit(pJob, pVertexFormat, null));
+	}
+
+	/**
+	 * Runs a job with a setup like submit and adds it to the given batch.
+	 */
+	public Future<Geometry> submit(Batch pBatch, Job pJob, String pVertexFormat, Setup pSetup) {
+		return pBatch.add(submit(pJob, pVertexFormat, pSetup));
+	}
+
+	/**
+	 * Stops the worker threads after all submitted jobs have finished.
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Waits for a future geometry.
+	 *
+	 * @param pFuture
+	 *            The future geometry.
+	 * @return The finished geometry.
+	 * @throws RuntimeException
+	 *             if the job failed or the thread got interrupted.
+	 */
+	static public Geometry get(Future<Geometry> pFuture) throws RuntimeException {
+		try {
+			return pFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for geometry", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not build geometry", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Collects the scene graph nodes that share a geometry during traversal and
+ * draws them together, using pseudo-instancing where the shaders support it.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+public class InstanceRenderer {
+	static private class Instances {
+		public float[] mMatrices;
+		public int mCount;
+
+		public Instances() {
+			mMatrices = new float[16 * 16];
+			mCount = 0;
+		}
+	}
+
+	private ArrayList<Geometry> mGeometries;
+	private HashMap<Geometry, Instances> mInstances;
+	private int mNumberOfInstances;
+
+	public InstanceRenderer() {
+		mGeometries = new ArrayList<Geometry>();
+		mInstances = new HashMap<Geometry, Instances>();
+		mNumberOfInstances = 0;
+	}
+
+	/**
+	 * Queues an instance of a geometry for drawing if the geometry supports
+	 * instancing.
+	 * 
+	 * @param pGeometry
+	 *            The geometry to draw.
+	 * @param pMatrix
+	 *            The model matrix of the instance. It gets copied.
+	 * @return True if the instance has been queued, false if the caller
+	 *         should draw it directly.
+	 */
+	public boolean add(Geometry pGeometry, float[] pMatrix) {
+		if (!pGeometry.supportsInstancing())
+			return false;
+
+		Instances instances = mInstances.get(pGeometry);
+		if (instances == null) {
+			instances = new Instances();
+			mInstances.put(pGeometry, instances);
+		}
+		if (instances.mCount == 0)
+			mGeometries.add(pGeometry);
+		if (instances.mMatrices.length < (instances.mCount + 1) * 16) {
+			float[] grown = new float[instances.mMatrices.length * 2];
+			System.arraycopy(instances.mMatrices, 0, grown, 0, instances.mCount * 16);
+			instances.mMatrices = grown;
+		}
+		System.arraycopy(pMatrix, 0, instances.mMatrices, instances.mCount * 16, 16);
+		instances.mCount++;
+		mNumberOfInstances++;
+		return true;
+	}
+
+	/**
+	 * Draws all queued instances and empties the queue.
+	 */
+	public void flush(Camera pCamera, int pSurfaceGeneration, GLState pState) {
+		draw(pCamera, pSurfaceGeneration, pState);
+		reset();
+	}
+
+	/**
+	 * Draws all queued instances layer by layer, keeping them queued so they
+	 * can be drawn again, e.g. for the second eye in stereo mode.
+	 */
+	public void draw(Camera pCamera, int pSurfaceGeneration, GLState pState) {
+		for (int layer = 0; layer <= RenderQueue.MAX_LAYER; layer++)
+			draw(pCamera, layer, pSurfaceGeneration, pState);
+	}
+
+	/**
+	 * Draws the passes of a single layer of all queued instances.
+	 */
+	void draw(Camera pCamera, int pLayer, int pSurfaceGeneration, GLState pState) {
+		for (int i = 0; i < mGeometries.size(); i++) {
+			Geometry geometry = mGeometries.get(i);
+			Instances instances = mInstances.get(geometry);
+			geometry.drawInstances(pCamera, instances.mMatrices, instances.mCount, pLayer, pSurfaceGeneration, pState);
+		}
+	}
+
+	/**
+	 * Empties the queue without drawing, keeping the memory of the instance
+	 * matrices for the next frame. Geometries that haven't been queued
+	 * since the last reset get forgotten, so that geometry which isn't
+	 * drawn anymore can be collected.
+	 */
+	public void reset() {
+		Iterator<Instances> instances = mInstances.values().iterator();
+		while (instances.hasNext()) {
+			Instances next = instances.next();
+			if (next.mCount == 0)
+				instances.remove();
+			else
+				next.mCount = 0;
+		}
+		mGeometries.clear();
+		mNumberOfInstances = 0;
+	}
+
+	/**
+	 * Forgets all geometries seen so far, releasing the memory used for
+	 * their instance matrices.
+	 */
+	public void clear() {
+		mGeometries.clear();
+		mInstances.clear();
+		mNumberOfInstances = 0;
+	}
+
+	public int getNumberOfInstances() {
+		return mNumberOfInstances;
+	}
+}
@@ -0,0 +1,378 @@
+/**
+ * A vertex normal generator working directly on primitive vertex and index
+ * arrays, optionally spreading the work across several worker threads.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class NormalGenerator {
+	/**
+	 * Weights each face normal by the area of the triangle.
+	 */
+	public static final int WEIGHT_AREA = 0;
+
+	/**
+	 * Weights each face normal by the angle of the triangle at the vertex.
+	 */
+	public static final int WEIGHT_ANGLE = 1;
+
+	// Below this number of triangles the work is not worth distributing
+	private static final int MIN_TRIANGLES_PER_WORKER = 2048;
+
+	private int mWeighting;
+	private float mCreaseAngle;
+	private int mNumberOfWorkers;
+	private ExecutorService mExecutor;
+
+	/**
+	 * Creates a new area weighted normal generator without crease splitting
+	 * that uses one worker per available processor.
+	 */
+	public NormalGenerator() {
+		mWeighting = WEIGHT_AREA;
+		mCreaseAngle = 180.0f;
+		mNumberOfWorkers = Runtime.getRuntime().availableProcessors();
+		mExecutor = null;
+	}
+
+	public int getWeighting() {
+		return mWeighting;
+	}
+
+	/**
+	 * Sets how the face normals are weighted when they get summed up.
+	 *
+	 * @param pWeighting
+	 *            Either WEIGHT_AREA or WEIGHT_ANGLE.
+	 */
+	public NormalGenerator setWeighting(int pWeighting) {
+		mWeighting = pWeighting;
+		return this;
+	}
+
+	public float getCreaseAngle() {
+		return mCreaseAngle;
+	}
+
+	/**
+	 * Sets the crease angle used by splitCreases.
+	 *
+	 * @param pCreaseAngle
+	 *            The maximum angle in degrees between two face normals that
+	 *            still get smoothed across. 180 degrees disables splitting.
+	 */
+	public NormalGenerator setCreaseAngle(float pCreaseAngle) {
+		mCreaseAngle = Math.max(0.0f, Math.min(180.0f, pCreaseAngle));
+		return this;
+	}
+
+	public int getNumberOfWorkers() {
+		return mNumberOfWorkers;
+	}
+
+	/**
+	 * Sets the maximum number of worker threads. A value of 1 does all of the
+	 * work on the calling thread.
+	 *
+	 * @param pNumberOfWorkers
+	 *            The maximum number of workers.
+	 */
+	public NormalGenerator setNumberOfWorkers(int pNumberOfWorkers) {
+		if (pNumberOfWorkers != mNumberOfWorkers)
+			shutdown();
+		mNumberOfWorkers = Math.max(1, pNumberOfWorkers);
+		return this;
+	}
+
+	/**
+	 * Stops the worker threads. They will be restarted by the next call to
+	 * calculate if needed.
+	 */
+	public void shutdown() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+
+	/**
+	 * Calculates smooth vertex normals for an indexed triangle list.
+	 *
+	 * @param pVertices
+	 *            The vertex data containing the positions.
+	 * @param pStride
+	 *            The number of floats per vertex in pVertices.
+	 * @param pPositionOffset
+	 *            The offset of the position within each vertex.
+	 * @param pIndices
+	 *            The vertex indices, three per triangle.
+	 * @param pNormals
+	 *            The array receiving the normal vectors. May be the same array
+	 *            as pVertices for interleaved vertex data.
+	 * @param pNormalStride
+	 *            The number of floats per vertex in pNormals.
+	 * @param pNormalOffset
+	 *            The offset of the normal within each vertex of pNormals.
+	 */
+	public void calculate(final float[] pVertices, final int pStride, final int pPositionOffset, final int[] pIndices,
+			float[] pNormals, int pNormalStride, int pNormalOffset) {
+		final int numberOfVertices = pVertices.length / pStride;
+		final int numberOfTriangles = pIndices.length / 3;
+		int numberOfWorkers = Math.max(1, Math.min(mNumberOfWorkers, numberOfTriangles / MIN_TRIANGLES_PER_WORKER));
+
+		float[] sums;
+		if (numberOfWorkers == 1) {
+			sums = new float[numberOfVertices * 3];
+			accumulate(pVertices, pStride, pPositionOffset, pIndices, 0, numberOfTriangles, sums);
+		}
+		else {
+			// Every worker sums into its own accumulator, so no synchronization is needed
+			ExecutorService executor = getExecutor();
+			ArrayList<Future<float[]>> results = new ArrayList<Future<float[]>>(numberOfWorkers);
+			for (int i = 0; i < numberOfWorkers; i++) {
+				final int first = (int) ((long) numberOfTriangles * i / numberOfWorkers);
+				final int last = (int) ((long) numberOfTriangles * (i + 1) / numberOfWorkers);
+				results.add(executor.submit(new Callable<float[]>() {
+					public float[] call() {
+						float[] accumulator = new float[numberOfVertices * 3];
+						accumulate(pVertices, pStride, pPositionOffset, pIndices, first, last, accumulator);
+						return accumulator;
+					}
+				}));
+			}
+
+			sums = waitFor(results.get(0));
+			for (int i = 1; i < numberOfWorkers; i++) {
+				float[] accumulator = waitFor(results.get(i));
+				for (int j = 0; j < sums.length; j++)
+					sums[j] += accumulator[j];
+			}
+		}
+
+		// Normalize each vertices normal vector
+		for (int i = 0; i < numberOfVertices; i++) {
+			float x = sums[i * 3 + 0];
+			float y = sums[i * 3 + 1];
+			float z = sums[i * 3 + 2];
+			float lengthSquared = x * x + y * y + z * z;
+			float scale = lengthSquared > 0.0f ? (float) (1.0 / Math.sqrt(lengthSquared)) : 0.0f;
+			int index = i * pNormalStride + pNormalOffset;
+			pNormals[index + 0] = x * scale;
+			pNormals[index + 1] = y * scale;
+			pNormals[index + 2] = z * scale;
+		}
+	}
+
+	/**
+	 * Duplicates every vertex that is shared by faces whose normals differ by
+	 * more than the crease angle, so that calculate will produce a hard edge
+	 * there. The indices get rewritten in place to refer to the new vertices.
+	 *
+	 * @param pVertices
+	 *            The vertex data containing the positions.
+	 * @param pStride
+	 *            The number of floats per vertex in pVertices.
+	 * @param pPositionOffset
+	 *            The offset of the position within each vertex.
+	 * @param pIndices
+	 *            The vertex indices, three per triangle.
+	 * @return For each vertex of the resulting vertex list, the index of the
+	 *         original vertex it is a copy of. The first entries are the
+	 *         original vertices themselves.
+	 */
+	public int[] splitCreases(float[] pVertices, int pStride, int pPositionOffset, int[] pIndices) {
+		int numberOfVertices = pVertices.length / pStride;
+		int numberOfTriangles = pIndices.length / 3;
+
+		int[] source = new int[numberOfVertices];
+		for (int i = 0; i < numberOfVertices; i++)
+			source[i] = i;
+		if (mCreaseAngle >= 180.0f || numberOfTriangles == 0)
+			return source;
+
+		// Unit face normals
+		float[] faceNormals = new float[numberOfTriangles * 3];
+		for (int i = 0; i < numberOfTriangles; i++) {
+			faceNormal(pVertices, pStride, pPositionOffset, pIndices, i, faceNormals);
+			float x = faceNormals[i * 3 + 0], y = faceNormals[i * 3 + 1], z = faceNormals[i * 3 + 2];
+			float lengthSquared = x * x + y * y + z * z;
+			float scale = lengthSquared > 0.0f ? (float) (1.0 / Math.sqrt(lengthSquared)) : 0.0f;
+			faceNormals[i * 3 + 0] = x * scale;
+			faceNormals[i * 3 + 1] = y * scale;
+			faceNormals[i * 3 + 2] = z * scale;
+		}
+
+		// The corners (triangle * 3 + corner) around each vertex, stored as offsets into one array
+		int[] firstCorner = new int[numberOfVertices + 1];
+		for (int i = 0; i < pIndices.length; i++)
+			firstCorner[pIndices[i] + 1]++;
+		for (int i = 0; i < numberOfVertices; i++)
+			firstCorner[i + 1] += firstCorner[i];
+		int[] corners = new int[pIndices.length];
+		int[] fill = new int[numberOfVertices];
+		for (int i = 0; i < pIndices.length; i++) {
+			int vertex = pIndices[i];
+			corners[firstCorner[vertex] + fill[vertex]++] = i;
+		}
+
+		float minimumDot = (float) Math.cos(Math.toRadians(mCreaseAngle));
+		int[] group = new int[pIndices.length];
+		int[] newSource = new int[numberOfVertices * 2];
+		System.arraycopy(source, 0, newSource, 0, numberOfVertices);
+		int newNumberOfVertices = numberOfVertices;
+
+		for (int vertex = 0; vertex < numberOfVertices; vertex++) {
+			int first = firstCorner[vertex], last = firstCorner[vertex + 1];
+			for (int i = first; i < last; i++)
+				group[corners[i]] = -1;
+
+			// Greedily group the faces around this vertex by the first unassigned one
+			boolean firstGroup = true;
+			for (int i = first; i < last; i++) {
+				int seed = corners[i];
+				if (group[seed] != -1)
+					continue;
+
+				int target = vertex;
+				if (!firstGroup) {
+					if (newNumberOfVertices == newSource.length) {
+						int[] grown = new int[newSource.length * 2];
+						System.arraycopy(newSource, 0, grown, 0, newNumberOfVertices);
+						newSource = grown;
+					}
+					target = newNumberOfVertices;
+					newSource[newNumberOfVertices++] = vertex;
+				}
+				firstGroup = false;
+
+				int seedTriangle = seed / 3;
+				for (int j = i; j < last; j++) {
+					int corner = corners[j];
+					if (group[corner] != -1)
+						continue;
+					int triangle = corner / 3;
+					float dot = faceNormals[seedTriangle * 3 + 0] * faceNormals[triangle * 3 + 0]
+							+ faceNormals[seedTriangle * 3 + 1] * faceNormals[triangle * 3 + 1]
+							+ faceNormals[seedTriangle * 3 + 2] * faceNormals[triangle * 3 + 2];
+					if (dot >= minimumDot) {
+						group[corner] = target;
+						pIndices[corner] = target;
+					}
+				}
+			}
+		}
+
+		source = new int[newNumberOfVertices];
+		System.arraycopy(newSource, 0, source, 0, newNumberOfVertices);
+		return source;
+	}
+
+	private void accumulate(float[] pVertices, int pStride, int pPositionOffset, int[] pIndices, int pFirstTriangle,
+			int pLastTriangle, float[] pSums) {
+		float[] normal = new float[3];
+		boolean angleWeighted = mWeighting == WEIGHT_ANGLE;
+
+		for (int i = pFirstTriangle; i < pLastTriangle; i++) {
+			int i0 = pIndices[i * 3 + 0];
+			int i1 = pIndices[i * 3 + 1];
+			int i2 = pIndices[i * 3 + 2];
+			int p0 = i0 * pStride + pPositionOffset;
+			int p1 = i1 * pStride + pPositionOffset;
+			int p2 = i2 * pStride + pPositionOffset;
+
+			float e01x = pVertices[p1 + 0] - pVertices[p0 + 0];
+			float e01y = pVertices[p1 + 1] - pVertices[p0 + 1];
+			float e01z = pVertices[p1 + 2] - pVertices[p0 + 2];
+			float e02x = pVertices[p2 + 0] - pVertices[p0 + 0];
+			float e02y = pVertices[p2 + 1] - pVertices[p0 + 1];
+			float e02z = pVertices[p2 + 2] - pVertices[p0 + 2];
+
+			// The length of the cross product is twice the triangle area, so
+			// summing it unnormalized gives area weighting for free
+			normal[0] = e02y * e01z - e02z * e01y;
+			normal[1] = e02z * e01x - e02x * e01z;
+			normal[2] = e02x * e01y - e02y * e01x;
+
+			if (!angleWeighted) {
+				add(pSums, i0, normal, 1.0f);
+				add(pSums, i1, normal, 1.0f);
+				add(pSums, i2, normal, 1.0f);
+				continue;
+			}
+
+			float lengthSquared = normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2];
+			if (lengthSquared == 0.0f)
+				continue;
+			float scale = (float) (1.0 / Math.sqrt(lengthSquared));
+			float e12x = e02x - e01x, e12y = e02y - e01y, e12z = e02z - e01z;
+			add(pSums, i0, normal, scale * angle(e01x, e01y, e01z, e02x, e02y, e02z));
+			add(pSums, i1, normal, scale * angle(-e01x, -e01y, -e01z, e12x, e12y, e12z));
+			add(pSums, i2, normal, scale * angle(-e02x, -e02y, -e02z, -e12x, -e12y, -e12z));
+		}
+	}
+
+	static private void add(float[] pSums, int pVertex, float[] pNormal, float pWeight) {
+		pSums[pVertex * 3 + 0] += pNormal[0] * pWeight;
+		pSums[pVertex * 3 + 1] += pNormal[1] * pWeight;
+		pSums[pVertex * 3 + 2] += pNormal[2] * pWeight;
+	}
+
+	static private float angle(float pAX, float pAY, float pAZ, float pBX, float pBY, float pBZ) {
+		double lengths = Math.sqrt((pAX * pAX + pAY * pAY + pAZ * pAZ) * (pBX * pBX + pBY * pBY + pBZ * pBZ));
+		if (lengths == 0.0)
+			return 0.0f;
+		double cosine = (pAX * pBX + pAY * pBY + pAZ * pBZ) / lengths;
+		return (float) Math.acos(Math.max(-1.0, Math.min(1.0, cosine)));
+	}
+
+	static private void faceNormal(float[] pVertices, int pStride, int pPositionOffset, int[] pIndices, int pTriangle,
+			float[] pResult) {
+		int p0 = pIndices[pTriangle * 3 + 0] * pStride + pPositionOffset;
+		int p1 = pIndices[pTriangle * 3 + 1] * pStride + pPositionOffset;
+		int p2 = pIndices[pTriangle * 3 + 2] * pStride + pPositionOffset;
+		float e01x = pVertices[p1 + 0] - pVertices[p0 + 0];
+		float e01y = pVertices[p1 + 1] - pVertices[p0 + 1];
+		float e01z = pVertices[p1 + 2] - pVertices[p0 + 2];
+		float e02x = pVertices[p2 + 0] - pVertices[p0 + 0];
+		float e02y = pVertices[p2 + 1] - pVertices[p0 + 1];
+		float e02z = pVertices[p2 + 2] - pVertices[p0 + 2];
+		pResult[pTriangle * 3 + 0] = e02y * e01z - e02z * e01y;
+		pResult[pTriangle * 3 + 1] = e02z * e01x - e02x * e01z;
+		pResult[pTriangle * 3 + 2] = e02x * e01y - e02y * e01x;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (mExecutor == null) {
+			mExecutor = Executors.newFixedThreadPool(mNumberOfWorkers, new ThreadFactory() {
+				public Thread newThread(Runnable pRunnable) {
+					Thread thread = new Thread(pRunnable, "NormalGenerator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return mExecutor;
+	}
+
+	static private float[] waitFor(Future<float[]> pResult) {
+		try {
+			return pResult.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while calculating normals", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not calculate normals", e.getCause());
+		}
+	}
+}
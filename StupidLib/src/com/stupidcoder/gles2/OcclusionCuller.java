@@ -0,0 +1,405 @@
+/**
+ * Software occlusion culling. Simple occluder meshes, like the walls of a
+ * level, are rasterized into a small depth buffer on the CPU every frame,
+ * and the screen space bounding rectangles of scene graph nodes are tested
+ * against it, so that nodes hidden behind occluders don't get drawn. It
+ * doesn't use OpenGL, so it also works without a surface.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.opengl.Matrix;
+
+public class OcclusionCuller {
+	// Vertices closer than this in clip space W are considered behind the eye
+	private static final float MIN_W = 1e-4f;
+
+	static private class Occluder {
+		public Scene.Node mNode;
+		public float[] mPositions;
+		public int[] mIndices;
+	}
+
+	/**
+	 * A band of rows of the depth buffer that gets rasterized on its own,
+	 * possibly on a worker thread.
+	 */
+	private class Band implements Callable<Void> {
+		public int mFirstRow, mEndRow;
+
+		public Void call() {
+			clear(mFirstRow, mEndRow);
+			rasterize(mFirstRow, mEndRow);
+			return null;
+		}
+	}
+
+	private int mWidth, mHeight;
+	private float[] mDepth;
+	private ArrayList<Occluder> mOccluders;
+	private ExecutorService mExecutor;
+	private ArrayList<Band> mBands;
+
+	// Screen space X, Y and depth of the transformed occluder vertices, with
+	// depth set to NaN for vertices behind the eye
+	private float[] mVertices;
+	private int[] mTriangles;
+	private int mNumberOfTriangles;
+
+	private float[] mViewProjection, mMatrix, mCorner, mProjected;
+	private int mNumberOfTested, mNumberOfOccluded;
+
+	/**
+	 * Creates a new occlusion culler that rasterizes on the calling thread.
+	 *
+	 * @param pWidth
+	 *            The width of the depth buffer in pixels.
+	 * @param pHeight
+	 *            The height of the depth buffer in pixels.
+	 */
+	public OcclusionCuller(int pWidth, int pHeight) {
+		this(pWidth, pHeight, 1);
+	}
+
+	/**
+	 * Creates a new occlusion culler that splits the depth buffer into
+	 * horizontal bands and rasterizes them on several threads.
+	 *
+	 * @param pWidth
+	 *            The width of the depth buffer in pixels.
+	 * @param pHeight
+	 *            The height of the depth buffer in pixels.
+	 * @param pNumberOfThreads
+	 *            The number of bands and threads.
+	 */
+	public OcclusionCuller(int pWidth, int pHeight, int pNumberOfThreads) {
+		if (pWidth <= 0 || pHeight <= 0)
+			throw new IllegalArgumentException("Invalid depth buffer size");
+		mWidth = pWidth;
+		mHeight = pHeight;
+		mDepth = new float[pWidth * pHeight];
+		mOccluders = new ArrayList<Occluder>();
+		mVertices = new float[3 * 64];
+		mTriangles = new int[3 * 64];
+		mNumberOfTriangles = 0;
+		mViewProjection = new float[16];
+		mMatrix = new float[16];
+		mCorner = new float[4];
+		mProjected = new float[4];
+
+		int numberOfBands = Math.max(1, Math.min(pNumberOfThreads, pHeight));
+		mBands = new ArrayList<Band>();
+		for (int i = 0; i < numberOfBands; i++) {
+			Band band = new Band();
+			band.mFirstRow = pHeight * i / numberOfBands;
+			band.mEndRow = pHeight * (i + 1) / numberOfBands;
+			mBands.add(band);
+		}
+		if (numberOfBands > 1) {
+			mExecutor = Executors.newFixedThreadPool(numberOfBands, new ThreadFactory() {
+				public Thread newThread(Runnable pRunnable) {
+					Thread thread = new Thread(pRunnable, "OcclusionCuller");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		clear(0, pHeight);
+	}
+
+	/**
+	 * Adds an occluder. Its triangles get drawn with the world matrix of
+	 * the node. The occluder should lie within the node's own geometry, so
+	 * that it never hides anything the real geometry wouldn't.
+	 *
+	 * @param pNode
+	 *            The node the occluder moves with.
+	 * @param pGeometry
+	 *            The occluder mesh. Only its positions and indices are
+	 *            used, which get copied.
+	 */
+	public void addOccluder(Scene.Node pNode, Geometry pGeometry) {
+		int positionOffset = pGeometry.getVertexAttributeOffset("a_position");
+		if (positionOffset == -1)
+			throw new IllegalArgumentException("The occluder has no positions");
+		int vertexSize = pGeometry.getVertexSize();
+		int numberOfVertices = pGeometry.getNumberOfVertices();
+		float[] vertexData = pGeometry.getVertexData();
+
+		Occluder occluder = new Occluder();
+		occluder.mNode = pNode;
+		occluder.mPositions = new float[numberOfVertices * 3];
+		for (int i = 0; i < numberOfVertices; i++)
+			System.arraycopy(vertexData, i * vertexSize + positionOffset, occluder.mPositions, i * 3, 3);
+		int[] indices = pGeometry.getIndexData();
+		occluder.mIndices = new int[indices.length / 3 * 3];
+		System.arraycopy(indices, 0, occluder.mIndices, 0, occluder.mIndices.length);
+		mOccluders.add(occluder);
+	}
+
+	/**
+	 * Removes all occluders of a node.
+	 */
+	public void removeOccluders(Scene.Node pNode) {
+		for (int i = mOccluders.size() - 1; i >= 0; i--)
+			if (mOccluders.get(i).mNode == pNode)
+				mOccluders.remove(i);
+	}
+
+	public void clearOccluders() {
+		mOccluders.clear();
+	}
+
+	public int getNumberOfOccluders() {
+		return mOccluders.size();
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Gets the depth buffer of the last render call, row by row, holding
+	 * normalized device depth, or Float.MAX_VALUE where no occluder is.
+	 */
+	public float[] getDepthBuffer() {
+		return mDepth;
+	}
+
+	/**
+	 * Draws all occluders into the depth buffer. The world matrices of their
+	 * nodes must be up to date.
+	 *
+	 * @param pViewProjection
+	 *            The projection matrix multiplied by the view matrix.
+	 */
+	public void render(float[] pViewProjection) {
+		System.arraycopy(pViewProjection, 0, mViewProjection, 0, 16);
+		transformOccluders();
+
+		if (mExecutor == null) {
+			mBands.get(0).call();
+			return;
+		}
+		try {
+			for (Future<Void> future : mExecutor.invokeAll(mBands))
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rasterizing occluders", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not rasterize occluders", e.getCause());
+		}
+	}
+
+	// Transforms all occluder vertices into screen space and collects their
+	// triangles, so that the bands only have to rasterize
+	private void transformOccluders() {
+		int numberOfVertices = 0, numberOfIndices = 0;
+		for (int i = 0; i < mOccluders.size(); i++) {
+			Occluder occluder = mOccluders.get(i);
+			numberOfVertices += occluder.mPositions.length / 3;
+			numberOfIndices += occluder.mIndices.length;
+		}
+		if (mVertices.length < numberOfVertices * 3)
+			mVertices = new float[numberOfVertices * 3];
+		if (mTriangles.length < numberOfIndices)
+			mTriangles = new int[numberOfIndices];
+
+		int firstVertex = 0;
+		mNumberOfTriangles = 0;
+		for (int i = 0; i < mOccluders.size(); i++) {
+			Occluder occluder = mOccluders.get(i);
+			Matrix.multiplyMM(mMatrix, 0, mViewProjection, 0, occluder.mNode.getWorldMatrix(), 0);
+			float[] m = mMatrix;
+			float[] positions = occluder.mPositions;
+			int count = positions.length / 3;
+			for (int j = 0; j < count; j++) {
+				float x = positions[j * 3], y = positions[j * 3 + 1], z = positions[j * 3 + 2];
+				float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+				float clipZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+				int index = (firstVertex + j) * 3;
+				// Vertices in front of the near plane would get a depth
+				// nearer than anything drawn
+				if (w < MIN_W || clipZ < -w) {
+					mVertices[index + 2] = Float.NaN;
+					continue;
+				}
+				mVertices[index] = ((m[0] * x + m[4] * y + m[8] * z + m[12]) / w + 1.0f) * 0.5f * mWidth;
+				mVertices[index + 1] = ((m[1] * x + m[5] * y + m[9] * z + m[13]) / w + 1.0f) * 0.5f * mHeight;
+				mVertices[index + 2] = clipZ / w;
+			}
+
+			// Triangles crossing the near plane are left out instead of
+			// being clipped, which only makes the occluder smaller
+			int[] indices = occluder.mIndices;
+			for (int j = 0; j < indices.length; j += 3) {
+				int a = firstVertex + indices[j], b = firstVertex + indices[j + 1], c = firstVertex + indices[j + 2];
+				if (Float.isNaN(mVertices[a * 3 + 2]) || Float.isNaN(mVertices[b * 3 + 2]) || Float.isNaN(mVertices[c * 3 + 2]))
+					continue;
+				mTriangles[mNumberOfTriangles * 3] = a;
+				mTriangles[mNumberOfTriangles * 3 + 1] = b;
+				mTriangles[mNumberOfTriangles * 3 + 2] = c;
+				mNumberOfTriangles++;
+			}
+			firstVertex += count;
+		}
+	}
+
+	private void clear(int pFirstRow, int pEndRow) {
+		float[] depth = mDepth;
+		for (int i = pFirstRow * mWidth, end = pEndRow * mWidth; i < end; i++)
+			depth[i] = Float.MAX_VALUE;
+	}
+
+	// Rasterizes all triangles into the given rows, keeping the nearest depth
+	// per pixel. Pixels are covered if their center is inside the triangle.
+	private void rasterize(int pFirstRow, int pEndRow) {
+		float[] vertices = mVertices;
+		float[] depth = mDepth;
+		int width = mWidth;
+
+		for (int t = 0; t < mNumberOfTriangles; t++) {
+			int a = mTriangles[t * 3] * 3, b = mTriangles[t * 3 + 1] * 3, c = mTriangles[t * 3 + 2] * 3;
+			float x0 = vertices[a], y0 = vertices[a + 1], z0 = vertices[a + 2];
+			float x1 = vertices[b], y1 = vertices[b + 1], z1 = vertices[b + 2];
+			float x2 = vertices[c], y2 = vertices[c + 1], z2 = vertices[c + 2];
+
+			float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+			if (area == 0.0f)
+				continue;
+
+			int minX = Math.max(0, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+			int maxX = Math.min(width - 1, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+			int minY = Math.max(pFirstRow, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+			int maxY = Math.min(pEndRow - 1, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+			if (minX > maxX || minY > maxY)
+				continue;
+
+			// Edge functions, oriented so that the inside is positive for
+			// both windings, and their steps along X and Y
+			float sign = area > 0.0f ? 1.0f : -1.0f;
+			float a0 = (y1 - y2) * sign, b0 = (x2 - x1) * sign;
+			float a1 = (y2 - y0) * sign, b1 = (x0 - x2) * sign;
+			float a2 = (y0 - y1) * sign, b2 = (x1 - x0) * sign;
+			float px = minX + 0.5f, py = minY + 0.5f;
+			float e0Row = a0 * (px - x1) + b0 * (py - y1);
+			float e1Row = a1 * (px - x2) + b1 * (py - y2);
+			float e2Row = a2 * (px - x0) + b2 * (py - y0);
+
+			// Depth is linear in screen space
+			float inverseArea = 1.0f / (area * sign);
+			float dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * inverseArea;
+			float dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * inverseArea;
+			float zRow = (e0Row * z0 + e1Row * z1 + e2Row * z2) * inverseArea;
+
+			for (int y = minY; y <= maxY; y++) {
+				float e0 = e0Row, e1 = e1Row, e2 = e2Row, z = zRow;
+				int row = y * width;
+				for (int x = minX; x <= maxX; x++) {
+					if (e0 >= 0.0f && e1 >= 0.0f && e2 >= 0.0f && z < depth[row + x])
+						depth[row + x] = z;
+					e0 += a0;
+					e1 += a1;
+					e2 += a2;
+					z += dzdx;
+				}
+				e0Row += b0;
+				e1Row += b1;
+				e2Row += b2;
+				zRow += dzdy;
+			}
+		}
+	}
+
+	/**
+	 * Tests if any part of a box might be visible in front of the occluders
+	 * drawn by the last render call.
+	 *
+	 * @param pBounds
+	 *            The minimum X, Y, Z and maximum X, Y, Z of the box in world
+	 *            space.
+	 * @return False if the box is completely hidden.
+	 */
+	public boolean isVisible(float[] pBounds) {
+		mNumberOfTested++;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		float minZ = Float.MAX_VALUE;
+		for (int i = 0; i < 8; i++) {
+			mCorner[0] = pBounds[(i & 1) != 0 ? 3 : 0];
+			mCorner[1] = pBounds[(i & 2) != 0 ? 4 : 1];
+			mCorner[2] = pBounds[(i & 4) != 0 ? 5 : 2];
+			mCorner[3] = 1.0f;
+			Matrix.multiplyMV(mProjected, 0, mViewProjection, 0, mCorner, 0);
+			float w = mProjected[3];
+			// Boxes reaching behind the eye can cover the whole screen
+			if (w < MIN_W)
+				return true;
+			float x = (mProjected[0] / w + 1.0f) * 0.5f * mWidth;
+			float y = (mProjected[1] / w + 1.0f) * 0.5f * mHeight;
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+			minZ = Math.min(minZ, mProjected[2] / w);
+		}
+
+		// Every pixel the rectangle touches has to be covered by a nearer
+		// occluder
+		int x0 = Math.max(0, (int) Math.floor(minX)), x1 = Math.min(mWidth - 1, (int) Math.floor(maxX));
+		int y0 = Math.max(0, (int) Math.floor(minY)), y1 = Math.min(mHeight - 1, (int) Math.floor(maxY));
+		if (x0 > x1 || y0 > y1)
+			return true;
+		float[] depth = mDepth;
+		for (int y = y0; y <= y1; y++) {
+			int row = y * mWidth;
+			for (int x = x0; x <= x1; x++)
+				if (depth[row + x] >= minZ)
+					return true;
+		}
+		mNumberOfOccluded++;
+		return false;
+	}
+
+	/**
+	 * Gets the number of boxes tested since the last reset of the counters.
+	 */
+	public int getNumberOfTested() {
+		return mNumberOfTested;
+	}
+
+	/**
+	 * Gets the number of boxes found to be hidden since the last reset of
+	 * the counters.
+	 */
+	public int getNumberOfOccluded() {
+		return mNumberOfOccluded;
+	}
+
+	public void resetCounters() {
+		mNumberOfTested = mNumberOfOccluded = 0;
+	}
+
+	/**
+	 * Stops the worker threads, if any.
+	 */
+	public void shutdown() {
+		if (mExecutor != null)
+			mExecutor.shutdown();
+	}
+}
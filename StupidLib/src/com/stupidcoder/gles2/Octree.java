@@ -0,0 +1,387 @@
+/**
+ * A loose octree of the scene graph nodes with geometry, indexed by their
+ * world space bounding boxes. Each cell's bounds are twice as large as its
+ * grid cell, so a node is stored in exactly one cell: the smallest one its
+ * box fits into at its center. That makes moving a node cheap and lets
+ * queries skip whole regions of the scene.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+
+public class Octree {
+	private static final int QUERY_FRUSTUM = 0, QUERY_SPHERE = 1, QUERY_BOX = 2, QUERY_RAY = 3;
+
+	/**
+	 * The position of a node in the octree, kept by the node.
+	 */
+	static class Entry {
+		private Octree mOctree;
+		private Scene.Node mNode;
+		private float[] mBounds;
+		private Cell mCell;
+		private int mIndex;
+		private int mStamp;
+
+		public void remove() {
+			mOctree.remove(this);
+		}
+	}
+
+	static private class Cell {
+		public float mX, mY, mZ, mHalfSize;
+		public int mDepth;
+		public Cell mParent;
+		public Cell[] mChildren;
+		public Entry[] mEntries;
+		public int mNumberOfEntries;
+		// The number of entries in this cell and all cells below it
+		public int mTotal;
+
+		public Cell(Cell pParent, float pX, float pY, float pZ, float pHalfSize, int pDepth) {
+			mParent = pParent;
+			mX = pX;
+			mY = pY;
+			mZ = pZ;
+			mHalfSize = pHalfSize;
+			mDepth = pDepth;
+			mChildren = null;
+			mEntries = new Entry[4];
+			mNumberOfEntries = 0;
+			mTotal = 0;
+		}
+	}
+
+	private Cell mRoot;
+	private int mMaxDepth;
+	private int mSize;
+	private int mStamp, mKept;
+
+	private int mQueryType;
+	private Frustum mQueryFrustum;
+	private float[] mQuery;
+	private float mRayLength;
+	private float[] mCellBounds;
+	private int mNumberOfVisitedCells;
+
+	/**
+	 * Creates a new empty octree covering a cube. Nodes outside the cube
+	 * still get indexed, but always have to be tested individually.
+	 *
+	 * @param pX
+	 *            The X coordinate of the cube's center.
+	 * @param pY
+	 *            The Y coordinate of the cube's center.
+	 * @param pZ
+	 *            The Z coordinate of the cube's center.
+	 * @param pSize
+	 *            The edge length of the cube.
+	 * @param pMaxDepth
+	 *            The number of times the cube may be subdivided.
+	 */
+	public Octree(float pX, float pY, float pZ, float pSize, int pMaxDepth) {
+		if (pSize <= 0.0f || pMaxDepth < 0)
+			throw new IllegalArgumentException("Invalid octree size or depth");
+		mRoot = new Cell(null, pX, pY, pZ, pSize / 2.0f, 0);
+		mMaxDepth = pMaxDepth;
+		mSize = 0;
+		mStamp = mKept = 0;
+		mQuery = new float[6];
+		mCellBounds = new float[6];
+	}
+
+	/**
+	 * Gets the number of nodes in the octree.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Gets the number of cells visited by the last query, to check how much
+	 * of the octree it could skip.
+	 */
+	public int getNumberOfVisitedCells() {
+		return mNumberOfVisitedCells;
+	}
+
+	/**
+	 * Adds a node or moves it to the cell that fits its current bounds, and
+	 * marks it as still being part of the scene graph.
+	 *
+	 * @param pEntry
+	 *            The node's previous entry, or null.
+	 * @param pNode
+	 *            The node.
+	 * @param pBounds
+	 *            The node's world space bounding box. It is kept by
+	 *            reference and must be updated in place.
+	 * @param pMoved
+	 *            True if the bounds have changed since the last call.
+	 * @return The node's entry, to be passed to the next call.
+	 */
+	Entry update(Entry pEntry, Scene.Node pNode, float[] pBounds, boolean pMoved) {
+		Entry entry = pEntry;
+		if (entry == null || entry.mOctree != this) {
+			entry = new Entry();
+			entry.mOctree = this;
+			entry.mNode = pNode;
+		}
+		entry.mBounds = pBounds;
+
+		if (entry.mCell == null || pMoved) {
+			Cell cell = findCell(pBounds);
+			if (cell != entry.mCell) {
+				if (entry.mCell != null)
+					unlink(entry);
+				link(entry, cell);
+			}
+		}
+		if (entry.mStamp != mStamp) {
+			entry.mStamp = mStamp;
+			mKept++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes a node from the octree.
+	 */
+	void remove(Entry pEntry) {
+		if (pEntry.mOctree == this && pEntry.mCell != null) {
+			unlink(pEntry);
+			if (pEntry.mStamp == mStamp)
+				mKept--;
+		}
+	}
+
+	/**
+	 * Starts a scene graph update. Every node updated until endUpdate is
+	 * kept, all others get removed by endUpdate.
+	 */
+	void beginUpdate() {
+		mStamp++;
+		mKept = 0;
+	}
+
+	/**
+	 * Removes the nodes that have not been updated since beginUpdate, i.e.
+	 * that are no longer part of the scene graph. Only walks the octree if
+	 * there are any.
+	 */
+	void endUpdate() {
+		if (mKept < mSize)
+			removeStale(mRoot);
+	}
+
+	private void removeStale(Cell pCell) {
+		for (int i = pCell.mNumberOfEntries - 1; i >= 0; i--)
+			if (pCell.mEntries[i].mStamp != mStamp)
+				unlink(pCell.mEntries[i]);
+		if (pCell.mChildren != null)
+			for (int i = 0; i < 8; i++)
+				if (pCell.mChildren[i] != null && pCell.mChildren[i].mTotal > 0)
+					removeStale(pCell.mChildren[i]);
+	}
+
+	// Finds the smallest cell whose loose bounds contain the box, creating
+	// cells as needed
+	private Cell findCell(float[] pBounds) {
+		float x = (pBounds[0] + pBounds[3]) / 2.0f;
+		float y = (pBounds[1] + pBounds[4]) / 2.0f;
+		float z = (pBounds[2] + pBounds[5]) / 2.0f;
+		float radius = Math.max(pBounds[3] - pBounds[0], Math.max(pBounds[4] - pBounds[1], pBounds[5] - pBounds[2])) / 2.0f;
+
+		Cell cell = mRoot;
+		if (Math.abs(x - cell.mX) > cell.mHalfSize || Math.abs(y - cell.mY) > cell.mHalfSize
+				|| Math.abs(z - cell.mZ) > cell.mHalfSize)
+			return cell;
+
+		// A box centered in a cell fits its loose bounds if it is at most
+		// as large as the cell
+		while (cell.mDepth < mMaxDepth && radius <= cell.mHalfSize / 2.0f) {
+			int child = (x >= cell.mX ? 1 : 0) | (y >= cell.mY ? 2 : 0) | (z >= cell.mZ ? 4 : 0);
+			if (cell.mChildren == null)
+				cell.mChildren = new Cell[8];
+			if (cell.mChildren[child] == null) {
+				float half = cell.mHalfSize / 2.0f;
+				cell.mChildren[child] = new Cell(cell, cell.mX + ((child & 1) != 0 ? half : -half),
+						cell.mY + ((child & 2) != 0 ? half : -half), cell.mZ + ((child & 4) != 0 ? half : -half),
+						half, cell.mDepth + 1);
+			}
+			cell = cell.mChildren[child];
+		}
+		return cell;
+	}
+
+	private void link(Entry pEntry, Cell pCell) {
+		if (pCell.mNumberOfEntries == pCell.mEntries.length) {
+			Entry[] entries = new Entry[pCell.mEntries.length * 2];
+			System.arraycopy(pCell.mEntries, 0, entries, 0, pCell.mNumberOfEntries);
+			pCell.mEntries = entries;
+		}
+		pEntry.mCell = pCell;
+		pEntry.mIndex = pCell.mNumberOfEntries;
+		pCell.mEntries[pCell.mNumberOfEntries++] = pEntry;
+		for (Cell cell = pCell; cell != null; cell = cell.mParent)
+			cell.mTotal++;
+		mSize++;
+	}
+
+	private void unlink(Entry pEntry) {
+		Cell cell = pEntry.mCell;
+		Entry last = cell.mEntries[--cell.mNumberOfEntries];
+		cell.mEntries[pEntry.mIndex] = last;
+		last.mIndex = pEntry.mIndex;
+		cell.mEntries[cell.mNumberOfEntries] = null;
+		for (Cell parent = cell; parent != null; parent = parent.mParent)
+			parent.mTotal--;
+		pEntry.mCell = null;
+		mSize--;
+	}
+
+	/**
+	 * Finds the nodes whose bounding boxes are at least partially inside a
+	 * frustum.
+	 *
+	 * @param pFrustum
+	 *            The frustum.
+	 * @param pResult
+	 *            The list the nodes get added to.
+	 */
+	public void queryFrustum(Frustum pFrustum, ArrayList<Scene.Node> pResult) {
+		mQueryType = QUERY_FRUSTUM;
+		mQueryFrustum = pFrustum;
+		query(pResult);
+		mQueryFrustum = null;
+	}
+
+	/**
+	 * Finds the nodes whose bounding boxes intersect a sphere.
+	 *
+	 * @param pResult
+	 *            The list the nodes get added to.
+	 */
+	public void querySphere(float pX, float pY, float pZ, float pRadius, ArrayList<Scene.Node> pResult) {
+		mQueryType = QUERY_SPHERE;
+		mQuery[0] = pX;
+		mQuery[1] = pY;
+		mQuery[2] = pZ;
+		mQuery[3] = pRadius * pRadius;
+		query(pResult);
+	}
+
+	/**
+	 * Finds the nodes whose bounding boxes intersect an axis aligned box.
+	 *
+	 * @param pBounds
+	 *            The minimum X, Y, Z and maximum X, Y, Z of the box.
+	 * @param pResult
+	 *            The list the nodes get added to.
+	 */
+	public void queryBox(float[] pBounds, ArrayList<Scene.Node> pResult) {
+		mQueryType = QUERY_BOX;
+		System.arraycopy(pBounds, 0, mQuery, 0, 6);
+		query(pResult);
+	}
+
+	/**
+	 * Finds the nodes whose bounding boxes are hit by a ray. The nodes are
+	 * not sorted by distance.
+	 *
+	 * @param pOrigin
+	 *            The start point of the ray.
+	 * @param pDirection
+	 *            The direction of the ray. It doesn't need to be normalized.
+	 * @param pLength
+	 *            The length of the ray in multiples of pDirection.
+	 * @param pResult
+	 *            The list the nodes get added to.
+	 */
+	public void queryRay(Vec3 pOrigin, Vec3 pDirection, float pLength, ArrayList<Scene.Node> pResult) {
+		mQueryType = QUERY_RAY;
+		mQuery[0] = pOrigin.x;
+		mQuery[1] = pOrigin.y;
+		mQuery[2] = pOrigin.z;
+		mQuery[3] = pDirection.x;
+		mQuery[4] = pDirection.y;
+		mQuery[5] = pDirection.z;
+		mRayLength = pLength;
+		query(pResult);
+	}
+
+	private void query(ArrayList<Scene.Node> pResult) {
+		mNumberOfVisitedCells = 0;
+		if (mRoot.mTotal > 0)
+			query(mRoot, pResult);
+	}
+
+	private void query(Cell pCell, ArrayList<Scene.Node> pResult) {
+		mNumberOfVisitedCells++;
+		// The root also holds everything outside the octree, so it is never
+		// skipped
+		if (pCell != mRoot) {
+			float size = pCell.mHalfSize * 2.0f;
+			mCellBounds[0] = pCell.mX - size;
+			mCellBounds[1] = pCell.mY - size;
+			mCellBounds[2] = pCell.mZ - size;
+			mCellBounds[3] = pCell.mX + size;
+			mCellBounds[4] = pCell.mY + size;
+			mCellBounds[5] = pCell.mZ + size;
+			if (!intersects(mCellBounds))
+				return;
+		}
+
+		for (int i = 0; i < pCell.mNumberOfEntries; i++) {
+			Entry entry = pCell.mEntries[i];
+			if (intersects(entry.mBounds))
+				pResult.add(entry.mNode);
+		}
+
+		if (pCell.mChildren != null)
+			for (int i = 0; i < 8; i++)
+				if (pCell.mChildren[i] != null && pCell.mChildren[i].mTotal > 0)
+					query(pCell.mChildren[i], pResult);
+	}
+
+	private boolean intersects(float[] pBounds) {
+		switch (mQueryType) {
+		case QUERY_FRUSTUM:
+			return mQueryFrustum.intersectsBox(pBounds);
+		case QUERY_SPHERE: {
+			float distance = 0.0f;
+			for (int i = 0; i < 3; i++) {
+				float d = Math.max(pBounds[i] - mQuery[i], Math.max(0.0f, mQuery[i] - pBounds[i + 3]));
+				distance += d * d;
+			}
+			return distance <= mQuery[3];
+		}
+		case QUERY_BOX:
+			return pBounds[0] <= mQuery[3] && pBounds[3] >= mQuery[0] && pBounds[1] <= mQuery[4]
+					&& pBounds[4] >= mQuery[1] && pBounds[2] <= mQuery[5] && pBounds[5] >= mQuery[2];
+		default: {
+			// Slab test, clipping the ray against the three pairs of planes
+			float near = 0.0f, far = mRayLength;
+			for (int i = 0; i < 3; i++) {
+				float origin = mQuery[i], direction = mQuery[i + 3];
+				if (direction == 0.0f) {
+					if (origin < pBounds[i] || origin > pBounds[i + 3])
+						return false;
+					continue;
+				}
+				float t1 = (pBounds[i] - origin) / direction;
+				float t2 = (pBounds[i + 3] - origin) / direction;
+				near = Math.max(near, Math.min(t1, t2));
+				far = Math.min(far, Math.max(t1, t2));
+				if (near > far)
+					return false;
+			}
+			return true;
+		}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/**
+ * A GL backend that doesn't need a GL context. It counts the calls made
+ * through it, optionally records their order, and hands out made up names
+ * for programs, shaders, buffers and textures, so scenes can be drawn on a
+ * plain JVM for benchmarks and tests.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+public class RecordingGLBackend implements GLBackend {
+	private Map<String, int[]> mCounts;
+	private int mNumberOfCalls;
+	private List<String> mCalls;
+	private boolean mRecording;
+	private int mNextName;
+	private Set<Integer> mObjects;
+	private Map<String, Integer> mLocations;
+	private long mUploadedBytes;
+	private long mDrawnIndices;
+
+	/**
+	 * Creates a new backend that counts calls without recording them.
+	 */
+	public RecordingGLBackend() {
+		mCounts = new HashMap<String, int[]>();
+		mCalls = new ArrayList<String>();
+		mLocations = new HashMap<String, Integer>();
+		mObjects = new HashSet<Integer>();
+		mNextName = 1;
+	}
+
+	private void call(String pName) {
+		int[] count = mCounts.get(pName);
+		if (count == null) {
+			count = new int[1];
+			mCounts.put(pName, count);
+		}
+		count[0]++;
+		mNumberOfCalls++;
+		if (mRecording)
+			mCalls.add(pName);
+	}
+
+	private int create() {
+		int name = mNextName++;
+		mObjects.add(Integer.valueOf(name));
+		return name;
+	}
+
+	private void generate(int pCount, int[] pNames, int pOffset) {
+		for (int i = 0 ; i < pCount ; i++)
+			pNames[pOffset + i] = create();
+	}
+
+	private void delete(int pCount, int[] pNames, int pOffset) {
+		for (int i = 0 ; i < pCount ; i++)
+			mObjects.remove(Integer.valueOf(pNames[pOffset + i]));
+	}
+
+	// Every program has every uniform and attribute, at a location that
+	// stays the same for the same name
+	private int locate(int pProgram, String pName) {
+		String key = pProgram + ":" + pName;
+		Integer location = mLocations.get(key);
+		if (location == null) {
+			location = Integer.valueOf(mLocations.size());
+			mLocations.put(key, location);
+		}
+		return location.intValue();
+	}
+
+	/**
+	 * Gets how often a GL function has been called since the last reset.
+	 *
+	 * @param pName
+	 *            The name of the function, e.g. "glDrawElements".
+	 */
+	public int getCount(String pName) {
+		int[] count = mCounts.get(pName);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * Gets the number of GL calls of any kind since the last reset.
+	 */
+	public int getNumberOfCalls() {
+		return mNumberOfCalls;
+	}
+
+	/**
+	 * Gets the number of bytes passed to glBufferData and texImage2D since
+	 * the last reset.
+	 */
+	public long getUploadedBytes() {
+		return mUploadedBytes;
+	}
+
+	/**
+	 * Gets the number of indices passed to glDrawElements since the last
+	 * reset.
+	 */
+	public long getDrawnIndices() {
+		return mDrawnIndices;
+	}
+
+	/**
+	 * Gets the number of programs, shaders, buffers and textures that have
+	 * been created and not deleted yet, for finding leaks. Not affected by
+	 * reset.
+	 */
+	public int getNumberOfObjects() {
+		return mObjects.size();
+	}
+
+	/**
+	 * Sets whether the names of the called functions get recorded in order.
+	 * Off by default, as the list grows with every call.
+	 */
+	public void setRecording(boolean pRecording) {
+		mRecording = pRecording;
+	}
+
+	public boolean getRecording() {
+		return mRecording;
+	}
+
+	/**
+	 * Gets the names of the functions called since the last reset, in the
+	 * order of the calls, while recording is on.
+	 */
+	public List<String> getCalls() {
+		return mCalls;
+	}
+
+	/**
+	 * Forgets all counts and recorded calls. The made up names keep
+	 * counting up.
+	 */
+	public void reset() {
+		mCounts.clear();
+		mCalls.clear();
+		mNumberOfCalls = 0;
+		mUploadedBytes = mDrawnIndices = 0;
+	}
+
+	public void glActiveTexture(int pTexture) {
+		call("glActiveTexture");
+	}
+
+	public void glAttachShader(int pProgram, int pShader) {
+		call("glAttachShader");
+	}
+
+	public void glBindBuffer(int pTarget, int pBuffer) {
+		call("glBindBuffer");
+	}
+
+	public void glBindTexture(int pTarget, int pTexture) {
+		call("glBindTexture");
+	}
+
+	public void glBufferData(int pTarget, int pSize, Buffer pData, int pUsage) {
+		call("glBufferData");
+		mUploadedBytes += pSize;
+	}
+
+	public void glClear(int pMask) {
+		call("glClear");
+	}
+
+	public void glClearColor(float pRed, float pGreen, float pBlue, float pAlpha) {
+		call("glClearColor");
+	}
+
+	public void glClearDepthf(float pDepth) {
+		call("glClearDepthf");
+	}
+
+	public void glColorMask(boolean pRed, boolean pGreen, boolean pBlue, boolean pAlpha) {
+		call("glColorMask");
+	}
+
+	public void glCompileShader(int pShader) {
+		call("glCompileShader");
+	}
+
+	public int glCreateProgram() {
+		call("glCreateProgram");
+		return create();
+	}
+
+	public int glCreateShader(int pType) {
+		call("glCreateShader");
+		return create();
+	}
+
+	public void glDeleteBuffers(int pCount, int[] pBuffers, int pOffset) {
+		call("glDeleteBuffers");
+		delete(pCount, pBuffers, pOffset);
+	}
+
+	public void glDeleteProgram(int pProgram) {
+		call("glDeleteProgram");
+		mObjects.remove(Integer.valueOf(pProgram));
+	}
+
+	public void glDeleteShader(int pShader) {
+		call("glDeleteShader");
+		mObjects.remove(Integer.valueOf(pShader));
+	}
+
+	public void glDeleteTextures(int pCount, int[] pTextures, int pOffset) {
+		call("glDeleteTextures");
+		delete(pCount, pTextures, pOffset);
+	}
+
+	public void glCullFace(int pMode) {
+		call("glCullFace");
+	}
+
+	public void glDepthFunc(int pFunction) {
+		call("glDepthFunc");
+	}
+
+	public void glDepthMask(boolean pFlag) {
+		call("glDepthMask");
+	}
+
+	public void glDisable(int pCapability) {
+		call("glDisable");
+	}
+
+	public void glDisableVertexAttribArray(int pIndex) {
+		call("glDisableVertexAttribArray");
+	}
+
+	public void glDrawElements(int pMode, int pCount, int pType, int pOffset) {
+		call("glDrawElements");
+		mDrawnIndices += pCount;
+	}
+
+	public void glEnable(int pCapability) {
+		call("glEnable");
+	}
+
+	public void glEnableVertexAttribArray(int pIndex) {
+		call("glEnableVertexAttribArray");
+	}
+
+	public void glFrontFace(int pMode) {
+		call("glFrontFace");
+	}
+
+	public void glGenBuffers(int pCount, int[] pBuffers, int pOffset) {
+		call("glGenBuffers");
+		generate(pCount, pBuffers, pOffset);
+	}
+
+	public void glGenTextures(int pCount, int[] pTextures, int pOffset) {
+		call("glGenTextures");
+		generate(pCount, pTextures, pOffset);
+	}
+
+	public void glGenerateMipmap(int pTarget) {
+		call("glGenerateMipmap");
+	}
+
+	public int glGetAttribLocation(int pProgram, String pName) {
+		call("glGetAttribLocation");
+		return locate(pProgram, pName);
+	}
+
+	public int glGetError() {
+		call("glGetError");
+		return GLES20.GL_NO_ERROR;
+	}
+
+	public void glGetProgramiv(int pProgram, int pName, int[] pParams, int pOffset) {
+		call("glGetProgramiv");
+		pParams[pOffset] = GLES20.GL_TRUE;
+	}
+
+	public String glGetShaderInfoLog(int pShader) {
+		call("glGetShaderInfoLog");
+		return "";
+	}
+
+	public void glGetShaderiv(int pShader, int pName, int[] pParams, int pOffset) {
+		call("glGetShaderiv");
+		pParams[pOffset] = GLES20.GL_TRUE;
+	}
+
+	public int glGetUniformLocation(int pProgram, String pName) {
+		call("glGetUniformLocation");
+		return locate(pProgram, pName);
+	}
+
+	public void glLinkProgram(int pProgram) {
+		call("glLinkProgram");
+	}
+
+	public void glPolygonOffset(float pFactor, float pUnits) {
+		call("glPolygonOffset");
+	}
+
+	public void glShaderSource(int pShader, String pSource) {
+		call("glShaderSource");
+	}
+
+	public void glTexParameterf(int pTarget, int pName, float pValue) {
+		call("glTexParameterf");
+	}
+
+	public void glUniform1fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		call("glUniform1fv");
+	}
+
+	public void glUniform2fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		call("glUniform2fv");
+	}
+
+	public void glUniform3fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		call("glUniform3fv");
+	}
+
+	public void glUniform4fv(int pLocation, int pCount, float[] pValues, int pOffset) {
+		call("glUniform4fv");
+	}
+
+	public void glUniform1i(int pLocation, int pValue) {
+		call("glUniform1i");
+	}
+
+	public void glUniformMatrix4fv(int pLocation, int pCount, boolean pTranspose, float[] pValues, int pOffset) {
+		call("glUniformMatrix4fv");
+	}
+
+	public void glUseProgram(int pProgram) {
+		call("glUseProgram");
+	}
+
+	public void glVertexAttrib1f(int pIndex, float pValue) {
+		call("glVertexAttrib1f");
+	}
+
+	public void glVertexAttribPointer(int pIndex, int pSize, int pType, boolean pNormalized, int pStride, int pOffset) {
+		call("glVertexAttribPointer");
+	}
+
+	public void glViewport(int pX, int pY, int pWidth, int pHeight) {
+		call("glViewport");
+	}
+
+	public void texImage2D(int pTarget, int pLevel, Bitmap pBitmap, int pBorder) {
+		call("texImage2D");
+		mUploadedBytes += pBitmap.getRowBytes() * pBitmap.getHeight();
+	}
+}
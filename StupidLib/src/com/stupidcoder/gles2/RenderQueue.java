@@ -0,0 +1,303 @@
+/**
+ * Collects the render passes of the visible scene graph nodes and draws them
+ * sorted by a packed key, so that passes sharing a shader and textures get
+ * drawn one after another.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RenderQueue {
+	// Bit layout of the sort key, from most to least significant
+	private static final int DEPTH_BITS = 19;
+	private static final int GEOMETRY_BITS = 12;
+	private static final int TEXTURE_BITS = 14;
+	private static final int STATE_BITS = 2;
+	private static final int SHADER_BITS = 12;
+	private static final int LAYER_BITS = 4;
+
+	private static final int GEOMETRY_SHIFT = DEPTH_BITS;
+	private static final int TEXTURE_SHIFT = GEOMETRY_SHIFT + GEOMETRY_BITS;
+	private static final int STATE_SHIFT = TEXTURE_SHIFT + TEXTURE_BITS;
+	private static final int SHADER_SHIFT = STATE_SHIFT + STATE_BITS;
+	private static final int LAYER_SHIFT = SHADER_SHIFT + SHADER_BITS;
+
+	/**
+	 * The highest pass layer that can be sorted.
+	 */
+	public static final int MAX_LAYER = (1 << LAYER_BITS) - 1;
+
+	private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+	/**
+	 * Gets a new id for sorting. Shaders, textures and geometries take one
+	 * each when they are created.
+	 */
+	static int nextId() {
+		return sNextId.getAndIncrement();
+	}
+
+	static private class Item {
+		public Geometry mGeometry;
+		public Geometry.Pass mPass;
+		public float[] mMatrix;
+		public long mKey;
+	}
+
+	private Item[] mItems;
+	private int mNumberOfItems;
+	// The index of the first sorted item of each layer, and the end
+	private int[] mLayerStarts;
+	private boolean mSorting, mSorted;
+	private int mProgramSwitches, mTextureSwitches;
+	private int mProgramSwitchesSaved, mTextureSwitchesSaved;
+
+	/**
+	 * Creates a new empty render queue with sorting enabled.
+	 */
+	public RenderQueue() {
+		mItems = new Item[64];
+		for (int i = 0; i < mItems.length; i++)
+			mItems[i] = new Item();
+		mNumberOfItems = 0;
+		mLayerStarts = new int[MAX_LAYER + 2];
+		mSorting = true;
+		mSorted = false;
+	}
+
+	public boolean getSorting() {
+		return mSorting;
+	}
+
+	/**
+	 * Enables or disables sorting. Without sorting the passes get drawn in
+	 * the order they have been added.
+	 */
+	public void setSorting(boolean pSorting) {
+		if (pSorting != mSorting)
+			mSorted = false;
+		mSorting = pSorting;
+	}
+
+	/**
+	 * Queues all render passes of a geometry.
+	 *
+	 * @param pGeometry
+	 *            The geometry to draw.
+	 * @param pMatrix
+	 *            The model matrix to draw it with. It is not copied, so it
+	 *            must not change until the queue has been drawn.
+	 * @param pCamera
+	 *            The camera used to calculate the depth for sorting.
+	 */
+	public void add(Geometry pGeometry, float[] pMatrix, Camera pCamera) {
+		Vec3 position = pCamera.getPosition();
+		Vec3 direction = pCamera.getDirection();
+		float depth = (pMatrix[12] - position.x) * direction.x + (pMatrix[13] - position.y) * direction.y
+				+ (pMatrix[14] - position.z) * direction.z;
+		long depthKey = (long) (Math.max(0.0f, Math.min(1.0f, depth / pCamera.getFarClipDistance())) * ((1 << DEPTH_BITS) - 1));
+
+		for (int i = 0; i < pGeometry.getNumberOfPasses(); i++) {
+			Geometry.Pass pass = pGeometry.getPass(i);
+			if (pass.mShader == null)
+				continue;
+			if (mNumberOfItems == mItems.length) {
+				Item[] grown = new Item[mItems.length * 2];
+				System.arraycopy(mItems, 0, grown, 0, mItems.length);
+				for (int j = mItems.length; j < grown.length; j++)
+					grown[j] = new Item();
+				mItems = grown;
+			}
+
+			mSorted = false;
+			Item item = mItems[mNumberOfItems++];
+			item.mGeometry = pGeometry;
+			item.mPass = pass;
+			item.mMatrix = pMatrix;
+			item.mKey = ((long) pass.getLayer() << LAYER_SHIFT)
+					| (key(pass.mShader.getId(), SHADER_BITS) << SHADER_SHIFT)
+					| ((long) ((pass.mTwoSided ? 2 : 0) | (pass.mOffset != 0.0f ? 1 : 0)) << STATE_SHIFT)
+					| (key(pass.getTextureKey(), TEXTURE_BITS) << TEXTURE_SHIFT)
+					| (key(pGeometry.getId(), GEOMETRY_BITS) << GEOMETRY_SHIFT)
+					| depthKey;
+		}
+	}
+
+	private static long key(int pId, int pBits) {
+		return pId & ((1L << pBits) - 1);
+	}
+
+	/**
+	 * Sorts the queued passes if sorting is enabled and draws them. The
+	 * queue stays filled, so it can be drawn again without sorting, e.g. for
+	 * the second eye in stereo mode.
+	 */
+	public void draw(Camera pCamera, int pSurfaceGeneration, GLState pState) {
+		sortIfNeeded();
+		for (int i = 0; i < mNumberOfItems; i++) {
+			Item item = mItems[i];
+			item.mGeometry.draw(item.mPass, pCamera, item.mMatrix, pSurfaceGeneration, pState);
+		}
+	}
+
+	/**
+	 * Draws the queued passes of a single layer like draw above, so that a
+	 * scene can draw its instanced and batched passes of the same layer
+	 * before moving on to the next one.
+	 */
+	void draw(Camera pCamera, int pLayer, int pSurfaceGeneration, GLState pState) {
+		sortIfNeeded();
+		int first = 0, last = mNumberOfItems;
+		if (mSorting) {
+			// The layer is the most significant part of the key
+			first = mLayerStarts[pLayer];
+			last = mLayerStarts[pLayer + 1];
+		}
+		for (int i = first; i < last; i++) {
+			Item item = mItems[i];
+			if (item.mPass.mLayer == pLayer)
+				item.mGeometry.draw(item.mPass, pCamera, item.mMatrix, pSurfaceGeneration, pState);
+		}
+	}
+
+	private void sortIfNeeded() {
+		if (mSorted)
+			return;
+		int programSwitches = countProgramSwitches();
+		int textureSwitches = countTextureSwitches();
+		if (mSorting) {
+			sort(0, mNumberOfItems - 1);
+			int layer = 0;
+			for (int i = 0; i < mNumberOfItems; i++)
+				while (layer <= (int) (mItems[i].mKey >>> LAYER_SHIFT))
+					mLayerStarts[layer++] = i;
+			while (layer < mLayerStarts.length)
+				mLayerStarts[layer++] = mNumberOfItems;
+		}
+		mProgramSwitches = countProgramSwitches();
+		mTextureSwitches = countTextureSwitches();
+		mProgramSwitchesSaved = programSwitches - mProgramSwitches;
+		mTextureSwitchesSaved = textureSwitches - mTextureSwitches;
+		mSorted = true;
+	}
+
+	/**
+	 * Empties the queue, keeping the allocated items for the next frame.
+	 */
+	public void clear() {
+		for (int i = 0; i < mNumberOfItems; i++) {
+			mItems[i].mGeometry = null;
+			mItems[i].mPass = null;
+			mItems[i].mMatrix = null;
+		}
+		mNumberOfItems = 0;
+		mSorted = false;
+	}
+
+	public int size() {
+		return mNumberOfItems;
+	}
+
+	/**
+	 * Gets the number of shader program changes of the last draw.
+	 */
+	public int getNumberOfProgramSwitches() {
+		return mProgramSwitches;
+	}
+
+	/**
+	 * Gets the number of texture set changes of the last draw.
+	 */
+	public int getNumberOfTextureSwitches() {
+		return mTextureSwitches;
+	}
+
+	/**
+	 * Gets the number of shader program changes that sorting has saved in
+	 * the last draw, compared to drawing in scene graph order.
+	 */
+	public int getNumberOfProgramSwitchesSaved() {
+		return mProgramSwitchesSaved;
+	}
+
+	/**
+	 * Gets the number of texture set changes that sorting has saved in the
+	 * last draw, compared to drawing in scene graph order.
+	 */
+	public int getNumberOfTextureSwitchesSaved() {
+		return mTextureSwitchesSaved;
+	}
+
+	private int countProgramSwitches() {
+		int switches = 0;
+		for (int i = 0; i < mNumberOfItems; i++)
+			if (i == 0 || mItems[i].mPass.mShader != mItems[i - 1].mPass.mShader)
+				switches++;
+		return switches;
+	}
+
+	private int countTextureSwitches() {
+		int switches = 0;
+		for (int i = 0; i < mNumberOfItems; i++) {
+			int textures = mItems[i].mPass.getTextureKey();
+			if (textures != 0 && (i == 0 || textures != mItems[i - 1].mPass.getTextureKey()))
+				switches++;
+		}
+		return switches;
+	}
+
+	// Sorts the items by key without allocating, using quicksort for large
+	// and insertion sort for small ranges
+	private void sort(int pFirst, int pLast) {
+		while (pLast - pFirst > 12) {
+			int middle = (pFirst + pLast) >>> 1;
+			if (mItems[middle].mKey < mItems[pFirst].mKey)
+				swap(middle, pFirst);
+			if (mItems[pLast].mKey < mItems[pFirst].mKey)
+				swap(pLast, pFirst);
+			if (mItems[pLast].mKey < mItems[middle].mKey)
+				swap(pLast, middle);
+			long pivot = mItems[middle].mKey;
+
+			int i = pFirst, j = pLast;
+			while (i <= j) {
+				while (mItems[i].mKey < pivot)
+					i++;
+				while (mItems[j].mKey > pivot)
+					j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+
+			// Recurse into the smaller half to limit the stack depth
+			if (j - pFirst < pLast - i) {
+				sort(pFirst, j);
+				pFirst = i;
+			}
+			else {
+				sort(i, pLast);
+				pLast = j;
+			}
+		}
+
+		for (int i = pFirst + 1; i <= pLast; i++) {
+			Item item = mItems[i];
+			int j = i - 1;
+			while (j >= pFirst && mItems[j].mKey > item.mKey) {
+				mItems[j + 1] = mItems[j];
+				j--;
+			}
+			mItems[j + 1] = item;
+		}
+	}
+
+	private void swap(int pA, int pB) {
+		Item item = mItems[pA];
+		mItems[pA] = mItems[pB];
+		mItems[pB] = item;
+	}
+}
@@ -0,0 +1,343 @@
+/**
+ * Keeps track of the GL objects a scene has created: geometry buffers,
+ * textures and shader programs. Every resource gets registered with the
+ * size of its objects when it is uploaded, and they get deleted
+ * deterministically when the resource is released. When a GPU memory
+ * budget has been set, the least recently drawn resources get evicted at
+ * the end of a frame until the budget is met again; they get uploaded again
+ * when they are drawn the next time. After the surface has been lost, all
+ * resources get created again lazily as they get drawn. Compiled vertex and
+ * fragment shaders are shared between all programs built from the same
+ * stage source.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ResourceManager {
+	// A compiled vertex or fragment shader and the number of programs using
+	// it, which gets deleted with the last of them
+	static class Stage {
+		String mKey;
+		int mShader;
+		int mReferences;
+	}
+
+	// The registration of a resource with one manager. Only the thread of
+	// that manager touches it, so a resource drawn by another scene gets a
+	// new entry there, and the old one is handed back to be removed.
+	static class Entry {
+		GLResource mResource;
+		ResourceManager mManager;
+		Entry mPrevious, mNext;
+		boolean mLinked;
+		long mSize;
+		int mLastUsed;
+		// The objects of the resource when another scene took it over
+		Orphan mOrphan;
+	}
+
+	// GL objects that a resource has given up when another scene took it
+	// over. They belong to the context of the old scene, so only its thread
+	// can delete them.
+	static class Orphan {
+		int[] mBuffers, mBufferGenerations;
+		int mNumberOfBuffers;
+		int mTexture, mTextureGeneration;
+		int mProgram, mProgramGeneration;
+		Stage mVertexStage, mFragmentStage;
+
+		Orphan() {
+			mBuffers = new int[4];
+			mBufferGenerations = new int[4];
+			mNumberOfBuffers = 0;
+			mTexture = mTextureGeneration = 0;
+			mProgram = mProgramGeneration = 0;
+		}
+
+		void addBuffer(int pBuffer, int pSurfaceGeneration) {
+			if (pSurfaceGeneration == 0)
+				return;
+			if (mNumberOfBuffers == mBuffers.length) {
+				int[] buffers = new int[mBuffers.length * 2];
+				int[] generations = new int[mBuffers.length * 2];
+				System.arraycopy(mBuffers, 0, buffers, 0, mNumberOfBuffers);
+				System.arraycopy(mBufferGenerations, 0, generations, 0, mNumberOfBuffers);
+				mBuffers = buffers;
+				mBufferGenerations = generations;
+			}
+			mBuffers[mNumberOfBuffers] = pBuffer;
+			mBufferGenerations[mNumberOfBuffers] = pSurfaceGeneration;
+			mNumberOfBuffers++;
+		}
+	}
+
+	private GLState mState;
+	private int mSurfaceGeneration;
+	private int mFrame;
+
+	// From the most to the least recently used resource
+	private Entry mFirst, mLast;
+	private int mNumberOfResources;
+	private long mUsedBytes, mBudget;
+	private long mNumberOfEvictions;
+
+	private ConcurrentLinkedQueue<Entry> mReleases;
+	private HashMap<String, Stage> mStages;
+
+	ResourceManager(GLState pState) {
+		mState = pState;
+		mBudget = Long.MAX_VALUE;
+		mReleases = new ConcurrentLinkedQueue<Entry>();
+		mStages = new HashMap<String, Stage>();
+	}
+
+	private void link(Entry pEntry) {
+		pEntry.mPrevious = null;
+		pEntry.mNext = mFirst;
+		if (mFirst != null)
+			mFirst.mPrevious = pEntry;
+		else
+			mLast = pEntry;
+		mFirst = pEntry;
+	}
+
+	private void unlink(Entry pEntry) {
+		if (pEntry.mPrevious != null)
+			pEntry.mPrevious.mNext = pEntry.mNext;
+		else
+			mFirst = pEntry.mNext;
+		if (pEntry.mNext != null)
+			pEntry.mNext.mPrevious = pEntry.mPrevious;
+		else
+			mLast = pEntry.mPrevious;
+		pEntry.mPrevious = pEntry.mNext = null;
+	}
+
+	private void delete(Entry pEntry) {
+		GLResource resource = pEntry.mResource;
+		synchronized (resource) {
+			if (pEntry.mOrphan != null) {
+				delete(pEntry.mOrphan);
+				pEntry.mOrphan = null;
+			}
+			else if (resource.mEntry == pEntry) {
+				resource.deleteObjects(mState, mSurfaceGeneration);
+				resource.mEntry = null;
+			}
+		}
+		unlink(pEntry);
+		pEntry.mLinked = false;
+		mUsedBytes -= pEntry.mSize;
+		mNumberOfResources--;
+	}
+
+	// Names of older surfaces are gone with their context
+	private void delete(Orphan pOrphan) {
+		for (int i = 0; i < pOrphan.mNumberOfBuffers; i++)
+			if (pOrphan.mBufferGenerations[i] == mSurfaceGeneration)
+				mState.deleteBuffer(pOrphan.mBuffers[i]);
+		if (pOrphan.mTextureGeneration == mSurfaceGeneration)
+			mState.deleteTexture(pOrphan.mTexture);
+		if (pOrphan.mProgramGeneration == mSurfaceGeneration && pOrphan.mProgram > 0) {
+			mState.deleteProgram(pOrphan.mProgram);
+			if (pOrphan.mVertexStage != null)
+				releaseStage(pOrphan.mVertexStage);
+			if (pOrphan.mFragmentStage != null)
+				releaseStage(pOrphan.mFragmentStage);
+		}
+	}
+
+	// Takes a resource drawn by another scene before. Called before it
+	// creates its objects for this scene, so the old ones can still be
+	// handed back to be deleted by the thread of the other scene.
+	void claim(GLResource pResource) {
+		takeOver(pResource, true);
+	}
+
+	private void takeOver(GLResource pResource, boolean pOrphanObjects) {
+		Entry entry = pResource.mEntry;
+		if (entry == null || entry.mManager == this)
+			return;
+		synchronized (pResource) {
+			entry = pResource.mEntry;
+			if (entry == null || entry.mManager == this)
+				return;
+			if (pOrphanObjects) {
+				entry.mOrphan = new Orphan();
+				pResource.orphanObjects(entry.mOrphan);
+			}
+			pResource.mEntry = null;
+		}
+		// The other manager removes the entry on its own thread
+		entry.mManager.mReleases.add(entry);
+	}
+
+	void uploaded(GLResource pResource, long pSize) {
+		// Without a claim the objects are already replaced, so only the
+		// entry can be given back
+		takeOver(pResource, false);
+		Entry entry = pResource.mEntry;
+		if (entry == null) {
+			entry = new Entry();
+			entry.mResource = pResource;
+			entry.mManager = this;
+			entry.mLinked = true;
+			link(entry);
+			mNumberOfResources++;
+			pResource.mEntry = entry;
+		}
+		mUsedBytes += pSize - entry.mSize;
+		entry.mSize = pSize;
+		used(pResource);
+	}
+
+	void used(GLResource pResource) {
+		Entry entry = pResource.mEntry;
+		if (entry == null || entry.mManager != this)
+			return;
+		entry.mLastUsed = mFrame;
+		if (entry != mFirst) {
+			unlink(entry);
+			link(entry);
+		}
+	}
+
+	void release(Entry pEntry) {
+		mReleases.add(pEntry);
+	}
+
+	void onSurfaceCreated(int pSurfaceGeneration) {
+		// The objects are gone with the old context, so only forget them
+		Entry entry = mFirst;
+		while (entry != null) {
+			Entry next = entry.mNext;
+			GLResource resource = entry.mResource;
+			synchronized (resource) {
+				if (resource.mEntry == entry)
+					resource.mEntry = null;
+			}
+			entry.mPrevious = entry.mNext = null;
+			entry.mLinked = false;
+			entry.mOrphan = null;
+			entry = next;
+		}
+		mFirst = mLast = null;
+		mNumberOfResources = 0;
+		mUsedBytes = 0;
+		mReleases.clear();
+		mStages.clear();
+		mSurfaceGeneration = pSurfaceGeneration;
+	}
+
+	// Gets the compiled stage for a source, compiling it only if no program
+	// uses it yet
+	Stage acquireStage(int pType, String pSource) {
+		String key = pType + ":" + pSource;
+		Stage stage = mStages.get(key);
+		if (stage == null) {
+			stage = new Stage();
+			stage.mKey = key;
+			stage.mShader = Shader.compile(pType, pSource);
+			mState.count(FrameStats.COUNTER_SHADER_COMPILES, 1);
+			mStages.put(key, stage);
+		}
+		stage.mReferences++;
+		return stage;
+	}
+
+	void releaseStage(Stage pStage) {
+		if (--pStage.mReferences > 0 || mStages.get(pStage.mKey) != pStage)
+			return;
+		if (pStage.mShader != 0)
+			GL.get().glDeleteShader(pStage.mShader);
+		mStages.remove(pStage.mKey);
+	}
+
+	void beginFrame() {
+		mFrame++;
+		// Released resources and resources taken over by other scenes
+		Entry entry;
+		while ((entry = mReleases.poll()) != null)
+			if (entry.mLinked)
+				delete(entry);
+	}
+
+	void endFrame() {
+		// Resources drawn in this frame are at the front of the list, so
+		// the search can stop at the first one
+		Entry entry = mLast;
+		while (entry != null && mUsedBytes > mBudget && entry.mLastUsed != mFrame) {
+			Entry previous = entry.mPrevious;
+			if (entry.mSize > 0) {
+				delete(entry);
+				mNumberOfEvictions++;
+			}
+			entry = previous;
+		}
+	}
+
+	/**
+	 * Deletes the GL objects of all resources right away, e.g. when the
+	 * scene won't be drawn anymore. Must be called on the GL thread.
+	 */
+	public void releaseAll() {
+		while (mFirst != null)
+			delete(mFirst);
+		mReleases.clear();
+	}
+
+	/**
+	 * Sets the GPU memory the resources may use. Resources not drawn in the
+	 * current frame get evicted at its end, least recently drawn first,
+	 * while more is used. Shader programs have no known size and don't
+	 * count. Unlimited by default.
+	 *
+	 * @param pBudget
+	 *            The budget in bytes.
+	 */
+	public void setBudget(long pBudget) {
+		if (pBudget < 0)
+			throw new IllegalArgumentException("Budget must not be negative");
+		mBudget = pBudget;
+	}
+
+	public long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Gets the GPU memory used by the registered resources, as estimated
+	 * from the uploaded data.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getUsedBytes() {
+		return mUsedBytes;
+	}
+
+	public int getNumberOfResources() {
+		return mNumberOfResources;
+	}
+
+	/**
+	 * Gets the number of compiled vertex and fragment shaders, each shared
+	 * by all programs with the same stage source.
+	 */
+	public int getNumberOfStages() {
+		return mStages.size();
+	}
+
+	/**
+	 * Gets the number of resources evicted to meet the budget since the
+	 * manager has been created.
+	 */
+	public long getNumberOfEvictions() {
+		return mNumberOfEvictions;
+	}
+}
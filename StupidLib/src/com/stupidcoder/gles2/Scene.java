@@ -9,6 +9,14 @@ package com.stupidcoder.gles2;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -16,15 +24,43 @@ import javax.microedition.khronos.opengles.GL10;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.util.Log;
 
 public class Scene implements GLSurfaceView.Renderer {
+	/**
+	 * The stereo rendering modes.
+	 */
+	public static final int STEREO_OFF = 0, STEREO_ANAGLYPH = 1, STEREO_SIDE_BY_SIDE = 2;
+
 	static public class Node {
 		private ArrayList<Node> mChildren;
 		private float[] mCurrentMatrix;
 		private Geometry mGeometry;
-		private float[] mIdentityMatrix;
+		private Future<Geometry> mPendingGeometry;
 		private float[] mMatrix;
 		private boolean mVisible;
+		private boolean mStatic;
+		private boolean mBatched;
+		private float[] mBounds, mGeometryBounds;
+		private boolean mHasBounds, mHasGeometryBounds;
+		private int mNumberOfDrawables;
+		private Node mParent, mWorldParent;
+		// The change tracker of the scene, taken from the parent whenever
+		// the graph gets traversed
+		private volatile ChangeTracker mTracker;
+		private boolean mMatrixDirty;
+		private int mWorldVersion, mParentVersion;
+		private Geometry mBoundsGeometry;
+		private int mBoundsVersion;
+
+		// The state the render thread draws. Without pipelining it is the
+		// node's own state, with pipelining it gets copied from snapshots
+		private boolean mPipelined;
+		private ArrayList<Node> mDrawChildren;
+		private float[] mDrawMatrix;
+		private Geometry mDrawGeometry;
+		private boolean mDrawVisible, mDrawDirty;
+		private Octree.Entry mOctreeEntry;
 
 		/**
 		 * Creates a new scene graph node without geometry or shader and with an
@@ -33,30 +69,297 @@ public class Scene implements GLSurfaceView.Renderer {
 		public Node() {
 			mMatrix = new float[16];
 			Matrix.setIdentityM(mMatrix, 0);
-			mIdentityMatrix = new float[16];
-			Matrix.setIdentityM(mIdentityMatrix, 0);
 			mCurrentMatrix = new float[16];
 			mVisible = true;
+			mStatic = false;
+			mBatched = false;
+			mBounds = new float[6];
+			mGeometryBounds = new float[6];
+			mHasBounds = mHasGeometryBounds = false;
+			mNumberOfDrawables = 0;
+			mParent = mWorldParent = null;
+			mMatrixDirty = true;
+			mWorldVersion = mParentVersion = 0;
+			mBoundsGeometry = null;
+			mBoundsVersion = 0;
 			mGeometry = null;
+			mPendingGeometry = null;
 			mChildren = new ArrayList<Node>();
+			mPipelined = false;
+			mDrawChildren = mChildren;
+			mDrawMatrix = mMatrix;
+			mDrawGeometry = null;
+			mDrawVisible = true;
+			mDrawDirty = false;
+			mOctreeEntry = null;
+			mTracker = null;
+		}
+
+		private void markChanged() {
+			ChangeTracker tracker = mTracker;
+			if (tracker != null)
+				tracker.markChanged();
+		}
+
+		// Recalculates the world matrix if the node, its parent or any of
+		// its ancestors have changed since the last calculation
+		private boolean updateWorldMatrix() {
+			if (!mPipelined && mMatrixDirty) {
+				mDrawDirty = true;
+				mMatrixDirty = false;
+			}
+			int parentVersion = mParent != null ? mParent.mWorldVersion : 0;
+			if (!mDrawDirty && mParent == mWorldParent && parentVersion == mParentVersion)
+				return false;
+
+			if (mParent != null)
+				Matrix.multiplyMM(mCurrentMatrix, 0, mParent.mCurrentMatrix, 0, mDrawMatrix, 0);
+			else
+				System.arraycopy(mDrawMatrix, 0, mCurrentMatrix, 0, 16);
+			mWorldParent = mParent;
+			mParentVersion = parentVersion;
+			mDrawDirty = false;
+			mWorldVersion++;
+			return true;
+		}
+
+		/**
+		 * Updates the world matrices and world space bounding boxes of this
+		 * node and its subtree. World matrices only get recalculated for
+		 * nodes that have moved or whose ancestors have moved. The bounding
+		 * box of a node contains its own geometry and the bounding boxes of
+		 * all its children.
+		 * 
+		 * @param pParent
+		 *            The parent node, or null for the root node.
+		 * @param pPipelined
+		 *            True if the draw state has been copied from a snapshot,
+		 *            false to draw the node's own state.
+		 * @param pCamera
+		 *            The camera of the frame, passed to prepare.
+		 * @param pOctree
+		 *            The octree to keep up to date, or null.
+		 */
+		private void update(Node pParent, boolean pPipelined, Camera pCamera, Octree pOctree) {
+			mParent = pParent;
+			if (pParent != null)
+				mTracker = pParent.mTracker;
+			if (!pPipelined) {
+				if (mPipelined)
+					leavePipeline();
+				resolvePendingGeometry();
+				mDrawGeometry = mGeometry;
+				mDrawVisible = mVisible;
+			}
+			boolean moved = updateWorldMatrix();
+			prepare(pCamera);
+
+			Geometry geometry = mDrawGeometry;
+			boolean boundsChanged = false;
+			if (geometry != null && mDrawVisible) {
+				if (!mHasGeometryBounds || moved || geometry != mBoundsGeometry || geometry.getBoundsVersion() != mBoundsVersion) {
+					boundsChanged = true;
+					// Geometry without positions can't be culled, so it gets unlimited bounds
+					if (geometry.getBounds(mGeometryBounds))
+						transformBounds(mCurrentMatrix, mGeometryBounds);
+					else {
+						mGeometryBounds[0] = mGeometryBounds[1] = mGeometryBounds[2] = -Float.MAX_VALUE;
+						mGeometryBounds[3] = mGeometryBounds[4] = mGeometryBounds[5] = Float.MAX_VALUE;
+					}
+					mBoundsGeometry = geometry;
+					mBoundsVersion = geometry.getBoundsVersion();
+				}
+				mHasGeometryBounds = true;
+			}
+			else
+				mHasGeometryBounds = false;
+
+			// Batched geometry is drawn and culled by the static batch
+			mHasBounds = mHasGeometryBounds && !mBatched;
+			mNumberOfDrawables = mHasBounds ? 1 : 0;
+			if (mHasBounds)
+				System.arraycopy(mGeometryBounds, 0, mBounds, 0, 6);
+
+			if (pOctree != null && mHasBounds)
+				mOctreeEntry = pOctree.update(mOctreeEntry, this, mGeometryBounds, boundsChanged);
+			else if (mOctreeEntry != null) {
+				mOctreeEntry.remove();
+				mOctreeEntry = null;
+			}
+
+			for (int i = 0; i < mDrawChildren.size(); i++) {
+				Node child = mDrawChildren.get(i);
+				child.update(this, pPipelined, pCamera, pOctree);
+				if (!child.mHasBounds)
+					continue;
+				if (!mHasBounds) {
+					System.arraycopy(child.mBounds, 0, mBounds, 0, 6);
+					mHasBounds = true;
+				}
+				else {
+					for (int j = 0; j < 3; j++) {
+						mBounds[j] = Math.min(mBounds[j], child.mBounds[j]);
+						mBounds[j + 3] = Math.max(mBounds[j + 3], child.mBounds[j + 3]);
+					}
+				}
+				mNumberOfDrawables += child.mNumberOfDrawables;
+			}
+		}
+
+		void update(boolean pPipelined, Camera pCamera, Octree pOctree) {
+			update(null, pPipelined, pCamera, pOctree);
+		}
+
+		/**
+		 * Called once per frame before culling, after the world matrix has
+		 * been updated, for nodes that need to adapt to the camera. Does
+		 * nothing by default.
+		 * 
+		 * @param pCamera
+		 *            The camera the frame gets drawn with.
+		 */
+		protected void prepare(Camera pCamera) {
+		}
+
+		// Attaches the pending geometry once it has been built. A failed job
+		// leaves the node without geometry instead of stopping the drawing
+		// thread.
+		private void resolvePendingGeometry() {
+			if (mPendingGeometry != null && mPendingGeometry.isDone()) {
+				try {
+					mGeometry = GeometryLoader.get(mPendingGeometry);
+				}
+				catch (RuntimeException e) {
+					Log.e("StupidLib", "Could not attach geometry", e);
+					mGeometry = null;
+				}
+				mPendingGeometry = null;
+			}
+			else if (mPendingGeometry instanceof GeometryLoader.Task)
+				((GeometryLoader.Task) mPendingGeometry).setChangeTracker(mTracker);
+		}
+
+		/**
+		 * Takes over the draw state of this node from a snapshot. Called on
+		 * the render thread in pipelined mode, with the node's parent applied
+		 * before it.
+		 */
+		private void apply(float[] pMatrices, int pOffset, boolean pVisible, Geometry pGeometry) {
+			if (!mPipelined) {
+				mPipelined = true;
+				mDrawMatrix = new float[16];
+				mDrawChildren = new ArrayList<Node>();
+				mDrawDirty = true;
+			}
+			for (int i = 0; i < 16; i++) {
+				if (mDrawMatrix[i] != pMatrices[pOffset + i]) {
+					System.arraycopy(pMatrices, pOffset, mDrawMatrix, 0, 16);
+					mDrawDirty = true;
+					break;
+				}
+			}
+			mDrawVisible = pVisible;
+			mDrawGeometry = pGeometry;
+			mDrawChildren.clear();
 		}
 
-		protected void draw(Camera pCamera, float[] pMatrix, long pSurfaceCreationTime) {
-			Matrix.multiplyMM(mCurrentMatrix, 0, pMatrix, 0, mMatrix, 0);
+		// Switches back to drawing the node's own state after pipelining
+		private void leavePipeline() {
+			mPipelined = false;
+			mDrawMatrix = mMatrix;
+			mDrawChildren = mChildren;
+			mMatrixDirty = true;
+		}
 
-			if (mGeometry != null && mVisible)
-				mGeometry.draw(pCamera, mCurrentMatrix, pSurfaceCreationTime);
+		/**
+		 * Queues the geometry of this node and its subtree for drawing,
+		 * skipping everything outside the frustum. The world matrices and
+		 * bounding boxes must have been updated for the current frame.
+		 * 
+		 * @param pFrustum
+		 *            The frustum to cull against, or null to queue everything.
+		 * @param pOcclusion
+		 *            The occlusion culler to test against after the frustum,
+		 *            or null.
+		 * @param pQueue
+		 *            The queue collecting the render passes.
+		 * @param pInstances
+		 *            The renderer collecting instanceable geometry, or null.
+		 */
+		protected void collect(Camera pCamera, Frustum pFrustum, OcclusionCuller pOcclusion, RenderQueue pQueue,
+				InstanceRenderer pInstances) {
+			if (!mHasBounds)
+				return;
+			if (pFrustum != null && !pFrustum.intersectsBox(mBounds)) {
+				pFrustum.count(0, mNumberOfDrawables);
+				return;
+			}
+			// Occluded subtrees are neither visible nor culled by the frustum
+			if (pOcclusion != null && !pOcclusion.isVisible(mBounds))
+				return;
 
-			for (int i = 0; i < mChildren.size(); i++)
-				mChildren.get(i).draw(pCamera, mCurrentMatrix, pSurfaceCreationTime);
+			if (mHasGeometryBounds && !mBatched) {
+				// Without children the subtree bounds are the geometry bounds, which already passed
+				boolean leaf = mDrawChildren.size() == 0;
+				if (pFrustum == null || leaf || pFrustum.intersectsBox(mGeometryBounds)) {
+					if (pOcclusion == null || leaf || pOcclusion.isVisible(mGeometryBounds)) {
+						queue(pCamera, pQueue, pInstances);
+						if (pFrustum != null)
+							pFrustum.count(1, 0);
+					}
+				}
+				else
+					pFrustum.count(0, 1);
+			}
+
+			for (int i = 0; i < mDrawChildren.size(); i++)
+				mDrawChildren.get(i).collect(pCamera, pFrustum, pOcclusion, pQueue, pInstances);
 		}
 
-		protected void draw(Camera pCamera, long pSurfaceCreationTime) {
-			draw(pCamera, mIdentityMatrix, pSurfaceCreationTime);
+		// Queues this node's own geometry
+		void queue(Camera pCamera, RenderQueue pQueue, InstanceRenderer pInstances) {
+			if (pInstances == null || !pInstances.add(mDrawGeometry, mCurrentMatrix))
+				pQueue.add(mDrawGeometry, mCurrentMatrix, pCamera);
+		}
+
+		// Transforms a bounding box in place and replaces it with the axis
+		// aligned box around the result
+		static private void transformBounds(float[] pMatrix, float[] pBounds) {
+			float minX = pBounds[0], minY = pBounds[1], minZ = pBounds[2];
+			float maxX = pBounds[3], maxY = pBounds[4], maxZ = pBounds[5];
+			for (int i = 0; i < 3; i++) {
+				float min = pMatrix[12 + i], max = pMatrix[12 + i];
+				float a = pMatrix[i] * minX, b = pMatrix[i] * maxX;
+				min += Math.min(a, b);
+				max += Math.max(a, b);
+				a = pMatrix[4 + i] * minY;
+				b = pMatrix[4 + i] * maxY;
+				min += Math.min(a, b);
+				max += Math.max(a, b);
+				a = pMatrix[8 + i] * minZ;
+				b = pMatrix[8 + i] * maxZ;
+				min += Math.min(a, b);
+				max += Math.max(a, b);
+				pBounds[i] = min;
+				pBounds[i + 3] = max;
+			}
 		}
 
 		/**
-		 * Gets the list of children of this scene graph node.
+		 * Gets the world space bounding box of this node's own geometry as of
+		 * the last update.
+		 * 
+		 * @return The minimum X, Y, Z and maximum X, Y, Z, or null if the node
+		 *         has no visible geometry.
+		 */
+		float[] getGeometryBounds() {
+			return mHasGeometryBounds ? mGeometryBounds : null;
+		}
+
+		/**
+		 * Gets the list of children of this scene graph node. While the scene
+		 * is pipelined, the list must only be changed through
+		 * Scene.addChild and Scene.removeChild.
 		 * 
 		 * @return The child nodes.
 		 */
@@ -75,13 +378,49 @@ public class Scene implements GLSurfaceView.Renderer {
 
 		/**
 		 * Gets the current transformation matrix of this scene graph node.
+		 * The matrix may be modified in place, so the node gets marked as
+		 * moved. Use getPosition or getWorldMatrix to only read it.
 		 * 
 		 * @return The current transformation matrix.
 		 */
 		public float[] getMatrix() {
+			mMatrixDirty = true;
+			markChanged();
+			return mMatrix;
+		}
+
+		// Reads the matrix without marking the node as moved
+		float[] getLocalMatrix() {
 			return mMatrix;
 		}
 
+		/**
+		 * Gets the transformation from this node's coordinate system into
+		 * world space, i.e. the product of the matrices of all its ancestors
+		 * and its own. It only gets recalculated if anything on the path to
+		 * the root has moved. The parent of a node is known once the node has
+		 * been part of a drawn scene graph. While the scene is pipelined, the
+		 * world matrix belongs to the render thread and must not be used by
+		 * the logic thread.
+		 * 
+		 * @return The world matrix. It must not be modified.
+		 */
+		public float[] getWorldMatrix() {
+			if (mParent != null)
+				mParent.getWorldMatrix();
+			updateWorldMatrix();
+			return mCurrentMatrix;
+		}
+
+		/**
+		 * Marks this node as moved after its matrix has been changed in place,
+		 * so that the world matrices of its subtree get recalculated.
+		 */
+		public void invalidate() {
+			mMatrixDirty = true;
+			markChanged();
+		}
+
 		public Vec3 getPosition() {
 			return new Vec3(mMatrix[12], mMatrix[13], mMatrix[14]);
 		}
@@ -90,12 +429,16 @@ public class Scene implements GLSurfaceView.Renderer {
 			mMatrix[12] = pPosition.x;
 			mMatrix[13] = pPosition.y;
 			mMatrix[14] = pPosition.z;
+			mMatrixDirty = true;
+			markChanged();
 		}
 
 		public void setPosition(float pX, float pY, float pZ) {
 			mMatrix[12] = pX;
 			mMatrix[13] = pY;
 			mMatrix[14] = pZ;
+			mMatrixDirty = true;
+			markChanged();
 		}
 		
 		/**
@@ -106,6 +449,25 @@ public class Scene implements GLSurfaceView.Renderer {
 		 */
 		public void setGeometry(Geometry pGeometry) {
 			mGeometry = pGeometry;
+			mPendingGeometry = null;
+			markChanged();
+		}
+
+		/**
+		 * Attaches a geometry that is still being built by a GeometryLoader.
+		 * The node draws nothing until the geometry is done, then it gets
+		 * attached on the render thread and uploaded there.
+		 * 
+		 * @param pGeometry
+		 *            The future geometry. Its render passes have to be added
+		 *            before the future is done, by the job creating it or a
+		 *            GeometryLoader.Setup; changing them afterwards races
+		 *            with drawing.
+		 */
+		public void setGeometry(Future<Geometry> pGeometry) {
+			mGeometry = null;
+			mPendingGeometry = pGeometry;
+			markChanged();
 		}
 
 		/**
@@ -116,11 +478,138 @@ public class Scene implements GLSurfaceView.Renderer {
 		 *            The new transformation matrix to use.
 		 */
 		public void setMatrix(float[] pMatrix) {
-			mMatrix = pMatrix.clone();
+			System.arraycopy(pMatrix, 0, mMatrix, 0, 16);
+			mMatrixDirty = true;
+			markChanged();
 		}
 		
 		public void setVisible(boolean pVisible) {
 			mVisible = pVisible;
+			markChanged();
+		}
+
+		public boolean isVisible() {
+			return mVisible;
+		}
+
+		/**
+		 * Marks this node and its whole subtree as static, which allows
+		 * Scene.buildStaticBatches to merge their geometry. Static nodes must
+		 * not be moved once they have been batched.
+		 * 
+		 * @param pStatic
+		 *            True if the subtree never moves.
+		 */
+		public void setStatic(boolean pStatic) {
+			mStatic = pStatic;
+		}
+
+		public boolean isStatic() {
+			return mStatic;
+		}
+
+		void setBatched(boolean pBatched) {
+			mBatched = pBatched;
+		}
+	}
+
+	/**
+	 * A consistent copy of everything the render thread needs from the scene
+	 * graph: the structure, node matrices, visibility and geometry, and the
+	 * camera. In pipelined mode the logic thread writes snapshots and the
+	 * render thread draws them, three of them being passed around so that
+	 * neither thread ever waits for the other's buffer.
+	 */
+	static private class Snapshot {
+		public Node mRoot;
+		public Node[] mNodes;
+		public int[] mParents;
+		public float[] mMatrices;
+		public boolean[] mVisible;
+		public Geometry[] mGeometries;
+		public int mNumberOfNodes;
+		public Camera mCamera;
+		public long mPrerenderTime;
+		// The change tracker version the snapshot contains all changes of
+		public int mVersion;
+		public boolean mFresh;
+
+		public Snapshot() {
+			mNodes = new Node[64];
+			mParents = new int[64];
+			mMatrices = new float[64 * 16];
+			mVisible = new boolean[64];
+			mGeometries = new Geometry[64];
+			mNumberOfNodes = 0;
+			mCamera = new Camera();
+			mFresh = false;
+		}
+
+		/**
+		 * Copies the scene graph and camera. Called on the logic thread.
+		 */
+		public void write(Node pRoot, Camera pCamera) {
+			int previous = mNumberOfNodes;
+			mNumberOfNodes = 0;
+			mRoot = pRoot;
+			if (pRoot != null)
+				add(pRoot, -1);
+			// Let go of nodes that are no longer part of the graph
+			for (int i = mNumberOfNodes; i < previous; i++) {
+				mNodes[i] = null;
+				mGeometries[i] = null;
+			}
+			mCamera.set(pCamera);
+			mFresh = true;
+		}
+
+		// Adds a node and its subtree in depth first order
+		private void add(Node pNode, int pParent) {
+			if (mNumberOfNodes == mNodes.length) {
+				int length = mNodes.length * 2;
+				Node[] nodes = new Node[length];
+				System.arraycopy(mNodes, 0, nodes, 0, mNumberOfNodes);
+				mNodes = nodes;
+				int[] parents = new int[length];
+				System.arraycopy(mParents, 0, parents, 0, mNumberOfNodes);
+				mParents = parents;
+				float[] matrices = new float[length * 16];
+				System.arraycopy(mMatrices, 0, matrices, 0, mNumberOfNodes * 16);
+				mMatrices = matrices;
+				boolean[] visible = new boolean[length];
+				System.arraycopy(mVisible, 0, visible, 0, mNumberOfNodes);
+				mVisible = visible;
+				Geometry[] geometries = new Geometry[length];
+				System.arraycopy(mGeometries, 0, geometries, 0, mNumberOfNodes);
+				mGeometries = geometries;
+			}
+
+			int index = mNumberOfNodes++;
+			// The logic thread owns the graph, so it passes the tracker on
+			if (pParent >= 0)
+				pNode.mTracker = mNodes[pParent].mTracker;
+			pNode.resolvePendingGeometry();
+			mNodes[index] = pNode;
+			mParents[index] = pParent;
+			System.arraycopy(pNode.mMatrix, 0, mMatrices, index * 16, 16);
+			mVisible[index] = pNode.mVisible;
+			mGeometries[index] = pNode.mGeometry;
+
+			ArrayList<Node> children = pNode.mChildren;
+			for (int i = 0; i < children.size(); i++)
+				add(children.get(i), index);
+		}
+
+		/**
+		 * Hands the copied state to the nodes. Called on the render thread.
+		 */
+		public void read() {
+			for (int i = 0; i < mNumberOfNodes; i++) {
+				Node node = mNodes[i];
+				node.apply(mMatrices, i * 16, mVisible[i], mGeometries[i]);
+				if (mParents[i] >= 0)
+					mNodes[mParents[i]].mDrawChildren.add(node);
+			}
 		}
 	}
 
@@ -132,7 +621,7 @@ public class Scene implements GLSurfaceView.Renderer {
 	 */
 	static public void checkGlError() throws RuntimeException {
 		int error;
-		while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR)
+		while ((error = GL.get().glGetError()) != GLES20.GL_NO_ERROR)
 			throw new RuntimeException("glError: " + error);
 	}
 
@@ -141,12 +630,57 @@ public class Scene implements GLSurfaceView.Renderer {
 	private float[] mBackgroundColor;
 	private Camera mCamera;
 	private Node mRoot;
-	private long mSurfaceCreationTime, mLastFrameTime;
-	private boolean mStereo;
+	private int mSurfaceGeneration;
+	private Clock mClock;
+	private long mElapsedRemainder;
+	private FixedTimestep mFixedTimestep;
+	private int mStereoMode;
+	private float mEyeSeparation;
 	private int mWidth, mHeight;
 	
 	private HashMap<String, Shader> mShaders;
 	private HashMap<String, Scene.Node> mSceneNodes;
+	private StaticBatch mStaticBatch;
+	private InstanceRenderer mInstances;
+	private RenderQueue mQueue;
+	private GLState mState;
+	private ResourceManager mResources;
+	private boolean mInstancing;
+	private boolean mCulling;
+	private int mNumberOfVisibleNodes, mNumberOfCulledNodes;
+	private ConcurrentLinkedQueue<Runnable> mChanges;
+
+	// Shaders still to be compiled after the surface has been created, and
+	// their names for the log
+	private boolean mShaderWarmUp;
+	private long mWarmUpBudget, mWarmUpTime;
+	private ArrayList<Shader> mWarmUpShaders;
+	private ArrayList<String> mWarmUpNames;
+	private int mWarmUpNext;
+
+	// Pipelined mode: the logic thread writes the back snapshot and swaps it
+	// with the pending one, the render thread swaps its front snapshot with
+	// the pending one whenever that is fresh
+	private volatile boolean mPipelined;
+	private Thread mLogicThread;
+	private AtomicReference<Snapshot> mPendingSnapshot;
+	private Snapshot mBackSnapshot, mFrontSnapshot;
+	private Semaphore mFrameSignal;
+	// The version of the last snapshot the render thread has taken
+	private volatile int mConsumedVersion;
+
+	private ChangeTracker mTracker;
+	private boolean mRenderContinuously;
+
+	private Octree mOctree;
+	private ArrayList<Node> mOctreeNodes;
+	private OcclusionCuller mOcclusionCuller;
+	private int mNumberOfOccludedNodes;
+	private FrameStats mStats;
+
+	// Counts surface creations across all scenes, so that resources shared
+	// between scenes never mistake one surface for another
+	private static final AtomicInteger sSurfaceGenerations = new AtomicInteger();
 	
 	public interface RenderEvent {
 		public void prerender(Scene pScene, long pElapsedTime);
@@ -158,18 +692,46 @@ public class Scene implements GLSurfaceView.Renderer {
 	 */
 	public Scene(RenderEvent pEventReceiver) {
 		super();
+		mTracker = new ChangeTracker();
 		mRoot = new Node();
+		mRoot.mTracker = mTracker;
 		mCamera = new Camera();
-		mSurfaceCreationTime = 0;
-		mLastFrameTime = 0;
+		mCamera.mTracker = mTracker;
+		mSurfaceGeneration = 0;
+		mClock = new Clock();
+		mElapsedRemainder = 0;
+		mFixedTimestep = null;
 		mWidth = mHeight = 0;
 		mAspect = 1.0f;
 		mBackgroundColor = new float[] { 0.0f, 0.0f, 0.0f, 1.0f };
 		mEventReceiver = pEventReceiver;
-		mStereo = false;
+		mStereoMode = STEREO_OFF;
+		mEyeSeparation = 0.2f;
 		
 		mShaders = new HashMap<String, Shader>();
 		mSceneNodes = new HashMap<String, Scene.Node>();
+		mStaticBatch = new StaticBatch();
+		mInstances = new InstanceRenderer();
+		mQueue = new RenderQueue();
+		mState = new GLState();
+		mResources = new ResourceManager(mState);
+		mState.setResourceManager(mResources);
+		mState.setChangeTracker(mTracker);
+		mInstancing = true;
+		mCulling = true;
+		mNumberOfVisibleNodes = mNumberOfCulledNodes = 0;
+		mChanges = new ConcurrentLinkedQueue<Runnable>();
+		mShaderWarmUp = true;
+		mWarmUpBudget = Long.MAX_VALUE;
+		mWarmUpShaders = new ArrayList<Shader>();
+		mWarmUpNames = new ArrayList<String>();
+		mWarmUpNext = 0;
+		mPipelined = false;
+		mRenderContinuously = false;
+		mOctree = null;
+		mOctreeNodes = new ArrayList<Node>();
+		mOcclusionCuller = null;
+		mNumberOfOccludedNodes = 0;
 	}
 
 	/**
@@ -181,6 +743,17 @@ public class Scene implements GLSurfaceView.Renderer {
 		return mCamera;
 	}
 
+	/**
+	 * Gets the change tracker that the camera, scene graph nodes, shaders
+	 * and geometry of this scene mark their changes with, e.g. to redraw a
+	 * view only when something has changed.
+	 * 
+	 * @return The change tracker of this scene.
+	 */
+	public ChangeTracker getChangeTracker() {
+		return mTracker;
+	}
+
 	/**
 	 * Gets the current root node of the scene graph.
 	 * 
@@ -190,71 +763,704 @@ public class Scene implements GLSurfaceView.Renderer {
 		return mRoot;
 	}
 	
+	public boolean getInstancing() {
+		return mInstancing;
+	}
+
+	/**
+	 * Enables or disables instanced drawing. When enabled, all nodes sharing
+	 * a geometry whose shaders support instancing are drawn together after
+	 * the scene graph traversal, several instances per draw call.
+	 * 
+	 * @param pInstancing
+	 *            True to enable instanced drawing.
+	 */
+	public void setInstancing(boolean pInstancing) {
+		mInstancing = pInstancing;
+		if (!pInstancing)
+			mInstances.clear();
+	}
+
+	/**
+	 * Gets the render queue, which can be used to switch sorting on or off
+	 * and to check how many state changes sorting saves.
+	 * 
+	 * @return The render queue used for drawing.
+	 */
+	public RenderQueue getRenderQueue() {
+		return mQueue;
+	}
+
+	/**
+	 * Gets the GL state tracker used for drawing this scene. Code that
+	 * changes GL state directly during prerender must either go through it
+	 * or call its reset method afterwards.
+	 * 
+	 * @return The state tracker, whose counters cover the last frame.
+	 */
+	public GLState getGLState() {
+		return mState;
+	}
+
+	/**
+	 * Gets the manager of the GL objects created for drawing this scene,
+	 * e.g. for setting a GPU memory budget.
+	 */
+	public ResourceManager getResourceManager() {
+		return mResources;
+	}
+
+	public boolean getCulling() {
+		return mCulling;
+	}
+
+	/**
+	 * Enables or disables view frustum culling. When enabled, nodes whose
+	 * bounding boxes are outside the camera's view are not drawn, and whole
+	 * subtrees outside of it are skipped with a single test.
+	 * 
+	 * @param pCulling
+	 *            True to enable culling.
+	 */
+	public void setCulling(boolean pCulling) {
+		mCulling = pCulling;
+	}
+
+	/**
+	 * Gets the number of scene graph nodes with geometry that have been
+	 * drawn in the last frame.
+	 * 
+	 * @return The number of visible nodes.
+	 */
+	public int getNumberOfVisibleNodes() {
+		return mNumberOfVisibleNodes;
+	}
+
+	/**
+	 * Gets the number of scene graph nodes with geometry that have been
+	 * skipped by view frustum culling in the last frame.
+	 * 
+	 * @return The number of culled nodes.
+	 */
+	public int getNumberOfCulledNodes() {
+		return mNumberOfCulledNodes;
+	}
+
 	public boolean getStereo() {
-		return mStereo;
+		return mStereoMode != STEREO_OFF;
 	}
 	
+	/**
+	 * Switches between mono and red/green anaglyph stereo rendering.
+	 */
 	public void setStereo(boolean pStereo) {
-		mStereo = pStereo;
+		mStereoMode = pStereo ? STEREO_ANAGLYPH : STEREO_OFF;
+		mTracker.markChanged();
+	}
+
+	public int getStereoMode() {
+		return mStereoMode;
+	}
+
+	/**
+	 * Sets the stereo rendering mode. In both stereo modes the scene graph
+	 * gets culled and sorted once per frame for both eyes, and the resulting
+	 * draw list is drawn once per eye with that eye's view matrix.
+	 * 
+	 * @param pMode
+	 *            STEREO_OFF, STEREO_ANAGLYPH to draw both eyes into the color
+	 *            channels of a red/green anaglyph, or STEREO_SIDE_BY_SIDE to
+	 *            draw the left eye into the left and the right eye into the
+	 *            right half of the surface.
+	 */
+	public void setStereoMode(int pMode) {
+		mStereoMode = pMode;
+		mTracker.markChanged();
+	}
+
+	public float getEyeSeparation() {
+		return mEyeSeparation;
+	}
+
+	public void setEyeSeparation(float pSeparation) {
+		mEyeSeparation = pSeparation;
+		mTracker.markChanged();
+	}
+
+	public boolean getRenderContinuously() {
+		return mRenderContinuously;
+	}
+
+	/**
+	 * Makes every frame request the next one, for animations driven by
+	 * things the change tracking doesn't see, like the elapsed time passed
+	 * to prerender. Otherwise a GLES2View only draws a frame when a camera,
+	 * node, shader or geometry has changed.
+	 * 
+	 * @param pContinuously
+	 *            True to keep drawing frames.
+	 */
+	public void setRenderContinuously(boolean pContinuously) {
+		mRenderContinuously = pContinuously;
+		mTracker.markChanged();
+	}
+
+	/**
+	 * Requests a single new frame, after making changes the change tracking
+	 * doesn't see, like modifying the list returned by Node.getChildren.
+	 */
+	public void requestRender() {
+		mTracker.markChanged();
+	}
+
+	public Octree getOctree() {
+		return mOctree;
+	}
+
+	/**
+	 * Sets the octree that indexes the scene graph nodes with geometry. The
+	 * scene keeps it up to date as nodes move, are added or removed. While
+	 * culling is enabled, the visible nodes are then found by an octree
+	 * query instead of walking the scene graph. Queries of the octree must
+	 * be made on the render thread.
+	 * 
+	 * @param pOctree
+	 *            The octree to use, or null to use none.
+	 */
+	public void setOctree(Octree pOctree) {
+		mOctree = pOctree;
+	}
+
+	public OcclusionCuller getOcclusionCuller() {
+		return mOcclusionCuller;
+	}
+
+	/**
+	 * Sets the occlusion culler. While culling is enabled and stereo
+	 * rendering is off, its occluders get rasterized every frame after the
+	 * scene graph has been updated, and nodes that passed the frustum test
+	 * are only drawn if they are not hidden behind them.
+	 * 
+	 * @param pOcclusionCuller
+	 *            The occlusion culler to use, or null to use none.
+	 */
+	public void setOcclusionCuller(OcclusionCuller pOcclusionCuller) {
+		mOcclusionCuller = pOcclusionCuller;
+	}
+
+	public FrameStats getFrameStats() {
+		return mStats;
+	}
+
+	/**
+	 * Sets the statistics to collect while drawing. Without statistics
+	 * nothing gets timed or counted.
+	 * 
+	 * @param pStats
+	 *            The statistics to record each frame in, or null to stop
+	 *            collecting statistics.
+	 */
+	public void setFrameStats(FrameStats pStats) {
+		mStats = pStats;
+		mState.setFrameStats(pStats);
+	}
+
+	public Clock getClock() {
+		return mClock;
+	}
+
+	/**
+	 * Sets the clock that measures the time between frames, e.g. one with
+	 * a simulated time for replays. Should not be changed while pipelined.
+	 * 
+	 * @param pClock
+	 *            The new clock.
+	 */
+	public void setClock(Clock pClock) {
+		mClock = pClock;
+		mClock.reset();
+	}
+
+	public FixedTimestep getFixedTimestep() {
+		return mFixedTimestep;
+	}
+
+	/**
+	 * Sets a scheduler whose steps run at a fixed rate, before the prerender
+	 * event of each frame. The prerender event can then place things between
+	 * their last two steps using getInterpolationAlpha.
+	 * 
+	 * @param pTimestep
+	 *            The scheduler to advance every frame, or null to use none.
+	 */
+	public void setFixedTimestep(FixedTimestep pTimestep) {
+		mFixedTimestep = pTimestep;
+		if (pTimestep != null)
+			pTimestep.reset();
+	}
+
+	/**
+	 * Gets how far the current frame lies between the last two fixed steps.
+	 * 
+	 * @return The interpolation alpha of the fixed step scheduler, or 1 if
+	 *         there is none.
+	 */
+	public float getInterpolationAlpha() {
+		FixedTimestep timestep = mFixedTimestep;
+		return timestep != null ? timestep.getAlpha() : 1.0f;
+	}
+
+	/**
+	 * Gets the generation of the current GL surface, which counts up every
+	 * time a surface gets created. Needed for drawing geometry directly.
+	 */
+	public int getSurfaceGeneration() {
+		return mSurfaceGeneration;
+	}
+
+	/**
+	 * Gets the number of scene graph nodes with geometry that have passed
+	 * view frustum culling but were hidden behind occluders in the last
+	 * frame. Nodes in hidden subtrees are only counted once for the
+	 * subtree.
+	 * 
+	 * @return The number of occluded nodes or subtrees.
+	 */
+	public int getNumberOfOccludedNodes() {
+		return mNumberOfOccludedNodes;
+	}
+
+	public boolean getPipelined() {
+		return mPipelined;
+	}
+
+	/**
+	 * Enables or disables pipelined mode. In pipelined mode the prerender
+	 * event is called on a separate logic thread, one frame ahead of the
+	 * render thread, so that logic and drawing run in parallel. After each
+	 * prerender call the logic thread publishes a snapshot of the scene
+	 * graph and the camera, which the render thread draws without locking.
+	 * While pipelined, children must be added and removed with addChild and
+	 * removeChild, static batches must not be rebuilt, and node world
+	 * matrices must not be read by the logic code.
+	 * 
+	 * @param pPipelined
+	 *            True to run the prerender event on a logic thread.
+	 */
+	public void setPipelined(boolean pPipelined) {
+		if (pPipelined == mPipelined)
+			return;
+
+		if (pPipelined) {
+			mPendingSnapshot = new AtomicReference<Snapshot>(new Snapshot());
+			mBackSnapshot = new Snapshot();
+			mFrameSignal = new Semaphore(1);
+			// The first snapshot always needs a frame
+			mConsumedVersion = mTracker.getVersion() - 1;
+			mLogicThread = new Thread(new Runnable() {
+				public void run() {
+					runLogic();
+				}
+			}, "StupidLib logic");
+			mLogicThread.setDaemon(true);
+			mLogicThread.start();
+			mPipelined = true;
+		}
+		else {
+			mLogicThread.interrupt();
+			try {
+				mLogicThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mLogicThread = null;
+			mPipelined = false;
+		}
+	}
+
+	// The logic thread's loop, running one frame ahead of the render thread
+	private void runLogic() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				mFrameSignal.acquire();
+				int version = mTracker.getVersion();
+				long start = Clock.nanoTime();
+				prerender(mClock.tick());
+				applyChanges();
+
+				mBackSnapshot.write(mRoot, mCamera);
+				mBackSnapshot.mPrerenderTime = Clock.nanoTime() - start;
+				mBackSnapshot.mVersion = version;
+				mBackSnapshot = mPendingSnapshot.getAndSet(mBackSnapshot);
+				// Frames requested by the changes in this snapshot may have
+				// drawn the previous one, whether the changes were made
+				// before or during prerender. Changes made during prerender
+				// are newer than the snapshot's version, so they also get
+				// published by the next iteration.
+				if (version - mConsumedVersion > 0 || mTracker.getVersion() != version)
+					mTracker.requestFrame();
+			}
+		} catch (InterruptedException e) {
+			// Pipelining has been switched off
+		}
+	}
+
+	/**
+	 * Adds a child to a node between two frames. Unlike changing the list
+	 * returned by getChildren, this is safe from any thread and in
+	 * pipelined mode.
+	 * 
+	 * @param pParent
+	 *            The node to add the child to.
+	 * @param pChild
+	 *            The new child node.
+	 */
+	public void addChild(final Node pParent, final Node pChild) {
+		mChanges.add(new Runnable() {
+			public void run() {
+				pParent.mChildren.add(pChild);
+			}
+		});
+		mTracker.markChanged();
+	}
+
+	/**
+	 * Removes a child from a node between two frames. Unlike changing the
+	 * list returned by getChildren, this is safe from any thread and in
+	 * pipelined mode.
+	 * 
+	 * @param pParent
+	 *            The node to remove the child from.
+	 * @param pChild
+	 *            The child node to remove.
+	 */
+	public void removeChild(final Node pParent, final Node pChild) {
+		mChanges.add(new Runnable() {
+			public void run() {
+				pParent.mChildren.remove(pChild);
+			}
+		});
+		mTracker.markChanged();
+	}
+
+	// Applies the queued structural changes on the thread owning the graph
+	private void applyChanges() {
+		Runnable change;
+		while ((change = mChanges.poll()) != null)
+			change.run();
+	}
+
+	// Runs the due fixed steps and the prerender event, on the render thread
+	// or in pipelined mode on the logic thread
+	private void prerender(long pElapsed) {
+		FixedTimestep timestep = mFixedTimestep;
+		if (timestep != null)
+			timestep.advance(this, pElapsed);
+
+		// The event gets whole milliseconds, the rest is carried over so
+		// that the times add up
+		long elapsed = pElapsed + mElapsedRemainder;
+		mElapsedRemainder = elapsed % 1000000;
+		mEventReceiver.prerender(this, elapsed / 1000000);
 	}
 
 	public void onDrawFrame(GL10 gl) {
-		long currentTime = Tools.currentTime();
-		mEventReceiver.prerender(this, currentTime - mLastFrameTime);
-		mLastFrameTime = currentTime;
-		
-		GLES20.glClearColor(mBackgroundColor[0], mBackgroundColor[1], mBackgroundColor[2], mBackgroundColor[3]);
-		GLES20.glClearDepthf(1.0f);
-		GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+		FrameStats stats = mStats;
+		if (stats != null)
+			stats.beginFrame();
+		mState.resetCounters();
+		mTracker.beginFrame();
+		mResources.beginFrame();
+		if (mWarmUpNext < mWarmUpShaders.size())
+			warmUpShaders(mWarmUpBudget);
 
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDepthFunc(GLES20.GL_LEQUAL);
+		boolean pipelined = mPipelined;
+		Node root;
+		Camera camera;
+		if (pipelined) {
+			Snapshot pending = mPendingSnapshot.get();
+			if (pending.mFresh) {
+				Snapshot front = mFrontSnapshot != null ? mFrontSnapshot : new Snapshot();
+				front.mFresh = false;
+				mFrontSnapshot = mPendingSnapshot.getAndSet(front);
+				mFrontSnapshot.read();
+				mConsumedVersion = mFrontSnapshot.mVersion;
+				// Let the logic thread start on the next frame
+				mFrameSignal.release();
+				// Prerendering ran on the logic thread in parallel to the
+				// last frame
+				if (stats != null)
+					stats.add(FrameStats.PHASE_PRERENDER, mFrontSnapshot.mPrerenderTime);
+			}
+			// Nothing can be drawn before the first snapshot
+			root = mFrontSnapshot != null ? mFrontSnapshot.mRoot : null;
+			camera = mFrontSnapshot != null ? mFrontSnapshot.mCamera : null;
+		}
+		else {
+			if (stats != null)
+				stats.begin(FrameStats.PHASE_PRERENDER);
+			prerender(mClock.tick());
+			applyChanges();
+			if (stats != null)
+				stats.end(FrameStats.PHASE_PRERENDER);
+			mFrontSnapshot = null;
+			root = mRoot;
+			camera = mCamera;
+		}
 		
-		if (mRoot != null && mCamera != null) {
-			mCamera.setAspect(mAspect);
+		// Clearing honors the masks, so they have to be set before
+		mState.colorMask(true, true, true, true);
+		mState.depthMask(true);
+		GL.get().glClearColor(mBackgroundColor[0], mBackgroundColor[1], mBackgroundColor[2], mBackgroundColor[3]);
+		GL.get().glClearDepthf(1.0f);
+		GL.get().glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
-			if (!mStereo)
-			{
-				mCamera.updateCamera();
-				mRoot.draw(mCamera, mSurfaceCreationTime);
+		mState.enable(GLES20.GL_DEPTH_TEST);
+		mState.depthFunc(GLES20.GL_LEQUAL);
+		
+		if (root != null && camera != null) {
+			camera.setAspect(mStereoMode == STEREO_SIDE_BY_SIDE ? mAspect / 2.0f : mAspect);
+			camera.updateCamera();
+			if (mStereoMode != STEREO_OFF)
+				camera.updateStereo(mEyeSeparation);
+			if (stats != null)
+				stats.begin(FrameStats.PHASE_TRAVERSAL);
+			Octree octree = mOctree;
+			if (octree != null)
+				octree.beginUpdate();
+			root.update(pipelined, camera, octree);
+			if (octree != null)
+				octree.endUpdate();
+			collectGraph(root, camera, octree);
+			if (stats != null) {
+				stats.end(FrameStats.PHASE_TRAVERSAL);
+				stats.begin(FrameStats.PHASE_DRAW);
 			}
-			else
+
+			if (mStereoMode == STEREO_ANAGLYPH)
 			{
-				mCamera.pan(0.1f, 0.0f, 0.0f);
-				mCamera.updateCamera();
-				GLES20.glColorMask(true, false, true, true);
-				mRoot.draw(mCamera, mSurfaceCreationTime);
+				camera.setEye(Camera.EYE_RIGHT);
+				mState.colorMask(true, false, true, true);
+				drawGraph(camera);
 				
-				mCamera.pan(-0.2f, 0.0f, 0.0f);
-				mCamera.updateCamera();
-				GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
-				GLES20.glColorMask(false, true, false, true);
-				mRoot.draw(mCamera, mSurfaceCreationTime);
+				camera.setEye(Camera.EYE_LEFT);
+				GL.get().glClear(GLES20.GL_DEPTH_BUFFER_BIT);
+				mState.colorMask(false, true, false, true);
+				drawGraph(camera);
 				
-				mCamera.pan(0.1f, 0.0f, 0.0f);
-				GLES20.glColorMask(true, true, true, true);
+				camera.setEye(Camera.EYE_CENTER);
+				mState.colorMask(true, true, true, true);
+			}
+			else if (mStereoMode == STEREO_SIDE_BY_SIDE)
+			{
+				camera.setEye(Camera.EYE_LEFT);
+				mState.viewport(0, 0, mWidth / 2, mHeight);
+				drawGraph(camera);
+
+				camera.setEye(Camera.EYE_RIGHT);
+				mState.viewport(mWidth / 2, 0, mWidth - mWidth / 2, mHeight);
+				drawGraph(camera);
+
+				camera.setEye(Camera.EYE_CENTER);
+				mState.viewport(0, 0, mWidth, mHeight);
 			}
+			else
+				drawGraph(camera);
+
+			if (stats != null)
+				stats.end(FrameStats.PHASE_DRAW);
+			mQueue.clear();
+			mInstances.reset();
 		}
 
+		mResources.endFrame();
 		checkGlError();
+		if (stats != null)
+			stats.endFrame();
+		// Keep frames coming until the warm-up is done
+		if (mRenderContinuously || mWarmUpNext < mWarmUpShaders.size())
+			mTracker.markChanged();
+	}
+
+	// Culls and sorts the scene graph once per frame, for one or both eyes
+	private void collectGraph(Node pRoot, Camera pCamera, Octree pOctree) {
+		Frustum frustum = mCulling ? pCamera.getFrustum() : null;
+		InstanceRenderer instances = mInstancing ? mInstances : null;
+		if (frustum != null)
+			frustum.resetCounters();
+
+		// The occluders are rasterized from the center eye only, which
+		// would not be conservative for the stereo eyes
+		OcclusionCuller occlusion = frustum != null && mStereoMode == STEREO_OFF ? mOcclusionCuller : null;
+		if (occlusion != null) {
+			occlusion.resetCounters();
+			occlusion.render(pCamera.getViewProjection());
+		}
+
+		if (frustum != null && pOctree != null) {
+			mOctreeNodes.clear();
+			pOctree.queryFrustum(frustum, mOctreeNodes);
+			int numberOfVisible = 0;
+			for (int i = 0; i < mOctreeNodes.size(); i++) {
+				Node node = mOctreeNodes.get(i);
+				if (occlusion == null || occlusion.isVisible(node.mGeometryBounds)) {
+					node.queue(pCamera, mQueue, instances);
+					numberOfVisible++;
+				}
+			}
+			frustum.count(numberOfVisible, pRoot.mNumberOfDrawables - mOctreeNodes.size());
+			mOctreeNodes.clear();
+		}
+		else
+			pRoot.collect(pCamera, frustum, occlusion, mQueue, instances);
+		mNumberOfOccludedNodes = occlusion != null ? occlusion.getNumberOfOccluded() : 0;
+		mStaticBatch.cull(frustum);
+
+		if (frustum != null) {
+			mNumberOfVisibleNodes = frustum.getNumberOfVisible();
+			mNumberOfCulledNodes = frustum.getNumberOfCulled();
+		}
+		else {
+			mNumberOfVisibleNodes = pRoot.mNumberOfDrawables + mStaticBatch.getNumberOfNodes();
+			mNumberOfCulledNodes = 0;
+		}
+	}
+
+	// Draws the collected draw list with the view matrix of the current eye
+	private void drawGraph(Camera pCamera) {
+		// Instanced and batched passes are drawn with the queued passes of
+		// their layer, so that a higher layer is drawn over all of them
+		for (int layer = 0; layer <= RenderQueue.MAX_LAYER; layer++) {
+			mQueue.draw(pCamera, layer, mSurfaceGeneration, mState);
+			mInstances.draw(pCamera, layer, mSurfaceGeneration, mState);
+			mStaticBatch.draw(pCamera, layer, mSurfaceGeneration, mState);
+		}
 	}
 
 	public void onSurfaceChanged(GL10 gl, int width, int height) {
 		mWidth = width;
 		mHeight = height;
 		mAspect = (float) mWidth / (float) mHeight;
-		GLES20.glViewport(0, 0, mWidth, mHeight);
+		mState.viewport(0, 0, mWidth, mHeight);
 	}
 
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-		mSurfaceCreationTime = Tools.currentTime();
-		mLastFrameTime = Tools.currentTime();
-		GLES20.glDepthMask(true);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDepthFunc(GLES20.GL_LESS);
-		GLES20.glFrontFace(GLES20.GL_CCW);
-		GLES20.glEnable(GLES20.GL_CULL_FACE);
-		GLES20.glCullFace(GLES20.GL_BACK);
+		mSurfaceGeneration = sSurfaceGenerations.incrementAndGet();
+		// The logic thread owns the clock while pipelined
+		if (!mPipelined)
+			mClock.reset();
+		// The new context starts with default state, whatever was set before
+		mState.reset();
+		mResources.onSurfaceCreated(mSurfaceGeneration);
+		mState.depthMask(true);
+		mState.enable(GLES20.GL_DEPTH_TEST);
+		mState.depthFunc(GLES20.GL_LESS);
+		mState.frontFace(GLES20.GL_CCW);
+		mState.enable(GLES20.GL_CULL_FACE);
+		mState.cullFace(GLES20.GL_BACK);
+
+		queueWarmUp();
+		if (mWarmUpBudget == Long.MAX_VALUE)
+			warmUpShaders(Long.MAX_VALUE);
+	}
+
+	// Queues the shaders created with createShader and their variants for
+	// compiling on the new surface
+	private void queueWarmUp() {
+		mWarmUpShaders.clear();
+		mWarmUpNames.clear();
+		mWarmUpNext = 0;
+		mWarmUpTime = 0;
+		if (!mShaderWarmUp)
+			return;
+		ArrayList<Shader> variants = new ArrayList<Shader>();
+		Iterator<Map.Entry<String, Shader>> shaders = mShaders.entrySet().iterator();
+		while (shaders.hasNext()) {
+			Map.Entry<String, Shader> entry = shaders.next();
+			mWarmUpShaders.add(entry.getValue());
+			mWarmUpNames.add(entry.getKey());
+			variants.clear();
+			entry.getValue().getVariants(variants);
+			for (int i = 0; i < variants.size(); i++) {
+				mWarmUpShaders.add(variants.get(i));
+				mWarmUpNames.add(entry.getKey() + " [" + variants.get(i).getKeywordString() + "]");
+			}
+		}
+	}
+
+	// Compiles queued shaders until the budget is used up, but at least one
+	// so that the warm-up always makes progress
+	private void warmUpShaders(long pBudget) {
+		long start = Clock.nanoTime();
+		while (mWarmUpNext < mWarmUpShaders.size()) {
+			Shader shader = mWarmUpShaders.get(mWarmUpNext);
+			String name = mWarmUpNames.get(mWarmUpNext);
+			mWarmUpNext++;
+			try {
+				if (shader.build(mSurfaceGeneration, mState))
+					Log.i("StupidLib", String.format(Locale.US, "Compiled shader %s in %.2f ms, linked in %.2f ms",
+							name, shader.getCompileTime(), shader.getLinkTime()));
+			}
+			catch (RuntimeException e) {
+				// Drawing with the shader will try again and fail the same way
+				Log.e("StupidLib", "Could not build shader " + name + ": " + e.getMessage());
+			}
+			if (Clock.nanoTime() - start >= pBudget)
+				break;
+		}
+		mWarmUpTime += Clock.nanoTime() - start;
+
+		if (mWarmUpNext == mWarmUpShaders.size()) {
+			Log.i("StupidLib", String.format(Locale.US, "Warmed up %d shaders in %.2f ms",
+					mWarmUpShaders.size(), mWarmUpTime / 1000000.0f));
+			mWarmUpShaders.clear();
+			mWarmUpNames.clear();
+			mWarmUpNext = 0;
+		}
+	}
+
+	public boolean getShaderWarmUp() {
+		return mShaderWarmUp;
+	}
+
+	/**
+	 * Enables or disables compiling the shaders created with createShader,
+	 * including the variants requested so far, when the surface is created.
+	 * Otherwise a shader gets compiled when it is first drawn, which stalls
+	 * that frame. Enabled by default; takes effect with the next surface.
+	 * 
+	 * @param pWarmUp
+	 *            True to compile the shaders ahead of drawing.
+	 */
+	public void setShaderWarmUp(boolean pWarmUp) {
+		mShaderWarmUp = pWarmUp;
+	}
+
+	public long getShaderWarmUpBudget() {
+		return mWarmUpBudget;
+	}
+
+	/**
+	 * Limits the time the shader warm-up may take per frame. With a limit,
+	 * the shaders get compiled at the start of the following frames until
+	 * the budget of each is used up, and frames keep getting requested
+	 * until all are done; a shader drawn before its turn gets compiled then.
+	 * Unlimited by default, which compiles all of them in onSurfaceCreated.
+	 * 
+	 * @param pBudget
+	 *            The time in nanoseconds, or Long.MAX_VALUE for no limit.
+	 */
+	public void setShaderWarmUpBudget(long pBudget) {
+		if (pBudget < 0)
+			throw new IllegalArgumentException("Budget must not be negative");
+		mWarmUpBudget = pBudget;
+	}
+
+	/**
+	 * Gets the number of shaders the warm-up still has to compile.
+	 */
+	public int getNumberOfShadersToWarmUp() {
+		return mWarmUpShaders.size() - mWarmUpNext;
 	}
 
 	/**
@@ -274,6 +1480,7 @@ public class Scene implements GLSurfaceView.Renderer {
 		mBackgroundColor[1] = pG;
 		mBackgroundColor[2] = pB;
 		mBackgroundColor[3] = pA;
+		mTracker.markChanged();
 	}
 
 	/**
@@ -284,6 +1491,8 @@ public class Scene implements GLSurfaceView.Renderer {
 	 */
 	public void setCamera(Camera pCamera) {
 		mCamera = pCamera;
+		pCamera.mTracker = mTracker;
+		mTracker.markChanged();
 	}
 
 	/**
@@ -294,10 +1503,35 @@ public class Scene implements GLSurfaceView.Renderer {
 	 */
 	public void setRoot(Node pRoot) {
 		mRoot = pRoot;
+		pRoot.mTracker = mTracker;
+		mTracker.markChanged();
 	}
 	
+	/**
+	 * Merges the geometry of all static subtrees of the scene graph into
+	 * shared buffers, grouped by vertex format, shader, textures and render
+	 * states. Any previously built batches get replaced.
+	 * 
+	 * @return The batch containing the merged geometry.
+	 */
+	public StaticBatch buildStaticBatches() {
+		mStaticBatch.build(mRoot);
+		mTracker.markChanged();
+		return mStaticBatch;
+	}
+
+	/**
+	 * Removes all static batches, letting the nodes draw their own geometry
+	 * again.
+	 */
+	public void clearStaticBatches() {
+		mStaticBatch.clear();
+		mTracker.markChanged();
+	}
+
 	public Shader createShader(String pName) {
 		Shader shader = new Shader();
+		shader.mTracker = mTracker;
 		mShaders.put(pName, shader);
 		return shader;
 	}
@@ -8,75 +8,477 @@
 package com.stupidcoder.gles2;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.content.res.Resources;
 import android.opengl.GLES20;
 
-public class Shader {
+public class Shader extends GLResource {
 	private String mVertexSource;
 	private String mFragmentSource;
 
 	private int mProgram;	
-	private long mLastBuild;
+	private int mBuiltGeneration;
+	private int mProgramGeneration;
 	private Map<String, Integer> mLocations;
+	private int mMaxInstances;
+	private int mId;
+
+	private static final Pattern INSTANCE_ARRAY = Pattern.compile("u_instanceModels\\s*\\[\\s*(\\d+)\\s*\\]");
+
+	/**
+	 * The handles of the uniforms u_projection, u_view and u_model, which
+	 * every geometry sets before drawing a pass. They are the same for every
+	 * shader.
+	 */
+	public static final int UNIFORM_PROJECTION = 0, UNIFORM_VIEW = 1, UNIFORM_MODEL = 2;
+
+	// Locations that haven't been looked up in the current program yet
+	private static final int UNRESOLVED = -2;
 	
 	public static class ShaderParameter {
 		public int count;
 		public float[] values;
+		volatile int mVersion;
+		boolean mShared;
+		// The geometry or shader it has been set on last, whose scene gets
+		// told about changes
+		volatile GLResource mOwner;
 		
 		public ShaderParameter(int pCount, float[] pValues) {
 			count = pCount;
 			values = pValues;
 		}
+
+		/**
+		 * Marks the values as changed after they have been modified in place.
+		 * A parameter set as an object with setShaderParameter or setUniform
+		 * is shared: its values only get compared with the ones uploaded
+		 * before after a change has been marked, so every change has to be.
+		 */
+		public void markChanged() {
+			mVersion++;
+			GLResource owner = mOwner;
+			if (owner != null)
+				owner.markChanged();
+		}
+
+		/**
+		 * Gets the number of times the values have been marked as changed.
+		 */
+		public int getVersion() {
+			return mVersion;
+		}
+	}
+
+	// A uniform registered with uniform(), stored at its handle. The values
+	// are either the own storage of the uniform, an array passed to
+	// setShaderParameter or a shared parameter, or null if the uniform isn't
+	// set. The shadow is what has last been uploaded to its location in the
+	// current program, so unchanged values don't get uploaded again.
+	private static class Uniform {
+		String mName;
+		int mLocation;
+		float[] mValues, mStorage;
+		int mCount;
+		ShaderParameter mParameter;
+		Texture mTexture;
+		float[] mShadow;
+		int mShadowCount, mShadowVersion, mShadowUnit;
+		ShaderParameter mShadowSource;
 	}
 
-	private Map<String, ShaderParameter> mParameters;
-	private Map<String, Texture> mTextures;
+	private Map<String, Integer> mHandles;
+	private Uniform[] mUniforms;
+	private int mNumberOfUniforms;
+	private int mInstanceModelsLocation, mInstanceAttribute;
+	private ResourceManager.Stage mVertexStage, mFragmentStage;
+	private long mCompileTime, mLinkTime;
+
+	// Variants: the base shader has the keywords and the cache of variants,
+	// a variant its base and the bits of its keywords
+	private Shader mBase;
+	private int mKeywords;
+	private ArrayList<String> mKeywordNames;
+	private Map<Integer, Shader> mVariants;
 	
 	/**
 	 * Creates a new empty shader.
 	 */
 	public Shader() {
-		mLastBuild = 0;
+		this(null, 0);
+	}
+
+	private Shader(Shader pBase, int pKeywords) {
+		mBuiltGeneration = 0;
 		mVertexSource = "";
 		mFragmentSource = "";
 		mProgram = -1;
-		mParameters = new HashMap<String, ShaderParameter>();
-		mTextures = new HashMap<String, Texture>();
+		mMaxInstances = 0;
+		mId = RenderQueue.nextId();
 		mLocations = new HashMap<String, Integer>();
+		mUniforms = new Uniform[8];
+		mNumberOfUniforms = 0;
+		mBase = pBase;
+		mKeywords = pKeywords;
+		if (pBase == null) {
+			mHandles = new HashMap<String, Integer>();
+			mKeywordNames = new ArrayList<String>();
+			mVariants = new HashMap<Integer, Shader>();
+			uniform("u_projection");
+			uniform("u_view");
+			uniform("u_model");
+		}
+		unresolve();
+	}
+
+	// Gets the shader whose uniform values this one uses; variants use the
+	// values of their base
+	private Shader values() {
+		return mBase != null ? mBase : this;
+	}
+
+	// Gets the location and shadow of a uniform in the program of this
+	// shader. A variant keeps its own for the handles of its base.
+	private Uniform slot(int pHandle) {
+		if (mBase == null)
+			return mUniforms[pHandle];
+		if (pHandle >= mUniforms.length) {
+			Uniform[] uniforms = new Uniform[Math.max(pHandle + 1, mUniforms.length * 2)];
+			System.arraycopy(mUniforms, 0, uniforms, 0, mUniforms.length);
+			mUniforms = uniforms;
+		}
+		Uniform uniform = mUniforms[pHandle];
+		if (uniform == null) {
+			uniform = new Uniform();
+			uniform.mName = mBase.mUniforms[pHandle].mName;
+			uniform.mLocation = UNRESOLVED;
+			mUniforms[pHandle] = uniform;
+		}
+		return uniform;
+	}
+
+	// Makes the locations get looked up again in the next program
+	private void unresolve() {
+		mLocations.clear();
+		for (int i = 0 ; i < mUniforms.length ; i++) {
+			Uniform uniform = mUniforms[i];
+			if (uniform == null)
+				continue;
+			uniform.mLocation = UNRESOLVED;
+			// A new program starts with its uniforms set to 0
+			uniform.mShadowCount = 0;
+			uniform.mShadowSource = null;
+			uniform.mShadowUnit = 0;
+		}
+		mInstanceModelsLocation = mInstanceAttribute = UNRESOLVED;
+	}
+
+	// Forgets the values of all uniforms, keeping their handles valid
+	private void clearUniforms(boolean pTextures) {
+		for (int i = 0 ; i < mNumberOfUniforms ; i++) {
+			mUniforms[i].mValues = null;
+			mUniforms[i].mParameter = null;
+			if (pTextures)
+				mUniforms[i].mTexture = null;
+		}
+	}
+
+	private int locate(int pHandle) {
+		Uniform uniform = slot(pHandle);
+		if (uniform.mLocation == UNRESOLVED)
+			uniform.mLocation = GL.get().glGetUniformLocation(mProgram, uniform.mName);
+		return uniform.mLocation;
+	}
+
+	/**
+	 * Gets the handle of a uniform, for setting its value without looking it
+	 * up by name on every draw. Handles are small numbers that stay valid
+	 * for the lifetime of the shader, also when its source changes, so they
+	 * can be fetched once, e.g. right after creating the shader.
+	 * 
+	 * @param pName
+	 *            The name of the uniform as used in the shader source code.
+	 * @return The handle of the uniform.
+	 */
+	public int uniform(String pName) {
+		if (mBase != null)
+			return mBase.uniform(pName);
+		Integer handle = mHandles.get(pName);
+		if (handle != null)
+			return handle.intValue();
+		if (mNumberOfUniforms == mUniforms.length) {
+			Uniform[] uniforms = new Uniform[mUniforms.length * 2];
+			System.arraycopy(mUniforms, 0, uniforms, 0, mNumberOfUniforms);
+			mUniforms = uniforms;
+		}
+		Uniform uniform = new Uniform();
+		uniform.mName = pName;
+		uniform.mLocation = UNRESOLVED;
+		uniform.mShadowUnit = 0;
+		mUniforms[mNumberOfUniforms] = uniform;
+		mHandles.put(pName, Integer.valueOf(mNumberOfUniforms));
+		return mNumberOfUniforms++;
+	}
+
+	// Gets the own storage of a uniform for the given number of values,
+	// allocating it only when its size changes
+	private float[] storage(int pHandle, int pCount, int pLength) {
+		Uniform uniform = values().mUniforms[pHandle];
+		if (uniform.mStorage == null || uniform.mStorage.length != pLength)
+			uniform.mStorage = new float[pLength];
+		uniform.mValues = uniform.mStorage;
+		uniform.mCount = pCount;
+		uniform.mParameter = null;
+		values().markChanged();
+		return uniform.mStorage;
+	}
+
+	public void setUniform(int pHandle, float pX) {
+		float[] values = storage(pHandle, 1, 1);
+		values[0] = pX;
+	}
+
+	public void setUniform(int pHandle, float pX, float pY) {
+		float[] values = storage(pHandle, 1, 2);
+		values[0] = pX;
+		values[1] = pY;
+	}
+
+	public void setUniform(int pHandle, float pX, float pY, float pZ) {
+		float[] values = storage(pHandle, 1, 3);
+		values[0] = pX;
+		values[1] = pY;
+		values[2] = pZ;
+	}
+
+	public void setUniform(int pHandle, float pX, float pY, float pZ, float pW) {
+		float[] values = storage(pHandle, 1, 4);
+		values[0] = pX;
+		values[1] = pY;
+		values[2] = pZ;
+		values[3] = pW;
+	}
+
+	/**
+	 * Sets a uniform array, copying the values into the storage of the
+	 * uniform.
+	 * 
+	 * @param pHandle
+	 *            The handle of the uniform.
+	 * @param pCount
+	 *            The number of array elements.
+	 * @param pValues
+	 *            The values, 1, 2, 3, 4 or 16 per element.
+	 */
+	public void setUniform(int pHandle, int pCount, float[] pValues) {
+		System.arraycopy(pValues, 0, storage(pHandle, pCount, pValues.length), 0, pValues.length);
 	}
 
-	private void buildIfNeeded(long pSurfaceCreationTime) {
-		if (mLastBuild >= pSurfaceCreationTime)
+	/**
+	 * Sets a 4x4 matrix uniform, copying the matrix into the storage of the
+	 * uniform.
+	 */
+	public void setUniformMatrix(int pHandle, float[] pMatrix) {
+		System.arraycopy(pMatrix, 0, storage(pHandle, 1, 16), 0, 16);
+	}
+
+	/**
+	 * Sets a uniform to a shared parameter, whose values can be modified in
+	 * place as long as every change gets marked with its markChanged
+	 * method.
+	 */
+	public void setUniform(int pHandle, ShaderParameter pParameter) {
+		Uniform uniform = values().mUniforms[pHandle];
+		pParameter.mShared = true;
+		pParameter.mOwner = values();
+		uniform.mParameter = pParameter;
+		uniform.mValues = null;
+		values().markChanged();
+	}
+
+	// Sets a single uniform by reference for the next use, like
+	// setShaderParameter but without marking the scene changed
+	void setUniformValues(int pHandle, float[] pValues) {
+		Uniform uniform = values().mUniforms[pHandle];
+		uniform.mValues = pValues;
+		uniform.mCount = 1;
+		uniform.mParameter = null;
+	}
+
+	private void buildIfNeeded(int pSurfaceGeneration, GLState pState) {
+		if (mBuiltGeneration >= pSurfaceGeneration)
 			return;
+		pState.claim(this);
 
-		mProgram = createProgram(mVertexSource, mFragmentSource);
-		mLastBuild = Tools.currentTime();
+		// A program of the same surface gets replaced after the source has
+		// changed
+		if (mProgramGeneration == pSurfaceGeneration && mProgram > 0) {
+			pState.deleteProgram(mProgram);
+			releaseStages(pState.getResourceManager());
+		}
+		mVertexStage = mFragmentStage = null;
+		unresolve();
+		mProgram = createProgram(pState);
+		mProgramGeneration = pSurfaceGeneration;
+		mBuiltGeneration = pSurfaceGeneration;
+		// Drivers don't tell the size of a program, so it doesn't count
+		// against the budget
+		pState.uploaded(this, 0);
 	}
 
-	private int createProgram(String vertexSource, String fragmentSource) {
-		int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-		if (vertexShader == 0)
-			return 0;
+	/**
+	 * Compiles and links the program ahead of drawing, so the first frame
+	 * using the shader doesn't stall on the driver. Does nothing if the
+	 * program is already built for the surface or a source is still
+	 * missing. Must be called on the GL thread.
+	 * 
+	 * @param pSurfaceGeneration
+	 *            The generation of the current GL surface.
+	 * @param pState
+	 *            The state tracker of the current GL context.
+	 * @return true if the program has been built.
+	 */
+	public boolean build(int pSurfaceGeneration, GLState pState) {
+		if (mBuiltGeneration >= pSurfaceGeneration || mVertexSource.length() == 0
+				|| mFragmentSource.length() == 0)
+			return false;
+		buildIfNeeded(pSurfaceGeneration, pState);
+		return true;
+	}
 
-		int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-		if (pixelShader == 0)
-			return 0;
+	/**
+	 * Gets the time the last build spent compiling the vertex and fragment
+	 * shader. Stages already compiled for another program of the scene take
+	 * no time.
+	 * 
+	 * @return The time in milliseconds.
+	 */
+	public float getCompileTime() {
+		return mCompileTime / 1000000.0f;
+	}
+
+	/**
+	 * Gets the time the last build spent linking the program.
+	 * 
+	 * @return The time in milliseconds.
+	 */
+	public float getLinkTime() {
+		return mLinkTime / 1000000.0f;
+	}
 
-		int program = GLES20.glCreateProgram();
+	// Adds the variants created so far to the list
+	void getVariants(ArrayList<Shader> pVariants) {
+		if (mVariants != null)
+			pVariants.addAll(mVariants.values());
+	}
+
+	// Names the keywords of a variant for log messages
+	String getKeywordString() {
+		if (mBase == null)
+			return "";
+		StringBuilder names = new StringBuilder();
+		ArrayList<String> keywords = mBase.mKeywordNames;
+		for (int i = 0 ; i < keywords.size() ; i++)
+			if ((mKeywords & (1 << i)) != 0)
+				names.append(names.length() == 0 ? "" : " ").append(keywords.get(i));
+		return names.toString();
+	}
+
+	@Override
+	void deleteObjects(GLState pState, int pSurfaceGeneration) {
+		if (mProgramGeneration == pSurfaceGeneration && mProgram > 0) {
+			pState.deleteProgram(mProgram);
+			releaseStages(pState.getResourceManager());
+		}
+		forgetObjects();
+	}
+
+	@Override
+	void orphanObjects(ResourceManager.Orphan pOrphan) {
+		pOrphan.mProgram = mProgram;
+		pOrphan.mProgramGeneration = mProgramGeneration;
+		pOrphan.mVertexStage = mVertexStage;
+		pOrphan.mFragmentStage = mFragmentStage;
+		forgetObjects();
+	}
+
+	private void forgetObjects() {
+		mVertexStage = mFragmentStage = null;
+		mProgram = -1;
+		mProgramGeneration = mBuiltGeneration = 0;
+		unresolve();
+	}
+
+	// Compiles and links the program. With a resource manager the stages
+	// come from its cache, so programs with the same stage source share the
+	// compiled stage.
+	private int createProgram(GLState pState) {
+		ResourceManager resources = pState.getResourceManager();
+		mCompileTime = mLinkTime = 0;
+		long start = Clock.nanoTime();
+		if (resources == null) {
+			int vertexShader = compile(GLES20.GL_VERTEX_SHADER, mVertexSource);
+			if (vertexShader == 0)
+				return 0;
+			int pixelShader = compile(GLES20.GL_FRAGMENT_SHADER, mFragmentSource);
+			if (pixelShader == 0)
+				return 0;
+			pState.count(FrameStats.COUNTER_SHADER_COMPILES, 2);
+			long compiled = Clock.nanoTime();
+			mCompileTime = compiled - start;
+			int program = link(vertexShader, pixelShader);
+			mLinkTime = Clock.nanoTime() - compiled;
+			// The stages stay attached and get freed with the program
+			GL.get().glDeleteShader(vertexShader);
+			GL.get().glDeleteShader(pixelShader);
+			return program;
+		}
+
+		try {
+			mVertexStage = resources.acquireStage(GLES20.GL_VERTEX_SHADER, mVertexSource);
+			mFragmentStage = resources.acquireStage(GLES20.GL_FRAGMENT_SHADER, mFragmentSource);
+			long compiled = Clock.nanoTime();
+			mCompileTime = compiled - start;
+			int program = link(mVertexStage.mShader, mFragmentStage.mShader);
+			mLinkTime = Clock.nanoTime() - compiled;
+			return program;
+		}
+		catch (RuntimeException e) {
+			releaseStages(resources);
+			throw e;
+		}
+	}
+
+	private void releaseStages(ResourceManager pResources) {
+		if (pResources != null) {
+			if (mVertexStage != null)
+				pResources.releaseStage(mVertexStage);
+			if (mFragmentStage != null)
+				pResources.releaseStage(mFragmentStage);
+		}
+		mVertexStage = mFragmentStage = null;
+	}
+
+	private static int link(int pVertexShader, int pPixelShader) {
+		if (pVertexShader == 0 || pPixelShader == 0)
+			return 0;
+		int program = GL.get().glCreateProgram();
 		if (program != 0) {
-			GLES20.glAttachShader(program, vertexShader);
-			GLES20.glAttachShader(program, pixelShader);
-			GLES20.glLinkProgram(program);
+			GL.get().glAttachShader(program, pVertexShader);
+			GL.get().glAttachShader(program, pPixelShader);
+			GL.get().glLinkProgram(program);
 			int[] linkStatus = new int[1];
-			GLES20
-					.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus,
-							0);
+			GL.get().glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
 			if (linkStatus[0] != GLES20.GL_TRUE) {
-				String programLog = GLES20.glGetShaderInfoLog(program);
+				String programLog = GL.get().glGetShaderInfoLog(program);
+				GL.get().glDeleteProgram(program);
 				throw new RuntimeException("Could not link shader program: "
 						+ programLog);
 			}
@@ -84,15 +486,6 @@ public class Shader {
 		return program;
 	}
 
-	private int findUniform(String pName) {
-		Integer cachedLocation = mLocations.get(pName);
-		if (cachedLocation != null)
-			return cachedLocation.intValue();
-		int location = GLES20.glGetUniformLocation(mProgram, pName);
-		mLocations.put(pName, new Integer(location));
-		return location;
-	}
-
 	/**
 	 * Gets the location of the specified vertex attribute.
 	 * 
@@ -105,11 +498,15 @@ public class Shader {
 		Integer cachedLocation = mLocations.get(pName);
 		if (cachedLocation != null)
 			return cachedLocation.intValue();
-		int location = GLES20.glGetAttribLocation(mProgram, pName);
+		int location = GL.get().glGetAttribLocation(mProgram, pName);
 		mLocations.put(pName, new Integer(location));
 		return location;
 	}
 
+	int getId() {
+		return mId;
+	}
+
 	/**
 	 * Gets the currently used fragment shader source code.
 	 * 
@@ -130,7 +527,66 @@ public class Shader {
 	 *         matrices.
 	 */
 	public float[] getShaderParameter(String pName) {
-		return mParameters.get(pName).values;
+		if (mBase != null)
+			return mBase.getShaderParameter(pName);
+		Integer handle = mHandles.get(pName);
+		if (handle == null)
+			return null;
+		Uniform uniform = mUniforms[handle.intValue()];
+		return uniform.mParameter != null ? uniform.mParameter.values : uniform.mValues;
+	}
+
+	/**
+	 * Gets the number of instances this shader can draw with one draw call.
+	 * A vertex shader supports instancing if it declares an attribute
+	 * a_instance and a uniform array u_instanceModels with a literal size,
+	 * e.g. "uniform mat4 u_instanceModels[16];". It then has to use
+	 * u_instanceModels[int(a_instance)] instead of u_model.
+	 * 
+	 * @return The maximum number of instances per draw call, or 0 if this
+	 *         shader doesn't support instancing.
+	 */
+	public int getMaxInstances() {
+		return mMaxInstances;
+	}
+
+	private void updateMaxInstances() {
+		mMaxInstances = 0;
+		if (mVertexSource.indexOf("a_instance") == -1)
+			return;
+		Matcher matcher = INSTANCE_ARRAY.matcher(mVertexSource);
+		if (matcher.find())
+			mMaxInstances = Integer.parseInt(matcher.group(1));
+	}
+
+	/**
+	 * Uploads the model matrices of a group of instances. Must be called
+	 * after the shader has been activated.
+	 * 
+	 * @param pMatrices
+	 *            The model matrices, 16 values each.
+	 * @param pFirstInstance
+	 *            The first instance to upload.
+	 * @param pNumberOfInstances
+	 *            The number of instances to upload.
+	 */
+	void setInstanceModels(float[] pMatrices, int pFirstInstance, int pNumberOfInstances) {
+		if (mInstanceModelsLocation == UNRESOLVED) {
+			mInstanceModelsLocation = GL.get().glGetUniformLocation(mProgram, "u_instanceModels");
+			if (mInstanceModelsLocation == -1)
+				mInstanceModelsLocation = GL.get().glGetUniformLocation(mProgram, "u_instanceModels[0]");
+		}
+		int location = mInstanceModelsLocation;
+		if (location != -1)
+			GL.get().glUniformMatrix4fv(location, pNumberOfInstances, false, pMatrices, pFirstInstance * 16);
+	}
+
+	// Gets the location of the a_instance attribute without a lookup by
+	// name
+	int getInstanceAttribute() {
+		if (mInstanceAttribute == UNRESOLVED)
+			mInstanceAttribute = GL.get().glGetAttribLocation(mProgram, "a_instance");
+		return mInstanceAttribute;
 	}
 
 	/**
@@ -142,15 +598,16 @@ public class Shader {
 		return mVertexSource;
 	}
 
-	private int loadShader(int shaderType, String source) {
-		int shader = GLES20.glCreateShader(shaderType);
+	static int compile(int shaderType, String source) {
+		int shader = GL.get().glCreateShader(shaderType);
 		if (shader != 0) {
-			GLES20.glShaderSource(shader, source);
-			GLES20.glCompileShader(shader);
+			GL.get().glShaderSource(shader, source);
+			GL.get().glCompileShader(shader);
 			int[] compiled = new int[1];
-			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+			GL.get().glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
 			if (compiled[0] == 0) {
-				String shaderLog = GLES20.glGetShaderInfoLog(shader);
+				String shaderLog = GL.get().glGetShaderInfoLog(shader);
+				GL.get().glDeleteShader(shader);
 				throw new RuntimeException("Could not compile shader "
 						+ shaderType + ": " + shaderLog);
 			}
@@ -168,14 +625,13 @@ public class Shader {
 	 *            source code.
 	 */
 	public void setFragmentSource(Resources pRes, int pId) {
-		mLastBuild = 0;
-		mParameters.clear();
-		mLocations.clear();
+		String source;
 		try {
-			mFragmentSource = Tools.getTextFromResource(pRes, pId);
+			source = Tools.getTextFromResource(pRes, pId);
 		} catch (IOException e) {
-			mFragmentSource = "";
+			source = "";
 		}
+		setFragmentSource(source);
 	}
 
 	/**
@@ -185,10 +641,15 @@ public class Shader {
 	 *            The new fragment shader source code.
 	 */
 	public void setFragmentSource(String pSource) {
-		mLastBuild = 0;
+		if (mBase != null) {
+			mBase.setFragmentSource(pSource);
+			return;
+		}
+		mBuiltGeneration = 0;
 		mFragmentSource = pSource;
-		mParameters.clear();
-		mLocations.clear();
+		clearUniforms(false);
+		updateVariants();
+		values().markChanged();
 	}
 
 	/**
@@ -204,66 +665,162 @@ public class Shader {
 	 *            values for matrices.
 	 */
 	public void setShaderParameter(String pName, float[] pValues) {
-		mParameters.put(pName, new ShaderParameter(1, pValues));
+		setShaderParameter(pName, 1, pValues);
 	}
 
 	public void setShaderParameter(String pName, int pCount, float[] pValues) {
-		mParameters.put(pName, new ShaderParameter(pCount, pValues));
+		Uniform uniform = values().mUniforms[uniform(pName)];
+		uniform.mValues = pValues;
+		uniform.mCount = pCount;
+		uniform.mParameter = null;
+		values().markChanged();
+	}
+
+	/**
+	 * Sets one of the shaders uniform parameters to a shared parameter, like
+	 * setUniform.
+	 */
+	public void setShaderParameter(String pName, ShaderParameter pParameter) {
+		setUniform(uniform(pName), pParameter);
 	}
 	
 	public void clearShaderParameters() {
-		mParameters.clear();
+		values().clearUniforms(false);
+		values().markChanged();
 	}
 
 	public void removeShaderParameter(String pName) {
-		mParameters.remove(pName);
+		Shader values = values();
+		Integer handle = values.mHandles.get(pName);
+		if (handle != null) {
+			values.mUniforms[handle.intValue()].mValues = null;
+			values.mUniforms[handle.intValue()].mParameter = null;
+		}
+		values().markChanged();
 	}
 
 	public void setTexture(String pName, Texture pTexture) {
-		mTextures.put(pName, pTexture);
+		values().mUniforms[uniform(pName)].mTexture = pTexture;
+		values().markChanged();
+	}
+
+	// Uploads values to a uniform unless its location already has them, the
+	// type following from the number of values per element. Shared
+	// parameters are only compared after they have been marked changed.
+	private void upload(int pHandle, int pCount, float[] pValues, ShaderParameter pShared, GLState pState) {
+		int location = locate(pHandle);
+		if (location == -1)
+			return;
+		Uniform uniform = slot(pHandle);
+		float[] shadow = uniform.mShadow;
+		boolean changed;
+		if (pShared != null && pShared == uniform.mShadowSource && pShared.mVersion == uniform.mShadowVersion)
+			changed = false;
+		else
+			changed = uniform.mShadowCount != pCount || !Arrays.equals(shadow, pValues);
+		uniform.mShadowSource = pShared;
+		uniform.mShadowVersion = pShared != null ? pShared.mVersion : 0;
+		if (!pState.changes(changed))
+			return;
+
+		GLBackend gl = GL.get();
+		switch (pValues.length / pCount) {
+		case 1:
+			gl.glUniform1fv(location, pCount, pValues, 0);
+			break;
+		case 2:
+			gl.glUniform2fv(location, pCount, pValues, 0);
+			break;
+		case 3:
+			gl.glUniform3fv(location, pCount, pValues, 0);
+			break;
+		case 4:
+			gl.glUniform4fv(location, pCount, pValues, 0);
+			break;
+		case 16:
+			gl.glUniformMatrix4fv(location, pCount, false, pValues, 0);
+			break;
+		}
+		if (shadow == null || shadow.length != pValues.length)
+			uniform.mShadow = shadow = new float[pValues.length];
+		System.arraycopy(pValues, 0, shadow, 0, pValues.length);
+		uniform.mShadowCount = pCount;
+	}
+
+	private void upload(int pHandle, ShaderParameter pParameter, GLState pState) {
+		upload(pHandle, pParameter.count, pParameter.values, pParameter.mShared ? pParameter : null, pState);
+	}
+
+	// Binds a texture to a unit and points a sampler at it
+	private boolean bindSampler(int pHandle, Texture pTexture, int pUnit, int pSurfaceGeneration, GLState pState) {
+		int location = locate(pHandle);
+		if (location == -1)
+			return false;
+		pState.bindTexture(pUnit, pTexture.use(pSurfaceGeneration, pState));
+		Uniform uniform = slot(pHandle);
+		if (pState.changes(uniform.mShadowUnit != pUnit)) {
+			GL.get().glUniform1i(location, pUnit);
+			uniform.mShadowUnit = pUnit;
+		}
+		return true;
+	}
+
+	// Sets the uniforms of this shader that have a value
+	private void setUniforms(GLState pState) {
+		Shader values = values();
+		for (int i = 0 ; i < values.mNumberOfUniforms ; i++) {
+			Uniform uniform = values.mUniforms[i];
+			if (uniform.mParameter != null)
+				upload(i, uniform.mParameter, pState);
+			else if (uniform.mValues != null)
+				upload(i, uniform.mCount, uniform.mValues, null, pState);
+		}
+	}
+
+	/**
+	 * Sets uniforms by handle, e.g. the parameters of a pass.
+	 */
+	void setUniforms(int[] pHandles, ShaderParameter[] pParameters, int pCount, GLState pState) {
+		for (int i = 0 ; i < pCount ; i++)
+			upload(pHandles[i], pParameters[i], pState);
 	}
 	
 	protected void setUniforms(Map<String, ShaderParameter> pParameters) {
 		Iterator<String> keys = pParameters.keySet().iterator();
 		while (keys.hasNext()) {
 			String name = keys.next();
-			int location = findUniform(name);
-			if (location != -1) {
-				ShaderParameter parameter = pParameters.get(name);
-				int count = parameter.count;
-				float[] values = parameter.values;
-				switch (values.length / count) {
-				case 1:
-					GLES20.glUniform1fv(location, count, values, 0);
-					break;
-				case 2:
-					GLES20.glUniform2fv(location, count, values, 0);
-					break;
-				case 3:
-					GLES20.glUniform3fv(location, count, values, 0);
-					break;
-				case 4:
-					GLES20.glUniform4fv(location, count, values, 0);
-					break;
-				case 16:
-					GLES20.glUniformMatrix4fv(location, count, false, values, 0);
-					break;
-				}
-			}
+			upload(uniform(name), pParameters.get(name), GLState.UNTRACKED);
 		}
 	}
 
-	protected void setTextures(Map<String, Texture> pTextures, long pSurfaceCreationTime) {
+	protected void setTextures(Map<String, Texture> pTextures, int pSurfaceGeneration, GLState pState) {
 		int nextTexture = 0;
 		Iterator<String> keys = pTextures.keySet().iterator();
 		while (keys.hasNext()) {
 			String name = keys.next();
-			int location = findUniform(name);
-			if (location != -1) {
-				GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + nextTexture);
-				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, pTextures.get(name).use(pSurfaceCreationTime));
-				GLES20.glUniform1i(location, nextTexture++);
-			}
+			if (bindSampler(uniform(name), pTextures.get(name), nextTexture, pSurfaceGeneration, pState))
+				nextTexture++;
+		}
+	}
+
+	/**
+	 * Binds textures to samplers by handle, starting at texture unit 0.
+	 */
+	void setTextures(int[] pHandles, Texture[] pTextures, int pCount, int pSurfaceGeneration, GLState pState) {
+		int nextTexture = 0;
+		for (int i = 0 ; i < pCount ; i++)
+			if (bindSampler(pHandles[i], pTextures[i], nextTexture, pSurfaceGeneration, pState))
+				nextTexture++;
+	}
+
+	// Binds the textures of this shader
+	private void setTextures(int pSurfaceGeneration, GLState pState) {
+		int nextTexture = 0;
+		Shader values = values();
+		for (int i = 0 ; i < values.mNumberOfUniforms ; i++) {
+			Texture texture = values.mUniforms[i].mTexture;
+			if (texture != null && bindSampler(i, texture, nextTexture, pSurfaceGeneration, pState))
+				nextTexture++;
 		}
 	}
 	
@@ -277,14 +834,13 @@ public class Shader {
 	 *            code.
 	 */
 	public void setVertexSource(Resources pRes, int pId) {
-		mLastBuild = 0;
-		mParameters.clear();
-		mLocations.clear();
+		String source;
 		try {
-			mVertexSource = Tools.getTextFromResource(pRes, pId);
+			source = Tools.getTextFromResource(pRes, pId);
 		} catch (IOException e) {
-			mVertexSource = "";
+			source = "";
 		}
+		setVertexSource(source);
 	}
 
 	/**
@@ -294,25 +850,165 @@ public class Shader {
 	 *            The new vertex shader source code.
 	 */
 	public void setVertexSource(String pSource) {
-		mLastBuild = 0;
+		if (mBase != null) {
+			mBase.setVertexSource(pSource);
+			return;
+		}
+		mBuiltGeneration = 0;
 		mVertexSource = pSource;
-		mParameters.clear();
-		mLocations.clear();
+		clearUniforms(false);
+		updateMaxInstances();
+		updateVariants();
+		values().markChanged();
+	}
+
+	/**
+	 * Declares a feature keyword that variants of this shader can be
+	 * compiled with, to be tested with #ifdef in the source. A variant gets
+	 * a #define for each of its keywords in every stage whose source
+	 * mentions the keyword, so variants that only differ in the fragment
+	 * shader share the compiled vertex shader and vice versa.
+	 * 
+	 * @param pName
+	 *            The keyword, e.g. "TEXTURED".
+	 * @return The bit of the keyword, for combining into the keywords of a
+	 *         variant. Declaring a keyword again returns the same bit.
+	 */
+	public int keyword(String pName) {
+		if (mBase != null)
+			return mBase.keyword(pName);
+		int index = mKeywordNames.indexOf(pName);
+		if (index == -1) {
+			if (mKeywordNames.size() == 32)
+				throw new IllegalArgumentException("A shader can't have more than 32 keywords");
+			mKeywordNames.add(pName);
+			index = mKeywordNames.size() - 1;
+		}
+		return 1 << index;
+	}
+
+	/**
+	 * Gets the variant of this shader with the given keywords defined. Each
+	 * combination of keywords gets created once, on the first request, and
+	 * compiled when it is first drawn. Variants have the source of their
+	 * base shader and share its uniform handles, parameters and textures;
+	 * changing any of them on a variant changes them for all.
+	 * 
+	 * @param pKeywords
+	 *            The bits of the keywords, as returned by keyword.
+	 * @return The variant, or the base shader itself if no keyword is set.
+	 */
+	public Shader getVariant(int pKeywords) {
+		if (mBase != null)
+			return mBase.getVariant(pKeywords);
+		if (pKeywords == 0)
+			return this;
+		int numberOfKeywords = mKeywordNames.size();
+		if (numberOfKeywords < 32 && (pKeywords >>> numberOfKeywords) != 0)
+			throw new IllegalArgumentException("Undeclared shader keyword");
+		Integer key = Integer.valueOf(pKeywords);
+		Shader variant = mVariants.get(key);
+		if (variant == null) {
+			variant = new Shader(this, pKeywords);
+			variant.deriveSources();
+			mVariants.put(key, variant);
+		}
+		return variant;
+	}
+
+	/**
+	 * Gets the variant of this shader with the given keywords defined,
+	 * declaring them if needed.
+	 */
+	public Shader getVariant(String... pKeywords) {
+		int keywords = 0;
+		for (int i = 0 ; i < pKeywords.length ; i++)
+			keywords |= keyword(pKeywords[i]);
+		return getVariant(keywords);
+	}
+
+	/**
+	 * Gets the bits of the keywords this shader is compiled with.
+	 * 
+	 * @return 0 for a base shader.
+	 */
+	public int getKeywords() {
+		return mKeywords;
+	}
+
+	/**
+	 * Gets the shader this one is a variant of.
+	 * 
+	 * @return The base shader, or this shader if it isn't a variant.
+	 */
+	public Shader getBase() {
+		return mBase != null ? mBase : this;
+	}
+
+	private void updateVariants() {
+		Iterator<Shader> variants = mVariants.values().iterator();
+		while (variants.hasNext())
+			variants.next().deriveSources();
+	}
+
+	// Takes the sources of the base with the defines of this variant
+	private void deriveSources() {
+		mVertexSource = define(mBase.mVertexSource);
+		mFragmentSource = define(mBase.mFragmentSource);
+		mBuiltGeneration = 0;
+		updateMaxInstances();
+	}
+
+	// Adds the defines of the keywords that the source mentions. They have
+	// to follow a #version directive, which must come first.
+	private String define(String pSource) {
+		StringBuilder defines = new StringBuilder();
+		ArrayList<String> names = mBase.mKeywordNames;
+		for (int i = 0 ; i < names.size() ; i++)
+			if ((mKeywords & (1 << i)) != 0 && pSource.indexOf(names.get(i)) != -1)
+				defines.append("#define ").append(names.get(i)).append('\n');
+		if (defines.length() == 0)
+			return pSource;
+
+		int start = 0;
+		if (pSource.trim().startsWith("#version")) {
+			int end = pSource.indexOf('\n', pSource.indexOf("#version"));
+			if (end == -1)
+				return pSource + "\n" + defines;
+			start = end + 1;
+		}
+		return pSource.substring(0, start) + defines + pSource.substring(start);
 	}
 
 	/**
 	 * Activates the shader and sets all uniform parameters, compiling it if the
 	 * shader source codes have been changed since the last activation.
 	 * 
-	 * @param pSurfaceCreationTime
-	 *            The time at which the GL surface has been created. This value
-	 *            is used to determine if the shader has to be recompiled after
-	 *            losing and reaquiring the GL surface.
+	 * @param pSurfaceGeneration
+	 *            The generation of the GL surface, counting up every time a
+	 *            surface gets created. This value is used to determine if the
+	 *            shader has to be recompiled after losing and reaquiring the
+	 *            GL surface.
+	 */
+	public void use(int pSurfaceGeneration) {
+		use(pSurfaceGeneration, GLState.UNTRACKED);
+	}
+
+	/**
+	 * Activates the shader like use above, skipping the program switch if
+	 * the program is already active.
+	 * 
+	 * @param pState
+	 *            The state tracker of the current GL context.
 	 */
-	public void use(long pSurfaceCreationTime) {
-		buildIfNeeded(pSurfaceCreationTime);
-		GLES20.glUseProgram(mProgram);
-		setUniforms(mParameters);
-		setTextures(mTextures, pSurfaceCreationTime);
+	public void use(int pSurfaceGeneration, GLState pState) {
+		// Uniforms get changed through the base of a variant
+		pState.track(values());
+		buildIfNeeded(pSurfaceGeneration, pState);
+		pState.useProgram(mProgram);
+		pState.beginPhase(FrameStats.PHASE_UNIFORMS);
+		setUniforms(pState);
+		pState.endPhase(FrameStats.PHASE_UNIFORMS);
+		setTextures(pSurfaceGeneration, pState);
 	}
 }
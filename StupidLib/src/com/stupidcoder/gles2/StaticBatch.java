@@ -0,0 +1,448 @@
+/**
+ * Merges the geometry of static scene graph nodes into a few large vertex and
+ * index buffers, so that they can be drawn with a handful of draw calls.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+public class StaticBatch {
+	// All nodes sharing one vertex format get merged into the same geometry
+	static private class Buffer {
+		public String mVertexFormat;
+		public int mVertexSize;
+		public float[] mVertexData;
+		public int mNumberOfVertices;
+		public int[] mIndices;
+		public int mNumberOfIndices;
+		public ArrayList<Group> mGroups;
+		public Geometry mGeometry;
+
+		public Buffer(String pVertexFormat, int pVertexSize) {
+			mVertexFormat = pVertexFormat;
+			mVertexSize = pVertexSize;
+			mVertexData = new float[pVertexSize * 256];
+			mNumberOfVertices = 0;
+			mIndices = new int[768];
+			mNumberOfIndices = 0;
+			mGroups = new ArrayList<Group>();
+		}
+	}
+
+	// All passes that render alike become one pass of the merged geometry
+	static private class Group {
+		public Geometry.Pass mSourcePass;
+		public ArrayList<Scene.Node> mNodes;
+		// Per node the index into the batch's nodes, and the first index
+		// and number of indices of its range
+		public int[] mBatchIndices;
+		public int[] mNodeIndices;
+		public int mFirstIndex, mIndexCount;
+		public Geometry.Pass mPass;
+		public boolean[] mVisible;
+
+		public Group(Geometry.Pass pSourcePass) {
+			mSourcePass = pSourcePass;
+			mNodes = new ArrayList<Scene.Node>();
+			mBatchIndices = new int[8];
+			mNodeIndices = new int[16];
+		}
+	}
+
+	private ArrayList<Buffer> mBuffers;
+	private ArrayList<Scene.Node> mNodes;
+	// Whether each node passed the last cull, shared by all its groups
+	private boolean[] mNodeVisible;
+	private int mNumberOfDraws;
+	private float[] mIdentityMatrix;
+
+	/**
+	 * Creates a new empty batch.
+	 */
+	public StaticBatch() {
+		mBuffers = new ArrayList<Buffer>();
+		mNodes = new ArrayList<Scene.Node>();
+		mNodeVisible = new boolean[0];
+		mNumberOfDraws = 0;
+		mIdentityMatrix = new float[16];
+		Matrix.setIdentityM(mIdentityMatrix, 0);
+	}
+
+	/**
+	 * Merges all nodes with geometry in the static subtrees below the given
+	 * node. The geometry gets transformed into world space, so the batched
+	 * nodes and their parents must not be moved afterwards. The nodes are
+	 * marked as batched and will no longer draw their own geometry.
+	 *
+	 * @param pRoot
+	 *            The root node of the scene graph.
+	 */
+	public void build(Scene.Node pRoot) {
+		clear();
+
+		float[] identity = new float[16];
+		Matrix.setIdentityM(identity, 0);
+		collect(pRoot, identity, false);
+
+		for (int i = 0; i < mBuffers.size(); i++) {
+			Buffer buffer = mBuffers.get(i);
+			buffer.mGeometry = new Geometry();
+			buffer.mGeometry.setVertexFormat(buffer.mVertexFormat);
+
+			// Lay out the indices group by group, so every group is one contiguous range
+			int numberOfIndices = 0;
+			for (int j = 0; j < buffer.mGroups.size(); j++) {
+				Group group = buffer.mGroups.get(j);
+				for (int k = 0; k < group.mNodes.size(); k++)
+					numberOfIndices += group.mNodeIndices[k * 2 + 1];
+			}
+			int[] indices = new int[numberOfIndices];
+			int nextIndex = 0;
+			for (int j = 0; j < buffer.mGroups.size(); j++) {
+				Group group = buffer.mGroups.get(j);
+				group.mFirstIndex = nextIndex;
+				for (int k = 0; k < group.mNodes.size(); k++) {
+					int first = group.mNodeIndices[k * 2];
+					int count = group.mNodeIndices[k * 2 + 1];
+					System.arraycopy(buffer.mIndices, first, indices, nextIndex, count);
+					group.mNodeIndices[k * 2] = nextIndex;
+					nextIndex += count;
+				}
+				group.mIndexCount = nextIndex - group.mFirstIndex;
+			}
+
+			float[] vertexData = new float[buffer.mNumberOfVertices * buffer.mVertexSize];
+			System.arraycopy(buffer.mVertexData, 0, vertexData, 0, vertexData.length);
+			buffer.mGeometry.setVertexData(vertexData);
+			buffer.mGeometry.setIndices(indices);
+			buffer.mVertexData = null;
+			buffer.mIndices = null;
+
+			for (int j = 0; j < buffer.mGroups.size(); j++) {
+				Group group = buffer.mGroups.get(j);
+				Geometry.Pass source = group.mSourcePass;
+				Geometry.Pass pass = buffer.mGeometry.addPass(source.mShader, group.mFirstIndex / 3, group.mIndexCount / 3);
+				pass.mShaderParameters.putAll(source.mShaderParameters);
+				pass.mTextures.putAll(source.mTextures);
+				pass.mWireframe = source.mWireframe;
+				pass.mOffset = source.mOffset;
+				pass.mTwoSided = source.mTwoSided;
+				pass.mLayer = source.mLayer;
+				pass.mRanges = new int[group.mNodes.size() * 2];
+				group.mPass = pass;
+				group.mVisible = new boolean[group.mNodes.size()];
+			}
+			mNumberOfDraws += buffer.mGroups.size();
+		}
+		mNodeVisible = new boolean[mNodes.size()];
+		cull(null);
+
+		Log.i("StupidLib", "Batched " + mNodes.size() + " static nodes into " + mNumberOfDraws + " draws");
+	}
+
+	/**
+	 * Releases the merged geometry and lets the batched nodes draw their own
+	 * geometry again.
+	 */
+	public void clear() {
+		for (int i = 0; i < mNodes.size(); i++)
+			mNodes.get(i).setBatched(false);
+		mNodes.clear();
+		for (int i = 0; i < mBuffers.size(); i++)
+			mBuffers.get(i).mGeometry.release();
+		mBuffers.clear();
+		mNumberOfDraws = 0;
+	}
+
+	/**
+	 * Draws all batched geometry, leaving out the index ranges of nodes that
+	 * have been hidden.
+	 */
+	public void draw(Camera pCamera, int pSurfaceGeneration) {
+		cull(null);
+		draw(pCamera, pSurfaceGeneration, GLState.UNTRACKED);
+	}
+
+	/**
+	 * Updates the index ranges to draw, leaving out nodes that have been
+	 * hidden or are outside the frustum.
+	 * 
+	 * @param pFrustum
+	 *            The frustum to cull against, or null to draw all visible
+	 *            nodes.
+	 */
+	public void cull(Frustum pFrustum) {
+		// Each node gets tested once, however many groups it is part of
+		int numberOfVisible = 0, numberOfCulled = 0;
+		for (int i = 0; i < mNodes.size(); i++) {
+			float[] bounds = mNodes.get(i).getGeometryBounds();
+			boolean visible = bounds != null && (pFrustum == null || pFrustum.intersectsBox(bounds));
+			mNodeVisible[i] = visible;
+			if (visible)
+				numberOfVisible++;
+			else if (bounds != null)
+				numberOfCulled++;
+		}
+		if (pFrustum != null)
+			pFrustum.count(numberOfVisible, numberOfCulled);
+		for (int i = 0; i < mBuffers.size(); i++) {
+			Buffer buffer = mBuffers.get(i);
+			for (int j = 0; j < buffer.mGroups.size(); j++)
+				updateRanges(buffer.mGroups.get(j));
+		}
+	}
+
+	/**
+	 * Draws the batched geometry with the index ranges of the last cull,
+	 * layer by layer.
+	 * 
+	 * @param pState
+	 *            The state tracker of the current GL context.
+	 */
+	public void draw(Camera pCamera, int pSurfaceGeneration, GLState pState) {
+		for (int layer = 0; layer <= RenderQueue.MAX_LAYER; layer++)
+			draw(pCamera, layer, pSurfaceGeneration, pState);
+	}
+
+	/**
+	 * Draws the batched passes of a single layer with the index ranges of
+	 * the last cull.
+	 */
+	void draw(Camera pCamera, int pLayer, int pSurfaceGeneration, GLState pState) {
+		for (int i = 0; i < mBuffers.size(); i++) {
+			Geometry geometry = mBuffers.get(i).mGeometry;
+			for (int j = 0; j < geometry.getNumberOfPasses(); j++) {
+				Geometry.Pass pass = geometry.getPass(j);
+				if (pass.mLayer == pLayer)
+					geometry.draw(pass, pCamera, mIdentityMatrix, pSurfaceGeneration, pState);
+			}
+		}
+	}
+
+	public int getNumberOfNodes() {
+		return mNodes.size();
+	}
+
+	/**
+	 * Gets the number of draw calls needed for the batch when all batched
+	 * nodes are visible.
+	 *
+	 * @return The number of draw calls.
+	 */
+	public int getNumberOfDraws() {
+		return mNumberOfDraws;
+	}
+
+	private void collect(Scene.Node pNode, float[] pParentMatrix, boolean pStatic) {
+		float[] matrix = new float[16];
+		Matrix.multiplyMM(matrix, 0, pParentMatrix, 0, pNode.getLocalMatrix(), 0);
+		boolean isStatic = pStatic || pNode.isStatic();
+
+		Geometry geometry = pNode.getGeometry();
+		if (isStatic && geometry != null && geometry.getNumberOfPasses() > 0 && geometry.getVertexSize() > 0) {
+			add(pNode, mNodes.size(), geometry, matrix);
+			pNode.setBatched(true);
+			mNodes.add(pNode);
+		}
+
+		ArrayList<Scene.Node> children = pNode.getChildren();
+		for (int i = 0; i < children.size(); i++)
+			collect(children.get(i), matrix, isStatic);
+	}
+
+	private void add(Scene.Node pNode, int pBatchIndex, Geometry pGeometry, float[] pMatrix) {
+		String vertexFormat = pGeometry.getVertexFormat();
+		Buffer buffer = null;
+		for (int i = 0; i < mBuffers.size() && buffer == null; i++)
+			if (mBuffers.get(i).mVertexFormat.equals(vertexFormat))
+				buffer = mBuffers.get(i);
+		if (buffer == null) {
+			buffer = new Buffer(vertexFormat, pGeometry.getVertexSize());
+			mBuffers.add(buffer);
+		}
+
+		int firstVertex = buffer.mNumberOfVertices;
+		appendVertices(buffer, pGeometry, pMatrix);
+		// A mirroring transform turns the triangles around, so their
+		// winding has to be swapped to keep them front facing
+		boolean mirrored = determinant(pMatrix) < 0.0f;
+
+		int[] sourceIndices = pGeometry.getIndexData();
+		HashMap<Group, Integer> slots = new HashMap<Group, Integer>();
+		for (int i = 0; i < pGeometry.getNumberOfPasses(); i++) {
+			Geometry.Pass pass = pGeometry.getPass(i);
+
+			Group group = null;
+			for (int j = 0; j < buffer.mGroups.size() && group == null; j++)
+				if (buffer.mGroups.get(j).mSourcePass.isBatchCompatible(pass))
+					group = buffer.mGroups.get(j);
+			if (group == null) {
+				group = new Group(pass);
+				buffer.mGroups.add(group);
+			}
+
+			// Two passes of the same node in one group share one index range
+			Integer slot = slots.get(group);
+			int first;
+			if (slot == null) {
+				slot = group.mNodes.size();
+				slots.put(group, slot);
+				group.mNodes.add(pNode);
+				if (group.mBatchIndices.length < group.mNodes.size()) {
+					int[] grown = new int[group.mBatchIndices.length * 2];
+					System.arraycopy(group.mBatchIndices, 0, grown, 0, group.mBatchIndices.length);
+					group.mBatchIndices = grown;
+				}
+				group.mBatchIndices[slot] = pBatchIndex;
+				if (group.mNodeIndices.length < group.mNodes.size() * 2) {
+					int[] grown = new int[group.mNodeIndices.length * 2];
+					System.arraycopy(group.mNodeIndices, 0, grown, 0, group.mNodeIndices.length);
+					group.mNodeIndices = grown;
+				}
+				first = buffer.mNumberOfIndices;
+				group.mNodeIndices[slot * 2] = first;
+				group.mNodeIndices[slot * 2 + 1] = 0;
+			}
+			else {
+				// Move the already collected indices to the end so the range stays contiguous
+				first = group.mNodeIndices[slot * 2];
+				int count = group.mNodeIndices[slot * 2 + 1];
+				if (first + count != buffer.mNumberOfIndices) {
+					ensureIndexCapacity(buffer, count);
+					System.arraycopy(buffer.mIndices, first, buffer.mIndices, buffer.mNumberOfIndices, count);
+					first = buffer.mNumberOfIndices;
+					buffer.mNumberOfIndices += count;
+					group.mNodeIndices[slot * 2] = first;
+				}
+			}
+
+			ensureIndexCapacity(buffer, pass.mIndexCount);
+			for (int j = 0; j < pass.mIndexCount; j++) {
+				int source = pass.mFirstIndex + j;
+				if (mirrored && j % 3 != 0)
+					source += j % 3 == 1 ? 1 : -1;
+				buffer.mIndices[buffer.mNumberOfIndices++] = sourceIndices[source] + firstVertex;
+			}
+			group.mNodeIndices[slot * 2 + 1] += pass.mIndexCount;
+		}
+	}
+
+	private void appendVertices(Buffer pBuffer, Geometry pGeometry, float[] pMatrix) {
+		int vertexSize = pBuffer.mVertexSize;
+		int numberOfVertices = pGeometry.getNumberOfVertices();
+		int needed = (pBuffer.mNumberOfVertices + numberOfVertices) * vertexSize;
+		if (pBuffer.mVertexData.length < needed) {
+			float[] grown = new float[Math.max(needed, pBuffer.mVertexData.length * 2)];
+			System.arraycopy(pBuffer.mVertexData, 0, grown, 0, pBuffer.mNumberOfVertices * vertexSize);
+			pBuffer.mVertexData = grown;
+		}
+
+		float[] source = pGeometry.getVertexData();
+		float[] target = pBuffer.mVertexData;
+		int targetOffset = pBuffer.mNumberOfVertices * vertexSize;
+		System.arraycopy(source, 0, target, targetOffset, numberOfVertices * vertexSize);
+
+		// Normals are transformed with the cofactor matrix, which is the inverse
+		// transpose up to a scale factor that the normalization removes again.
+		// The factor is the determinant, whose sign has to be kept.
+		float[] normalMatrix = new float[] {
+			pMatrix[5] * pMatrix[10] - pMatrix[6] * pMatrix[9],
+			pMatrix[6] * pMatrix[8] - pMatrix[4] * pMatrix[10],
+			pMatrix[4] * pMatrix[9] - pMatrix[5] * pMatrix[8],
+			pMatrix[9] * pMatrix[2] - pMatrix[10] * pMatrix[1],
+			pMatrix[10] * pMatrix[0] - pMatrix[8] * pMatrix[2],
+			pMatrix[8] * pMatrix[1] - pMatrix[9] * pMatrix[0],
+			pMatrix[1] * pMatrix[6] - pMatrix[2] * pMatrix[5],
+			pMatrix[2] * pMatrix[4] - pMatrix[0] * pMatrix[6],
+			pMatrix[0] * pMatrix[5] - pMatrix[1] * pMatrix[4]
+		};
+
+		float sign = determinant(pMatrix) < 0.0f ? -1.0f : 1.0f;
+
+		int positionOffset = pGeometry.getVertexAttributeOffset("a_position");
+		int normalOffset = pGeometry.getVertexAttributeOffset("a_normal");
+		for (int i = 0; i < numberOfVertices; i++) {
+			int vertex = targetOffset + i * vertexSize;
+			if (positionOffset != -1) {
+				int p = vertex + positionOffset;
+				float x = target[p], y = target[p + 1], z = target[p + 2];
+				target[p + 0] = pMatrix[0] * x + pMatrix[4] * y + pMatrix[8] * z + pMatrix[12];
+				target[p + 1] = pMatrix[1] * x + pMatrix[5] * y + pMatrix[9] * z + pMatrix[13];
+				target[p + 2] = pMatrix[2] * x + pMatrix[6] * y + pMatrix[10] * z + pMatrix[14];
+			}
+			if (normalOffset != -1) {
+				int n = vertex + normalOffset;
+				float x = target[n], y = target[n + 1], z = target[n + 2];
+				float nx = normalMatrix[0] * x + normalMatrix[3] * y + normalMatrix[6] * z;
+				float ny = normalMatrix[1] * x + normalMatrix[4] * y + normalMatrix[7] * z;
+				float nz = normalMatrix[2] * x + normalMatrix[5] * y + normalMatrix[8] * z;
+				float length = sign * (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length != 0.0f) {
+					nx /= length;
+					ny /= length;
+					nz /= length;
+				}
+				target[n + 0] = nx;
+				target[n + 1] = ny;
+				target[n + 2] = nz;
+			}
+		}
+		pBuffer.mNumberOfVertices += numberOfVertices;
+	}
+
+	// Gets the determinant of the upper 3x3 part, which is negative for
+	// mirroring transforms
+	private static float determinant(float[] pMatrix) {
+		return pMatrix[0] * (pMatrix[5] * pMatrix[10] - pMatrix[6] * pMatrix[9])
+				+ pMatrix[4] * (pMatrix[9] * pMatrix[2] - pMatrix[10] * pMatrix[1])
+				+ pMatrix[8] * (pMatrix[1] * pMatrix[6] - pMatrix[2] * pMatrix[5]);
+	}
+
+	private void ensureIndexCapacity(Buffer pBuffer, int pAdditionalIndices) {
+		int needed = pBuffer.mNumberOfIndices + pAdditionalIndices;
+		if (pBuffer.mIndices.length < needed) {
+			int[] grown = new int[Math.max(needed, pBuffer.mIndices.length * 2)];
+			System.arraycopy(pBuffer.mIndices, 0, grown, 0, pBuffer.mNumberOfIndices);
+			pBuffer.mIndices = grown;
+		}
+	}
+
+	private void updateRanges(Group pGroup) {
+		boolean changed = false;
+		for (int i = 0; i < pGroup.mNodes.size(); i++) {
+			boolean visible = mNodeVisible[pGroup.mBatchIndices[i]];
+			if (visible != pGroup.mVisible[i]) {
+				pGroup.mVisible[i] = visible;
+				changed = true;
+			}
+		}
+		if (!changed)
+			return;
+
+		// Neighbouring visible nodes get merged into one range
+		int[] ranges = pGroup.mPass.mRanges;
+		int numberOfRanges = 0;
+		for (int i = 0; i < pGroup.mNodes.size(); i++) {
+			if (!pGroup.mVisible[i])
+				continue;
+			int first = pGroup.mNodeIndices[i * 2];
+			int count = pGroup.mNodeIndices[i * 2 + 1];
+			if (numberOfRanges > 0 && ranges[numberOfRanges * 2 - 2] + ranges[numberOfRanges * 2 - 1] == first)
+				ranges[numberOfRanges * 2 - 1] += count;
+			else {
+				ranges[numberOfRanges * 2] = first;
+				ranges[numberOfRanges * 2 + 1] = count;
+				numberOfRanges++;
+			}
+		}
+		pGroup.mPass.mNumberOfRanges = numberOfRanges;
+	}
+}
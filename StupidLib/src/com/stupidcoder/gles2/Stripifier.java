@@ -0,0 +1,183 @@
+/**
+ * Converts indexed triangle lists into a single triangle strip, joining the
+ * individual strips with degenerate triangles.
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+public class Stripifier {
+	private int[] mIndices;
+	private int mFirstIndex;
+	private int mNumberOfTriangles;
+	private int[] mFirstTriangle;
+	private int[] mTriangles;
+	private boolean[] mUsed;
+	private int[] mMark;
+	private int mStamp;
+	private int[] mStrip;
+	private int mStripLength;
+
+	/**
+	 * Creates a triangle strip from a part of an index list.
+	 *
+	 * @param pIndices
+	 *            The triangle list indices.
+	 * @param pFirstIndex
+	 *            The first index to use.
+	 * @param pIndexCount
+	 *            The number of indices to use, three per triangle.
+	 * @return The indices of the triangle strip. The winding order of all
+	 *         triangles is kept, degenerate source triangles are dropped.
+	 */
+	public int[] stripify(int[] pIndices, int pFirstIndex, int pIndexCount) {
+		mIndices = pIndices;
+		mFirstIndex = pFirstIndex;
+		mNumberOfTriangles = pIndexCount / 3;
+		buildAdjacency();
+
+		mUsed = new boolean[mNumberOfTriangles];
+		mMark = new int[mNumberOfTriangles];
+		mStamp = 0;
+		mStrip = new int[pIndexCount + 16];
+		int[] result = new int[pIndexCount + 16];
+		int resultLength = 0;
+
+		for (int triangle = 0; triangle < mNumberOfTriangles; triangle++) {
+			if (mUsed[triangle])
+				continue;
+			if (isDegenerate(triangle)) {
+				mUsed[triangle] = true;
+				continue;
+			}
+
+			// Try all three rotations of the start triangle and keep the longest strip
+			int bestRotation = 0, bestLength = -1;
+			for (int rotation = 0; rotation < 3; rotation++) {
+				int length = buildStrip(triangle, rotation, false);
+				if (length > bestLength) {
+					bestLength = length;
+					bestRotation = rotation;
+				}
+			}
+			buildStrip(triangle, bestRotation, true);
+
+			// Join with the previous strip using degenerate triangles, keeping the
+			// new strip starting at an even position so its winding stays intact
+			int needed = resultLength + mStripLength + 3;
+			if (result.length < needed) {
+				int[] grown = new int[Math.max(needed, result.length * 2)];
+				System.arraycopy(result, 0, grown, 0, resultLength);
+				result = grown;
+			}
+			if (resultLength > 0) {
+				result[resultLength] = result[resultLength - 1];
+				result[resultLength + 1] = mStrip[0];
+				resultLength += 2;
+				if (resultLength % 2 != 0)
+					result[resultLength++] = mStrip[0];
+			}
+			System.arraycopy(mStrip, 0, result, resultLength, mStripLength);
+			resultLength += mStripLength;
+		}
+
+		int[] strip = new int[resultLength];
+		System.arraycopy(result, 0, strip, 0, resultLength);
+		mIndices = null;
+		mTriangles = null;
+		mFirstTriangle = null;
+		mStrip = null;
+		return strip;
+	}
+
+	// Lists the triangles around each vertex, stored as offsets into one array
+	private void buildAdjacency() {
+		int numberOfVertices = 0;
+		for (int i = 0; i < mNumberOfTriangles * 3; i++)
+			numberOfVertices = Math.max(numberOfVertices, mIndices[mFirstIndex + i] + 1);
+
+		mFirstTriangle = new int[numberOfVertices + 1];
+		for (int i = 0; i < mNumberOfTriangles * 3; i++)
+			mFirstTriangle[mIndices[mFirstIndex + i] + 1]++;
+		for (int i = 0; i < numberOfVertices; i++)
+			mFirstTriangle[i + 1] += mFirstTriangle[i];
+
+		mTriangles = new int[mNumberOfTriangles * 3];
+		int[] fill = new int[numberOfVertices];
+		for (int i = 0; i < mNumberOfTriangles * 3; i++) {
+			int vertex = mIndices[mFirstIndex + i];
+			mTriangles[mFirstTriangle[vertex] + fill[vertex]++] = i / 3;
+		}
+	}
+
+	private boolean isDegenerate(int pTriangle) {
+		int a = vertex(pTriangle, 0), b = vertex(pTriangle, 1), c = vertex(pTriangle, 2);
+		return a == b || b == c || a == c;
+	}
+
+	private int vertex(int pTriangle, int pCorner) {
+		return mIndices[mFirstIndex + pTriangle * 3 + pCorner];
+	}
+
+	private boolean isAvailable(int pTriangle, boolean pCommit) {
+		return !mUsed[pTriangle] && (pCommit || mMark[pTriangle] != mStamp);
+	}
+
+	private void take(int pTriangle, boolean pCommit) {
+		if (pCommit)
+			mUsed[pTriangle] = true;
+		else
+			mMark[pTriangle] = mStamp;
+	}
+
+	/**
+	 * Grows a strip from the given start triangle. Without pCommit the
+	 * triangles only get marked temporarily, so different starts can be
+	 * compared.
+	 */
+	private int buildStrip(int pTriangle, int pRotation, boolean pCommit) {
+		mStamp++;
+		mStripLength = 0;
+		take(pTriangle, pCommit);
+		mStrip[mStripLength++] = vertex(pTriangle, pRotation);
+		mStrip[mStripLength++] = vertex(pTriangle, (pRotation + 1) % 3);
+		mStrip[mStripLength++] = vertex(pTriangle, (pRotation + 2) % 3);
+
+		while (true) {
+			// The next triangle must contain the last edge in the direction
+			// that matches the alternating winding of the strip
+			int p = mStrip[mStripLength - 2];
+			int q = mStrip[mStripLength - 1];
+			boolean even = (mStripLength - 2) % 2 == 0;
+			int from = even ? p : q;
+			int to = even ? q : p;
+
+			int next = -1, third = -1;
+			for (int i = mFirstTriangle[from]; i < mFirstTriangle[from + 1] && next == -1; i++) {
+				int candidate = mTriangles[i];
+				if (!isAvailable(candidate, pCommit) || isDegenerate(candidate))
+					continue;
+				for (int corner = 0; corner < 3; corner++) {
+					if (vertex(candidate, corner) == from && vertex(candidate, (corner + 1) % 3) == to) {
+						next = candidate;
+						third = vertex(candidate, (corner + 2) % 3);
+						break;
+					}
+				}
+			}
+			if (next == -1)
+				break;
+
+			take(next, pCommit);
+			if (mStripLength == mStrip.length) {
+				int[] grown = new int[mStrip.length * 2];
+				System.arraycopy(mStrip, 0, grown, 0, mStripLength);
+				mStrip = grown;
+			}
+			mStrip[mStripLength++] = third;
+		}
+		return mStripLength;
+	}
+}
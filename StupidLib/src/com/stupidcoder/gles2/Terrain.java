@@ -0,0 +1,413 @@
+/**
+ * A heightmap terrain built from square tiles, each of which picks one of
+ * several precomputed levels of detail every frame based on its distance to
+ * the camera (geomipmapping).
+ *
+ * @author Dennis Harms
+ * @version 1.0
+ */
+
+package com.stupidcoder.gles2;
+
+import java.util.ArrayList;
+
+import android.opengl.Matrix;
+
+public class Terrain extends Scene.Node {
+	// Index list sections of every level of detail
+	private static final int CENTER = 0;
+	private static final int NORTH = 1, EAST = 2, SOUTH = 3, WEST = 4;
+	private static final int STITCHED = 4;
+	private static final int SECTIONS = 9;
+
+	private float[] mHeights;
+	private int mWidth, mDepth;
+	private float mCellSize, mHeightScale;
+	private int mTileSize, mTilesX, mTilesZ, mNumberOfLevels;
+	private int[] mSections;
+	private Scene.Node[] mTiles;
+	private Geometry.Pass[] mPasses;
+	private int[] mLevels;
+	private float mLodDistance;
+	private float[] mCenter, mWorldCenter;
+
+	/**
+	 * Creates a new terrain from a heightmap.
+	 *
+	 * @param pHeights
+	 *            The height samples, row by row along the X axis.
+	 * @param pWidth
+	 *            The number of samples along the X axis.
+	 * @param pDepth
+	 *            The number of samples along the Z axis.
+	 * @param pCellSize
+	 *            The distance between two neighbouring samples.
+	 * @param pHeightScale
+	 *            The factor by which the height samples get multiplied.
+	 * @param pTileSize
+	 *            The number of cells along each side of a tile. Must be a
+	 *            power of two of at least 2, and pWidth - 1 and pDepth - 1 must
+	 *            be multiples of it.
+	 */
+	public Terrain(float[] pHeights, int pWidth, int pDepth, float pCellSize, float pHeightScale, int pTileSize) {
+		super();
+		if (pTileSize < 2 || Integer.bitCount(pTileSize) != 1)
+			throw new IllegalArgumentException("The tile size must be a power of two");
+		if ((pWidth - 1) % pTileSize != 0 || (pDepth - 1) % pTileSize != 0 || pHeights.length < pWidth * pDepth)
+			throw new IllegalArgumentException("The heightmap size doesn't fit the tile size");
+
+		mHeights = pHeights;
+		mWidth = pWidth;
+		mDepth = pDepth;
+		mCellSize = pCellSize;
+		mHeightScale = pHeightScale;
+		mTileSize = pTileSize;
+		mTilesX = (pWidth - 1) / pTileSize;
+		mTilesZ = (pDepth - 1) / pTileSize;
+		mLodDistance = pTileSize * pCellSize * 2.0f;
+		mCenter = new float[4];
+		mWorldCenter = new float[4];
+
+		// The coarsest level still has two cells per side, so every side can be stitched
+		mNumberOfLevels = Integer.numberOfTrailingZeros(pTileSize);
+		int[] indices = buildIndices();
+
+		mTiles = new Scene.Node[mTilesX * mTilesZ];
+		mLevels = new int[mTiles.length];
+		mPasses = new Geometry.Pass[0];
+		for (int z = 0; z < mTilesZ; z++) {
+			for (int x = 0; x < mTilesX; x++) {
+				Geometry geometry = new Geometry();
+				geometry.setVertexFormat("a_position:3,a_normal:3,a_texCoord:2");
+				geometry.setVertexData(buildVertices(x * pTileSize, z * pTileSize));
+				geometry.setIndices(indices);
+
+				Scene.Node tile = new Scene.Node();
+				tile.setGeometry(geometry);
+				mTiles[z * mTilesX + x] = tile;
+				getChildren().add(tile);
+			}
+		}
+	}
+
+	/**
+	 * Sets the shader to draw the terrain with. The first call adds a render
+	 * pass to all tiles, later ones replace the shader of that pass.
+	 *
+	 * @param pShader
+	 *            The shader to draw the terrain with.
+	 */
+	public void setShader(Shader pShader) {
+		if (mPasses.length > 0) {
+			for (int i = 0; i < mPasses.length; i++)
+				mPasses[i].setShader(pShader);
+			return;
+		}
+		mPasses = new Geometry.Pass[mTiles.length];
+		for (int i = 0; i < mTiles.length; i++) {
+			Geometry geometry = mTiles[i].getGeometry();
+			// Without ranges, e.g. when batched, the pass draws the full resolution
+			mPasses[i] = geometry.addPass(pShader, 0, mSections[STITCHED + 1] / 3);
+			mPasses[i].mRanges = new int[5 * 2];
+			mPasses[i].mNumberOfRanges = 0;
+		}
+	}
+
+	/**
+	 * Assigns a texture to the render passes of all tiles.
+	 */
+	public void setTexture(String pName, Texture pTexture) {
+		for (int i = 0; i < mPasses.length; i++)
+			mPasses[i].setTexture(pName, pTexture);
+	}
+
+	/**
+	 * Sets a shader parameter on the render passes of all tiles.
+	 */
+	public void setShaderParameter(String pName, float[] pValues) {
+		for (int i = 0; i < mPasses.length; i++)
+			mPasses[i].setShaderParameter(pName, pValues);
+	}
+
+	/**
+	 * Sets the camera distance at which tiles switch from the full resolution
+	 * to the first reduced level of detail. Each following level is used from
+	 * twice the distance of the previous one.
+	 *
+	 * @param pDistance
+	 *            The distance of the first level switch.
+	 */
+	public void setLodDistance(float pDistance) {
+		mLodDistance = Math.max(0.0001f, pDistance);
+	}
+
+	public int getNumberOfLevels() {
+		return mNumberOfLevels;
+	}
+
+	public int getNumberOfTiles() {
+		return mTiles.length;
+	}
+
+	public Scene.Node getTile(int pX, int pZ) {
+		return mTiles[pZ * mTilesX + pX];
+	}
+
+	/**
+	 * Gets the level of detail a tile has been drawn with in the last frame.
+	 *
+	 * @return The level, 0 being the full resolution.
+	 */
+	public int getLevel(int pX, int pZ) {
+		return mLevels[pZ * mTilesX + pX];
+	}
+
+	/**
+	 * Gets the number of triangles drawn in the last frame.
+	 *
+	 * @return The number of triangles of all tiles.
+	 */
+	public int getNumberOfTriangles() {
+		int numberOfIndices = 0;
+		for (int i = 0; i < mPasses.length; i++)
+			for (int j = 0; j < mPasses[i].mNumberOfRanges; j++)
+				numberOfIndices += mPasses[i].mRanges[j * 2 + 1];
+		return numberOfIndices / 3;
+	}
+
+	/**
+	 * Gets the bilinearly interpolated terrain height at a point in the
+	 * terrain's local coordinate system.
+	 */
+	public float getHeightAt(float pX, float pZ) {
+		float x = Math.max(0.0f, Math.min(mWidth - 1, pX / mCellSize));
+		float z = Math.max(0.0f, Math.min(mDepth - 1, pZ / mCellSize));
+		int x0 = Math.min((int) x, mWidth - 2);
+		int z0 = Math.min((int) z, mDepth - 2);
+		float fx = x - x0, fz = z - z0;
+		float h00 = sample(x0, z0), h10 = sample(x0 + 1, z0);
+		float h01 = sample(x0, z0 + 1), h11 = sample(x0 + 1, z0 + 1);
+		return ((h00 * (1.0f - fx) + h10 * fx) * (1.0f - fz) + (h01 * (1.0f - fx) + h11 * fx) * fz) * mHeightScale;
+	}
+
+	@Override
+	protected void prepare(Camera pCamera) {
+		if (mPasses.length > 0)
+			selectLevels(pCamera.getPosition());
+	}
+
+	private float sample(int pX, int pZ) {
+		return mHeights[pZ * mWidth + pX];
+	}
+
+	private void selectLevels(Vec3 pCameraPosition) {
+		float[] worldMatrix = getWorldMatrix();
+		float halfTile = mTileSize * mCellSize / 2.0f;
+		for (int z = 0; z < mTilesZ; z++) {
+			for (int x = 0; x < mTilesX; x++) {
+				int tile = z * mTilesX + x;
+				mCenter[0] = x * mTileSize * mCellSize + halfTile;
+				mCenter[1] = sample(Math.min(x * mTileSize + mTileSize / 2, mWidth - 1),
+						Math.min(z * mTileSize + mTileSize / 2, mDepth - 1)) * mHeightScale;
+				mCenter[2] = z * mTileSize * mCellSize + halfTile;
+				mCenter[3] = 1.0f;
+				Matrix.multiplyMV(mWorldCenter, 0, worldMatrix, 0, mCenter, 0);
+
+				float dx = mWorldCenter[0] - pCameraPosition.x;
+				float dy = mWorldCenter[1] - pCameraPosition.y;
+				float dz = mWorldCenter[2] - pCameraPosition.z;
+				float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+				int level = 0;
+				for (float limit = mLodDistance; distance >= limit && level < mNumberOfLevels - 1; limit *= 2.0f)
+					level++;
+				mLevels[tile] = level;
+			}
+		}
+
+		// Neighbouring tiles may differ by one level at most, so every seam can be stitched
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int z = 0; z < mTilesZ; z++) {
+				for (int x = 0; x < mTilesX; x++) {
+					int tile = z * mTilesX + x;
+					int limit = mLevels[tile];
+					if (x > 0)
+						limit = Math.min(limit, mLevels[tile - 1] + 1);
+					if (x < mTilesX - 1)
+						limit = Math.min(limit, mLevels[tile + 1] + 1);
+					if (z > 0)
+						limit = Math.min(limit, mLevels[tile - mTilesX] + 1);
+					if (z < mTilesZ - 1)
+						limit = Math.min(limit, mLevels[tile + mTilesX] + 1);
+					if (limit < mLevels[tile]) {
+						mLevels[tile] = limit;
+						changed = true;
+					}
+				}
+			}
+		}
+
+		for (int z = 0; z < mTilesZ; z++) {
+			for (int x = 0; x < mTilesX; x++) {
+				int tile = z * mTilesX + x;
+				int level = mLevels[tile];
+				Geometry.Pass pass = mPasses[tile];
+				pass.mNumberOfRanges = 0;
+				addSection(pass, level, CENTER);
+				addSection(pass, level, (z > 0 && mLevels[tile - mTilesX] > level) ? NORTH + STITCHED : NORTH);
+				addSection(pass, level, (x < mTilesX - 1 && mLevels[tile + 1] > level) ? EAST + STITCHED : EAST);
+				addSection(pass, level, (z < mTilesZ - 1 && mLevels[tile + mTilesX] > level) ? SOUTH + STITCHED : SOUTH);
+				addSection(pass, level, (x > 0 && mLevels[tile - 1] > level) ? WEST + STITCHED : WEST);
+			}
+		}
+	}
+
+	private void addSection(Geometry.Pass pPass, int pLevel, int pSection) {
+		int first = mSections[pLevel * SECTIONS + pSection];
+		int count = mSections[pLevel * SECTIONS + pSection + 1] - first;
+		if (count == 0)
+			return;
+		int last = pPass.mNumberOfRanges - 1;
+		if (last >= 0 && pPass.mRanges[last * 2] + pPass.mRanges[last * 2 + 1] == first)
+			pPass.mRanges[last * 2 + 1] += count;
+		else {
+			pPass.mRanges[pPass.mNumberOfRanges * 2] = first;
+			pPass.mRanges[pPass.mNumberOfRanges * 2 + 1] = count;
+			pPass.mNumberOfRanges++;
+		}
+	}
+
+	private float[] buildVertices(int pFirstX, int pFirstZ) {
+		int size = mTileSize + 1;
+		float[] vertices = new float[size * size * 8];
+		for (int z = 0; z < size; z++) {
+			for (int x = 0; x < size; x++) {
+				int sampleX = pFirstX + x, sampleZ = pFirstZ + z;
+				int index = (z * size + x) * 8;
+				vertices[index + 0] = sampleX * mCellSize;
+				vertices[index + 1] = sample(sampleX, sampleZ) * mHeightScale;
+				vertices[index + 2] = sampleZ * mCellSize;
+
+				// Central differences across the whole heightmap, so tile borders match
+				float left = sample(Math.max(0, sampleX - 1), sampleZ);
+				float right = sample(Math.min(mWidth - 1, sampleX + 1), sampleZ);
+				float back = sample(sampleX, Math.max(0, sampleZ - 1));
+				float front = sample(sampleX, Math.min(mDepth - 1, sampleZ + 1));
+				float slopeX = (right - left) * mHeightScale / (mCellSize * (Math.min(mWidth - 1, sampleX + 1) - Math.max(0, sampleX - 1)));
+				float slopeZ = (front - back) * mHeightScale / (mCellSize * (Math.min(mDepth - 1, sampleZ + 1) - Math.max(0, sampleZ - 1)));
+				Vec3 normal = new Vec3(slopeX, -1.0f, slopeZ).normalize();
+				vertices[index + 3] = normal.x;
+				vertices[index + 4] = normal.y;
+				vertices[index + 5] = normal.z;
+
+				vertices[index + 6] = (float) sampleX / (mWidth - 1);
+				vertices[index + 7] = (float) sampleZ / (mDepth - 1);
+			}
+		}
+		return vertices;
+	}
+
+	// All tiles share the same local vertex layout, so they also share one
+	// index list: for every level the center block, the four sides and the
+	// four sides stitched to a neighbour with half the resolution
+	private int[] buildIndices() {
+		ArrayList<Integer> indices = new ArrayList<Integer>();
+		mSections = new int[mNumberOfLevels * SECTIONS + 1];
+
+		for (int level = 0; level < mNumberOfLevels; level++) {
+			int step = 1 << level;
+			int cells = mTileSize / step;
+
+			mSections[level * SECTIONS + CENTER] = indices.size();
+			for (int z = 1; z < cells - 1; z++) {
+				for (int x = 1; x < cells - 1; x++) {
+					addTriangle(indices, step, x, z, x, z + 1, x + 1, z + 1);
+					addTriangle(indices, step, x, z, x + 1, z + 1, x + 1, z);
+				}
+			}
+
+			for (int stitched = 0; stitched <= 1; stitched++) {
+				for (int side = NORTH; side <= WEST; side++) {
+					mSections[level * SECTIONS + side + stitched * STITCHED] = indices.size();
+					if (stitched == 0)
+						addSide(indices, step, cells, side);
+					else
+						addStitchedSide(indices, step, cells, side);
+				}
+			}
+		}
+		mSections[mNumberOfLevels * SECTIONS] = indices.size();
+
+		int[] result = new int[indices.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = indices.get(i);
+		return result;
+	}
+
+	// A side is the trapezoid between the outer edge of the tile and the
+	// first inner row of vertices; O(k) is the k-th outer, I(k) the k-th inner vertex
+	private void addSide(ArrayList<Integer> pIndices, int pStep, int pCells, int pSide) {
+		addSideTriangle(pIndices, pStep, pCells, pSide, 0, true, 1, true, 1, false);
+		for (int k = 1; k < pCells - 1; k++) {
+			addSideTriangle(pIndices, pStep, pCells, pSide, k, true, k + 1, true, k, false);
+			addSideTriangle(pIndices, pStep, pCells, pSide, k + 1, true, k + 1, false, k, false);
+		}
+		addSideTriangle(pIndices, pStep, pCells, pSide, pCells - 1, true, pCells, true, pCells - 1, false);
+	}
+
+	// The same trapezoid, but only using every other outer vertex so it
+	// matches the edge of a neighbour with half the resolution
+	private void addStitchedSide(ArrayList<Integer> pIndices, int pStep, int pCells, int pSide) {
+		for (int k = 0; k < pCells; k += 2) {
+			addSideTriangle(pIndices, pStep, pCells, pSide, k, true, k + 2, true, k + 1, false);
+			if (k + 2 < pCells) {
+				addSideTriangle(pIndices, pStep, pCells, pSide, k + 1, false, k + 2, true, k + 2, false);
+				addSideTriangle(pIndices, pStep, pCells, pSide, k + 2, false, k + 2, true, k + 3, false);
+			}
+		}
+	}
+
+	private void addSideTriangle(ArrayList<Integer> pIndices, int pStep, int pCells, int pSide, int pA, boolean pOuterA,
+			int pB, boolean pOuterB, int pC, boolean pOuterC) {
+		int[] a = sideVertex(pCells, pSide, pA, pOuterA);
+		int[] b = sideVertex(pCells, pSide, pB, pOuterB);
+		int[] c = sideVertex(pCells, pSide, pC, pOuterC);
+		addTriangle(pIndices, pStep, a[0], a[1], b[0], b[1], c[0], c[1]);
+	}
+
+	private int[] sideVertex(int pCells, int pSide, int pK, boolean pOuter) {
+		int depth = pOuter ? 0 : 1;
+		switch (pSide) {
+		case NORTH:
+			return new int[] { pK, depth };
+		case EAST:
+			return new int[] { pCells - depth, pK };
+		case SOUTH:
+			return new int[] { pK, pCells - depth };
+		default:
+			return new int[] { depth, pK };
+		}
+	}
+
+	// Adds a triangle given in cell coordinates of a level, with the same
+	// winding as the quads created by GeometryBuilder
+	private void addTriangle(ArrayList<Integer> pIndices, int pStep, int pX1, int pZ1, int pX2, int pZ2, int pX3, int pZ3) {
+		int size = mTileSize + 1;
+		int a = pZ1 * pStep * size + pX1 * pStep;
+		int b = pZ2 * pStep * size + pX2 * pStep;
+		int c = pZ3 * pStep * size + pX3 * pStep;
+		int area = (pX2 - pX1) * (pZ3 - pZ1) - (pZ2 - pZ1) * (pX3 - pX1);
+		if (area == 0)
+			return;
+		pIndices.add(a);
+		if (area < 0) {
+			pIndices.add(b);
+			pIndices.add(c);
+		}
+		else {
+			pIndices.add(c);
+			pIndices.add(b);
+		}
+	}
+}
@@ -7,21 +7,24 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.util.Log;
 
-public class Texture {
+public class Texture extends GLResource {
 	private int mTexture;
 	private Bitmap mBitmap;
-	private long mLastBuffered;
+	private int mBufferedGeneration;
+	private int mTextureGeneration;
+	private int mId;
 
 	public Texture(Bitmap pBitmap) {
-		mLastBuffered = 0;
+		mBufferedGeneration = 0;
+		mId = RenderQueue.nextId();
 		mBitmap = pBitmap;
 	}
 
 	public Texture(Resources pResources, int pResourceID) {
-		mLastBuffered = 0;
+		mBufferedGeneration = 0;
+		mId = RenderQueue.nextId();
 		try
 		{
 			InputStream stream = pResources.openRawResource(pResourceID);
@@ -34,30 +37,70 @@ public class Texture {
 		}
 	}
 
-	private void bufferIfNeeded(long pSurfaceCreationTime) {
-		if (mLastBuffered >= pSurfaceCreationTime)
+	private void bufferIfNeeded(int pSurfaceGeneration, GLState pState) {
+		if (mBufferedGeneration >= pSurfaceGeneration) {
+			pState.used(this);
 			return;
+		}
+		pState.claim(this);
+
+		// Uploading again on the same surface replaces the image of the
+		// existing texture
+		if (mTextureGeneration != pSurfaceGeneration) {
+			int[] textures = new int[1];
+			GL.get().glGenTextures(1, textures, 0);
+			mTexture = textures[0];
+			mTextureGeneration = pSurfaceGeneration;
+		}
+
+		pState.bindTexture(pState.getActiveTexture(), mTexture);
+
+		GL.get().glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+		GL.get().glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
 
-		int[] textures = new int[1];
-		GLES20.glGenTextures(1, textures, 0);
-		mTexture = textures[0];
+		GL.get().glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
+		GL.get().glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
 
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+		GL.get().texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
+		long size = (long)mBitmap.getRowBytes() * mBitmap.getHeight();
+		pState.count(FrameStats.COUNTER_UPLOAD_BYTES, size);
+		GL.get().glGenerateMipmap(GLES20.GL_TEXTURE_2D);
 
-		GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-		GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		mBufferedGeneration = pSurfaceGeneration;
+		// The mipmaps add a third
+		pState.uploaded(this, size + size / 3);
+	}
 
-		GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
-		GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
+	@Override
+	void deleteObjects(GLState pState, int pSurfaceGeneration) {
+		if (mTextureGeneration == pSurfaceGeneration)
+			pState.deleteTexture(mTexture);
+		mTexture = 0;
+		mTextureGeneration = mBufferedGeneration = 0;
+	}
 
-		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmap, 0);
-		GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+	@Override
+	void orphanObjects(ResourceManager.Orphan pOrphan) {
+		pOrphan.mTexture = mTexture;
+		pOrphan.mTextureGeneration = mTextureGeneration;
+		mTexture = 0;
+		mTextureGeneration = mBufferedGeneration = 0;
+	}
+
+	int getId() {
+		return mId;
+	}
 
-		mLastBuffered = Tools.currentTime();
+	public int use(int pSurfaceGeneration) {
+		return use(pSurfaceGeneration, GLState.UNTRACKED);
 	}
 
-	public int use(long pSurfaceCreationTime) {
-		bufferIfNeeded(pSurfaceCreationTime);
+	/**
+	 * Gets the texture name, creating the texture first if needed. An upload
+	 * binds the texture through the given state tracker.
+	 */
+	public int use(int pSurfaceGeneration, GLState pState) {
+		bufferIfNeeded(pSurfaceGeneration, pState);
 		return mTexture;
 	}
 }
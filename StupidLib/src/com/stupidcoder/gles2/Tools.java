@@ -11,7 +11,6 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Calendar;
 
 import android.content.res.Resources;
 
@@ -143,12 +142,14 @@ public class Tools {
 	}
 
 	/**
-	 * Gets the current time in milliseconds.
+	 * Gets the current wall clock time in milliseconds. It jumps when the
+	 * system time gets changed, so frame times should be measured with a
+	 * Clock instead.
 	 * 
 	 * @return The current time in milliseconds.
 	 */
 	public static long currentTime() {
-		return Calendar.getInstance().getTimeInMillis();
+		return System.currentTimeMillis();
 	}
 
 	/**
@@ -28,6 +28,8 @@ public class main extends Activity implements Scene.RenderEvent {
 	private Scene mScene;
 	private long mTotalTime = 0;
 	private float mPrevTouchX, mPrevTouchY;
+	private int mCameraPosUniform, mLightPosUniform;
+	private float[] mLightPositions = new float[6];
 	
     @Override public void onCreate(Bundle savedInstanceState) {
 		// Check if OpenGL ES 2.0 is supported and quit otherwise
@@ -80,6 +82,9 @@ public class main extends Activity implements Scene.RenderEvent {
 		phong.setVertexSource(getResources(), R.raw.phong_vsh);
 		phong.setFragmentSource(getResources(), R.raw.phong_fsh);
 		phong.setShaderParameter("u_lightColor", 2, new float[] { 1.0f, 0.7f, 0.7f, 0.7f, 1.0f, 0.7f });
+		// Look up the uniforms that change every frame only once
+		mCameraPosUniform = phong.uniform("u_cameraPos");
+		mLightPosUniform = phong.uniform("u_lightPos");
 
 		// Compile the solid color shader that optionally gets used for wireframe rendering
 		Shader solid = mScene.createShader("solid");
@@ -217,8 +222,10 @@ public class main extends Activity implements Scene.RenderEvent {
 		// Plug the current camera and light positions into the Phong shader
 		Vec3 cameraPos = mScene.getCamera().getPosition();
 		Shader phong = mScene.getShader("phong");
-		phong.setShaderParameter("u_cameraPos", new float[] { cameraPos.x, cameraPos.y, cameraPos.z });
-		phong.setShaderParameter("u_lightPos", 2, new float[] { light1Matrix[12], light1Matrix[13], light1Matrix[14], light2Matrix[12], light2Matrix[13], light2Matrix[14] });
+		phong.setUniform(mCameraPosUniform, cameraPos.x, cameraPos.y, cameraPos.z);
+		System.arraycopy(light1Matrix, 12, mLightPositions, 0, 3);
+		System.arraycopy(light2Matrix, 12, mLightPositions, 3, 3);
+		phong.setUniform(mLightPosUniform, 2, mLightPositions);
 	}
 
 	@Override
@@ -0,0 +1,67 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stupidcoder.gles2.Camera;
+
+/**
+ * Moves the camera and rebuilds its matrices and frustum.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraBenchmark {
+	private Camera mCamera;
+	private boolean mWide;
+
+	@Setup
+	public void setUp() {
+		mCamera = new Camera();
+		mCamera.setAspect(1.5f);
+		mCamera.setLookAt(0.0f, 2.0f, 10.0f, 0.0f, 0.0f, 0.0f);
+	}
+
+	@Benchmark
+	public Camera orbit() {
+		mCamera.orbit(0.01f, 0.0f, 0.0f);
+		mCamera.updateCamera();
+		return mCamera;
+	}
+
+	@Benchmark
+	public Camera pan() {
+		mCamera.pan(0.01f, 0.0f, 0.0f);
+		mCamera.updateCamera();
+		return mCamera;
+	}
+
+	@Benchmark
+	public Camera projection() {
+		mWide = !mWide;
+		mCamera.setFieldOfView(mWide ? 46.0f : 45.0f);
+		mCamera.updateCamera();
+		return mCamera;
+	}
+
+	@Benchmark
+	public Camera stereo() {
+		mCamera.orbit(0.01f, 0.0f, 0.0f);
+		mCamera.updateCamera();
+		mCamera.updateStereo(0.1f);
+		return mCamera;
+	}
+}
@@ -0,0 +1,58 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stupidcoder.gles2.Collision;
+import com.stupidcoder.gles2.Vec3;
+
+/**
+ * Pushes a sphere out of the inside of a closed mesh, which tests it
+ * against every triangle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+	// 32, 512 and 8192 triangles
+	@Param({ "1", "3", "5" })
+	public int tesselation;
+
+	private Collision mCollision;
+	private Vec3 mStart, mPoint;
+
+	@Setup
+	public void setUp() {
+		mCollision = new Collision(Meshes.triangles(Meshes.sphere(tesselation)));
+		mStart = new Vec3(0.0f, 0.9f, 0.0f);
+		mPoint = new Vec3();
+	}
+
+	@Benchmark
+	public Vec3 resolveIntersection() {
+		mPoint.set(mStart);
+		mCollision.resolveIntersection(mPoint, 0.2f);
+		return mPoint;
+	}
+
+	@Benchmark
+	public Vec3 resolveNoIntersection() {
+		mPoint.set(0.0f, 0.0f, 0.0f);
+		mCollision.resolveIntersection(mPoint, 0.2f);
+		return mPoint;
+	}
+}
@@ -0,0 +1,49 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stupidcoder.gles2.GeometryBuilder;
+
+/**
+ * Tesselates spheres and calculates their normals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBuilderBenchmark {
+	@Param({ "1", "3", "5" })
+	public int tesselation;
+
+	private GeometryBuilder mSphere;
+
+	@Setup
+	public void setUp() {
+		mSphere = Meshes.sphere(tesselation);
+	}
+
+	@Benchmark
+	public GeometryBuilder sphere() {
+		return Meshes.sphere(tesselation);
+	}
+
+	@Benchmark
+	public GeometryBuilder calculateNormals() {
+		mSphere.calculateNormals();
+		return mSphere;
+	}
+}
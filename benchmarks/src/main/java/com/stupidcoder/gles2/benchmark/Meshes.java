@@ -0,0 +1,41 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.util.ArrayList;
+
+import com.stupidcoder.gles2.GeometryBuilder;
+import com.stupidcoder.gles2.Vec3;
+
+/**
+ * Test meshes shared by the benchmarks.
+ */
+final class Meshes {
+	private Meshes() {
+	}
+
+	/**
+	 * Builds a unit sphere around the origin.
+	 * 
+	 * @param pTesselation
+	 *            The number of subdivisions of the octahedron the sphere
+	 *            starts from, each one quadrupling the triangles.
+	 */
+	static GeometryBuilder sphere(int pTesselation) {
+		GeometryBuilder builder = new GeometryBuilder();
+		builder.sphere(new Vec3(0.0f, 0.0f, 0.0f), 1.0f, pTesselation);
+		return builder;
+	}
+
+	/**
+	 * Gets the triangles of a mesh as a list of corner positions, the way
+	 * Collision expects them.
+	 */
+	static float[] triangles(GeometryBuilder pBuilder) {
+		ArrayList<Float> positions = pBuilder.getPositions();
+		int[] indices = pBuilder.getIndexArray();
+		float[] triangles = new float[indices.length * 3];
+		for (int i = 0 ; i < indices.length ; i++)
+			for (int j = 0 ; j < 3 ; j++)
+				triangles[i * 3 + j] = positions.get(indices[i] * 3 + j);
+		return triangles;
+	}
+}
@@ -0,0 +1,79 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.res.Resources;
+
+import com.stupidcoder.gles2.Geometry;
+
+/**
+ * Saves and loads sphere meshes in SMF format. Loading reads from memory,
+ * saving writes to a temporary file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SMFBenchmark {
+	@Param({ "1", "3", "5" })
+	public int tesselation;
+
+	private Geometry mGeometry;
+	private File mFile;
+	private Resources mResources;
+
+	@Setup
+	public void setUp() throws IOException {
+		mGeometry = Meshes.sphere(tesselation).createGeometry("a_position:3,a_normal:3,a_texCoord:2");
+		mFile = File.createTempFile("benchmark", ".smf");
+		mGeometry.saveSMF(mFile.getPath());
+
+		RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		final byte[] data = new byte[(int)file.length()];
+		file.readFully(data);
+		file.close();
+		mResources = new Resources() {
+			@Override
+			public InputStream openRawResource(int pId) {
+				return new ByteArrayInputStream(data);
+			}
+		};
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public Geometry loadSMF() throws IOException {
+		Geometry geometry = new Geometry();
+		geometry.loadSMF(mResources, 0);
+		return geometry;
+	}
+
+	@Benchmark
+	public void saveSMF() throws IOException {
+		mGeometry.saveSMF(mFile.getPath());
+	}
+}
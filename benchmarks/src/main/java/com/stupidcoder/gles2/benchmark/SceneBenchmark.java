@@ -0,0 +1,119 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stupidcoder.gles2.GL;
+import com.stupidcoder.gles2.Geometry;
+import com.stupidcoder.gles2.GeometryBuilder;
+import com.stupidcoder.gles2.RecordingGLBackend;
+import com.stupidcoder.gles2.Scene;
+import com.stupidcoder.gles2.Shader;
+import com.stupidcoder.gles2.Vec3;
+
+/**
+ * Draws whole frames of a scene graph against a RecordingGLBackend, so the
+ * time is spent in updating, culling, sorting and state filtering. A deep
+ * graph is a single chain of nodes, a wide graph has all nodes below the
+ * root, and a tree has four children per node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneBenchmark {
+	@Param({ "deep", "wide", "tree" })
+	public String shape;
+
+	@Param({ "1000" })
+	public int nodes;
+
+	private RecordingGLBackend mBackend;
+	private Scene mScene;
+	private boolean mMoved;
+
+	@Setup
+	public void setUp() {
+		mBackend = new RecordingGLBackend();
+		GL.setBackend(mBackend);
+
+		GeometryBuilder builder = new GeometryBuilder();
+		builder.sphere(new Vec3(0.0f, 0.0f, 0.0f), 0.1f, 1);
+		Shader[] shaders = { new Shader(), new Shader(), new Shader() };
+		Geometry[] geometries = new Geometry[shaders.length];
+		for (int i = 0 ; i < geometries.length ; i++) {
+			geometries[i] = builder.createGeometry("a_position:3,a_normal:3");
+			geometries[i].addPass(shaders[i]);
+		}
+
+		mScene = new Scene(new Scene.RenderEvent() {
+			public void prerender(Scene pScene, long pElapsedTime) {
+			}
+		});
+		Scene.Node[] all = new Scene.Node[nodes];
+		for (int i = 0 ; i < nodes ; i++) {
+			Scene.Node node = new Scene.Node();
+			node.setGeometry(geometries[i % geometries.length]);
+			Scene.Node parent;
+			if (i == 0 || shape.equals("wide")) {
+				parent = mScene.getRoot();
+				node.setPosition((i % 32) * 0.25f - 4.0f, (i / 32) * 0.25f - 4.0f, 0.0f);
+			}
+			else if (shape.equals("deep")) {
+				parent = all[i - 1];
+				node.setPosition(i % 2 == 0 ? 0.01f : -0.01f, 0.005f, 0.0f);
+			}
+			else {
+				parent = all[(i - 1) / 4];
+				node.setPosition(((i - 1) % 4) * 0.5f - 0.75f, -0.5f, 0.0f);
+			}
+			parent.getChildren().add(node);
+			all[i] = node;
+		}
+		mScene.getCamera().setLookAt(0.0f, 0.0f, 12.0f, 0.0f, 0.0f, 0.0f);
+
+		mScene.onSurfaceCreated(null, null);
+		mScene.onSurfaceChanged(null, 1280, 720);
+		mScene.onDrawFrame(null);
+	}
+
+	@Setup(Level.Iteration)
+	public void resetCounts() {
+		mBackend.reset();
+	}
+
+	@Benchmark
+	public Scene frame() {
+		mScene.onDrawFrame(null);
+		return mScene;
+	}
+
+	@Benchmark
+	public Scene frameWithMovedRoot() {
+		mMoved = !mMoved;
+		mScene.getRoot().setPosition(mMoved ? 0.01f : 0.0f, 0.0f, 0.0f);
+		mScene.onDrawFrame(null);
+		return mScene;
+	}
+
+	@Benchmark
+	public Scene frameWithMovedCamera() {
+		mScene.getCamera().orbit(0.001f, 0.0f, 0.0f);
+		mScene.onDrawFrame(null);
+		return mScene;
+	}
+}
@@ -0,0 +1,67 @@
+package com.stupidcoder.gles2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stupidcoder.gles2.Vec3;
+
+/**
+ * The vector operations used all over the library.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Vec3Benchmark {
+	private Vec3 mA, mB, mC;
+
+	@Setup
+	public void setUp() {
+		mA = new Vec3(1.0f, 2.0f, 3.0f);
+		mB = new Vec3(-0.5f, 0.25f, 4.0f);
+		mC = new Vec3();
+	}
+
+	@Benchmark
+	public Vec3 cross() {
+		return mA.cross(mB);
+	}
+
+	@Benchmark
+	public float dot() {
+		return mA.dot(mB);
+	}
+
+	@Benchmark
+	public float length() {
+		return mA.length();
+	}
+
+	@Benchmark
+	public Vec3 normalize() {
+		mC.set(mA);
+		return mC.normalize();
+	}
+
+	@Benchmark
+	public Vec3 addSubMul() {
+		return mA.add(mB).sub(mA.mul(0.5f));
+	}
+
+	@Benchmark
+	public Vec3 fromYawPitch() {
+		return new Vec3(0.3f, 0.7f);
+	}
+}
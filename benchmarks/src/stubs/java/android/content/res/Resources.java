@@ -0,0 +1,19 @@
+package android.content.res;
+
+import java.io.InputStream;
+
+/**
+ * Stand-in for Android's Resources. Benchmarks subclass it to serve raw
+ * resources from memory.
+ */
+public class Resources {
+	public InputStream openRawResource(int id) {
+		throw new NotFoundException("Resource ID #0x" + Integer.toHexString(id));
+	}
+
+	public static class NotFoundException extends RuntimeException {
+		public NotFoundException(String name) {
+			super(name);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package android.graphics;
+
+/**
+ * Stand-in for Android's Bitmap, holding nothing but its size.
+ */
+public final class Bitmap {
+	private final int mWidth, mHeight;
+
+	public Bitmap(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getRowBytes() {
+		return mWidth * 4;
+	}
+}
@@ -0,0 +1,12 @@
+package android.graphics;
+
+import java.io.InputStream;
+
+/**
+ * Stand-in for Android's BitmapFactory, which can't decode anything.
+ */
+public class BitmapFactory {
+	public static Bitmap decodeStream(InputStream is) {
+		return null;
+	}
+}
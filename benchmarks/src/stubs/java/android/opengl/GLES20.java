@@ -0,0 +1,277 @@
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * Stand-in for Android's GLES20 with the constants and functions the library
+ * uses. The functions throw like the ones in android.jar, so benchmarks have
+ * to install a RecordingGLBackend.
+ */
+public class GLES20 {
+	public static final int GL_DEPTH_BUFFER_BIT = 0x100;
+	public static final int GL_STENCIL_BUFFER_BIT = 0x400;
+	public static final int GL_COLOR_BUFFER_BIT = 0x4000;
+	public static final int GL_FALSE = 0x0;
+	public static final int GL_TRUE = 0x1;
+	public static final int GL_POINTS = 0x0;
+	public static final int GL_LINES = 0x1;
+	public static final int GL_LINE_LOOP = 0x2;
+	public static final int GL_LINE_STRIP = 0x3;
+	public static final int GL_TRIANGLES = 0x4;
+	public static final int GL_TRIANGLE_STRIP = 0x5;
+	public static final int GL_TRIANGLE_FAN = 0x6;
+	public static final int GL_NEVER = 0x200;
+	public static final int GL_LESS = 0x201;
+	public static final int GL_EQUAL = 0x202;
+	public static final int GL_LEQUAL = 0x203;
+	public static final int GL_GREATER = 0x204;
+	public static final int GL_NOTEQUAL = 0x205;
+	public static final int GL_GEQUAL = 0x206;
+	public static final int GL_ALWAYS = 0x207;
+	public static final int GL_SRC_ALPHA = 0x302;
+	public static final int GL_ONE_MINUS_SRC_ALPHA = 0x303;
+	public static final int GL_ONE = 0x1;
+	public static final int GL_ZERO = 0x0;
+	public static final int GL_FRONT = 0x404;
+	public static final int GL_BACK = 0x405;
+	public static final int GL_FRONT_AND_BACK = 0x408;
+	public static final int GL_CW = 0x900;
+	public static final int GL_CCW = 0x901;
+	public static final int GL_CULL_FACE = 0xB44;
+	public static final int GL_DEPTH_TEST = 0xB71;
+	public static final int GL_STENCIL_TEST = 0xB90;
+	public static final int GL_DITHER = 0xBD0;
+	public static final int GL_BLEND = 0xBE2;
+	public static final int GL_SCISSOR_TEST = 0xC11;
+	public static final int GL_POLYGON_OFFSET_FILL = 0x8037;
+	public static final int GL_NO_ERROR = 0x0;
+	public static final int GL_INVALID_ENUM = 0x500;
+	public static final int GL_INVALID_VALUE = 0x501;
+	public static final int GL_INVALID_OPERATION = 0x502;
+	public static final int GL_OUT_OF_MEMORY = 0x505;
+	public static final int GL_UNSIGNED_BYTE = 0x1401;
+	public static final int GL_UNSIGNED_SHORT = 0x1403;
+	public static final int GL_UNSIGNED_INT = 0x1405;
+	public static final int GL_FLOAT = 0x1406;
+	public static final int GL_RGBA = 0x1908;
+	public static final int GL_RGB = 0x1907;
+	public static final int GL_TEXTURE_2D = 0xDE1;
+	public static final int GL_TEXTURE_MAG_FILTER = 0x2800;
+	public static final int GL_TEXTURE_MIN_FILTER = 0x2801;
+	public static final int GL_TEXTURE_WRAP_S = 0x2802;
+	public static final int GL_TEXTURE_WRAP_T = 0x2803;
+	public static final int GL_NEAREST = 0x2600;
+	public static final int GL_LINEAR = 0x2601;
+	public static final int GL_LINEAR_MIPMAP_LINEAR = 0x2703;
+	public static final int GL_REPEAT = 0x2901;
+	public static final int GL_CLAMP_TO_EDGE = 0x812F;
+	public static final int GL_TEXTURE0 = 0x84C0;
+	public static final int GL_ARRAY_BUFFER = 0x8892;
+	public static final int GL_ELEMENT_ARRAY_BUFFER = 0x8893;
+	public static final int GL_STATIC_DRAW = 0x88E4;
+	public static final int GL_DYNAMIC_DRAW = 0x88E8;
+	public static final int GL_STREAM_DRAW = 0x88E0;
+	public static final int GL_FRAGMENT_SHADER = 0x8B30;
+	public static final int GL_VERTEX_SHADER = 0x8B31;
+	public static final int GL_COMPILE_STATUS = 0x8B81;
+	public static final int GL_LINK_STATUS = 0x8B82;
+	public static final int GL_INFO_LOG_LENGTH = 0x8B84;
+	public static final int GL_MAX_VERTEX_UNIFORM_VECTORS = 0x8DFB;
+	public static final int GL_MAX_TEXTURE_IMAGE_UNITS = 0x8872;
+	public static final int GL_EXTENSIONS = 0x1F03;
+	public static final int GL_RENDERER = 0x1F01;
+	public static final int GL_VENDOR = 0x1F00;
+	public static final int GL_VERSION = 0x1F02;
+
+	public static void glActiveTexture(int texture) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glAttachShader(int program, int shader) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glBindBuffer(int target, int buffer) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glBindTexture(int target, int texture) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glBufferData(int target, int size, Buffer data, int usage) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glClear(int mask) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glClearColor(float red, float green, float blue, float alpha) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glClearDepthf(float depth) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glCompileShader(int shader) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static int glCreateProgram() {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static int glCreateShader(int type) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDeleteBuffers(int n, int[] buffers, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDeleteProgram(int program) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDeleteShader(int shader) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDeleteTextures(int n, int[] textures, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glCullFace(int mode) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDepthFunc(int function) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDepthMask(boolean flag) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDisable(int capability) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDisableVertexAttribArray(int index) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glDrawElements(int mode, int count, int type, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glEnable(int capability) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glEnableVertexAttribArray(int index) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glFrontFace(int mode) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glGenBuffers(int count, int[] buffers, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glGenTextures(int count, int[] textures, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glGenerateMipmap(int target) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static int glGetAttribLocation(int program, String name) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static int glGetError() {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glGetProgramiv(int program, int name, int[] params, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static String glGetShaderInfoLog(int shader) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glGetShaderiv(int shader, int name, int[] params, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static int glGetUniformLocation(int program, String name) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glLinkProgram(int program) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glPolygonOffset(float factor, float units) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glShaderSource(int shader, String source) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glTexParameterf(int target, int name, float value) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUniform1fv(int location, int count, float[] values, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUniform2fv(int location, int count, float[] values, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUniform3fv(int location, int count, float[] values, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUniform4fv(int location, int count, float[] values, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUniform1i(int location, int value) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUniformMatrix4fv(int location, int count, boolean transpose, float[] values, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glUseProgram(int program) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glVertexAttrib1f(int index, float value) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public static void glViewport(int x, int y, int width, int height) {
+		throw new RuntimeException("Stub!");
+	}
+}
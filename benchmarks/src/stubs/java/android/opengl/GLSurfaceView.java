@@ -0,0 +1,18 @@
+package android.opengl;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Stand-in for Android's GLSurfaceView, providing only the renderer
+ * interface that Scene implements.
+ */
+public class GLSurfaceView {
+	public interface Renderer {
+		void onSurfaceCreated(GL10 gl, EGLConfig config);
+
+		void onSurfaceChanged(GL10 gl, int width, int height);
+
+		void onDrawFrame(GL10 gl);
+	}
+}
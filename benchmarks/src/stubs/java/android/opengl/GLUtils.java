@@ -0,0 +1,15 @@
+package android.opengl;
+
+import android.graphics.Bitmap;
+
+/**
+ * Stand-in for Android's GLUtils.
+ */
+public final class GLUtils {
+	private GLUtils() {
+	}
+
+	public static void texImage2D(int target, int level, Bitmap bitmap, int border) {
+		throw new RuntimeException("Stub!");
+	}
+}
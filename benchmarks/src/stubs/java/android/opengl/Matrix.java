@@ -0,0 +1,90 @@
+package android.opengl;
+
+/**
+ * Stand-in for Android's Matrix with the functions the library uses. The
+ * matrices are column-major like on Android, and the results match its
+ * Java implementation, so benchmarks do the same math as on a device.
+ */
+public class Matrix {
+	public static void multiplyMM(float[] result, int resultOffset, float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+		for (int j = 0; j < 4; j++) {
+			float r0 = rhs[rhsOffset + j * 4], r1 = rhs[rhsOffset + j * 4 + 1];
+			float r2 = rhs[rhsOffset + j * 4 + 2], r3 = rhs[rhsOffset + j * 4 + 3];
+			for (int i = 0; i < 4; i++)
+				result[resultOffset + j * 4 + i] = lhs[lhsOffset + i] * r0 + lhs[lhsOffset + 4 + i] * r1
+						+ lhs[lhsOffset + 8 + i] * r2 + lhs[lhsOffset + 12 + i] * r3;
+		}
+	}
+
+	public static void multiplyMV(float[] resultVec, int resultVecOffset, float[] lhsMat, int lhsMatOffset, float[] rhsVec, int rhsVecOffset) {
+		float x = rhsVec[rhsVecOffset], y = rhsVec[rhsVecOffset + 1];
+		float z = rhsVec[rhsVecOffset + 2], w = rhsVec[rhsVecOffset + 3];
+		for (int i = 0; i < 4; i++)
+			resultVec[resultVecOffset + i] = lhsMat[lhsMatOffset + i] * x + lhsMat[lhsMatOffset + 4 + i] * y
+					+ lhsMat[lhsMatOffset + 8 + i] * z + lhsMat[lhsMatOffset + 12 + i] * w;
+	}
+
+	public static void setIdentityM(float[] sm, int smOffset) {
+		for (int i = 0; i < 16; i++)
+			sm[smOffset + i] = (i % 5 == 0) ? 1.0f : 0.0f;
+	}
+
+	public static void translateM(float[] m, int mOffset, float x, float y, float z) {
+		for (int i = 0; i < 4; i++)
+			m[mOffset + 12 + i] += m[mOffset + i] * x + m[mOffset + 4 + i] * y + m[mOffset + 8 + i] * z;
+	}
+
+	public static void frustumM(float[] m, int offset, float left, float right, float bottom, float top, float near, float far) {
+		if (left == right || top == bottom || near == far || near <= 0.0f || far <= 0.0f)
+			throw new IllegalArgumentException("Invalid frustum");
+		float width = 1.0f / (right - left);
+		float height = 1.0f / (top - bottom);
+		float depth = 1.0f / (near - far);
+		for (int i = 0; i < 16; i++)
+			m[offset + i] = 0.0f;
+		m[offset] = 2.0f * near * width;
+		m[offset + 5] = 2.0f * near * height;
+		m[offset + 8] = (right + left) * width;
+		m[offset + 9] = (top + bottom) * height;
+		m[offset + 10] = (far + near) * depth;
+		m[offset + 11] = -1.0f;
+		m[offset + 14] = 2.0f * far * near * depth;
+	}
+
+	public static void setLookAtM(float[] rm, int rmOffset, float eyeX, float eyeY, float eyeZ, float centerX, float centerY,
+			float centerZ, float upX, float upY, float upZ) {
+		float fx = centerX - eyeX, fy = centerY - eyeY, fz = centerZ - eyeZ;
+		float rlf = 1.0f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+		fx *= rlf;
+		fy *= rlf;
+		fz *= rlf;
+
+		// s = f x up
+		float sx = fy * upZ - fz * upY, sy = fz * upX - fx * upZ, sz = fx * upY - fy * upX;
+		float rls = 1.0f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+		sx *= rls;
+		sy *= rls;
+		sz *= rls;
+
+		// u = s x f
+		float ux = sy * fz - sz * fy, uy = sz * fx - sx * fz, uz = sx * fy - sy * fx;
+
+		rm[rmOffset] = sx;
+		rm[rmOffset + 1] = ux;
+		rm[rmOffset + 2] = -fx;
+		rm[rmOffset + 3] = 0.0f;
+		rm[rmOffset + 4] = sy;
+		rm[rmOffset + 5] = uy;
+		rm[rmOffset + 6] = -fy;
+		rm[rmOffset + 7] = 0.0f;
+		rm[rmOffset + 8] = sz;
+		rm[rmOffset + 9] = uz;
+		rm[rmOffset + 10] = -fz;
+		rm[rmOffset + 11] = 0.0f;
+		rm[rmOffset + 12] = 0.0f;
+		rm[rmOffset + 13] = 0.0f;
+		rm[rmOffset + 14] = 0.0f;
+		rm[rmOffset + 15] = 1.0f;
+		translateM(rm, rmOffset, -eyeX, -eyeY, -eyeZ);
+	}
+}
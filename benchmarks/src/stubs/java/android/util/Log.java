@@ -0,0 +1,34 @@
+package android.util;
+
+/**
+ * Stand-in for Android's Log that drops everything below warnings and
+ * prints the rest to stderr.
+ */
+public final class Log {
+	private Log() {
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		System.err.println(tag + ": " + msg);
+		return 0;
+	}
+
+	public static int e(String tag, String msg) {
+		System.err.println(tag + ": " + msg);
+		return 0;
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		System.err.println(tag + ": " + msg);
+		tr.printStackTrace();
+		return 0;
+	}
+}
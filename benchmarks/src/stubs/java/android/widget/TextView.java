@@ -0,0 +1,21 @@
+package android.widget;
+
+/**
+ * Stand-in for Android's TextView, running posted updates right away.
+ */
+public class TextView {
+	private CharSequence mText = "";
+
+	public void setText(CharSequence text) {
+		mText = text;
+	}
+
+	public CharSequence getText() {
+		return mText;
+	}
+
+	public boolean post(Runnable action) {
+		action.run();
+		return true;
+	}
+}
@@ -0,0 +1,7 @@
+package javax.microedition.khronos.egl;
+
+/**
+ * Stand-in for the EGL config passed to GLSurfaceView renderers.
+ */
+public abstract class EGLConfig {
+}
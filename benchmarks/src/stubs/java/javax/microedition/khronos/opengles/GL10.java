@@ -0,0 +1,7 @@
+package javax.microedition.khronos.opengles;
+
+/**
+ * Stand-in for the GL interface passed to GLSurfaceView renderers.
+ */
+public interface GL10 {
+}